@@ -0,0 +1,197 @@
+package nnplayground.bench;
+
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.data.RawImageSource;
+import nnplayground.examples.Cifar;
+import nnplayground.examples.MnistClassifier;
+import nnplayground.util.CIFAR10;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Data and networks shared by the benchmarks. By default everything is synthetic so the
+ * benchmarks run offline; with -Dbench.data=real the downloaded MNIST data in ./var/data/mnist and
+ * the CIFAR-10 batches in ./var/data/cifar10 are used instead.
+ */
+final class BenchmarkData {
+
+  static final int seed = 1234;
+
+  private BenchmarkData() {
+  }
+
+  static boolean real() {
+    return "real".equals(System.getProperty("bench.data", "synthetic"));
+  }
+
+  /**
+   * @return A directory of labeled MNIST sized png images, one sub directory per label.
+   */
+  static File imageDir(int count) throws IOException {
+    if (real())
+      return new File("./var/data/mnist/mnist_png/training");
+    File dir = Files.createTempDirectory("bench-images").toFile();
+    Random random = new Random(seed);
+    for (int i = 0; i < count; i++) {
+      BufferedImage image = new BufferedImage(28, 28, BufferedImage.TYPE_BYTE_GRAY);
+      for (int y = 0; y < 28; y++)
+        for (int x = 0; x < 28; x++)
+          image.getRaster().setSample(x, y, 0, random.nextInt(256));
+      File labelDir = new File(dir, String.valueOf(i % 10));
+      labelDir.mkdirs();
+      ImageIO.write(image, "png", new File(labelDir, i + ".png"));
+    }
+    return dir;
+  }
+
+  /**
+   * @return A "tar.gz" archive of an image directory.
+   */
+  static File archive(File imageDir) throws IOException {
+    if (real())
+      return new File("./var/data/mnist/mnist_png.tar.gz");
+    File archive = File.createTempFile("bench-images", ".tar.gz");
+    try (TarArchiveOutputStream out = new TarArchiveOutputStream(new GzipCompressorOutputStream(
+        new BufferedOutputStream(new FileOutputStream(archive))))) {
+      out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+      addToArchive(out, imageDir, imageDir.getName() + "/");
+    }
+    return archive;
+  }
+
+  private static void addToArchive(TarArchiveOutputStream out, File file, String name)
+      throws IOException {
+    out.putArchiveEntry(new TarArchiveEntry(file, name));
+    if (file.isFile()) {
+      Files.copy(file.toPath(), out);
+      out.closeArchiveEntry();
+      return;
+    }
+    out.closeArchiveEntry();
+    File[] children = file.listFiles();
+    if (children != null)
+      for (File child : children)
+        addToArchive(out, child, name + child.getName() + (child.isDirectory() ? "/" : ""));
+  }
+
+  /**
+   * @return CIFAR-10 sized raw images, random ones or the CIFAR-10 training set.
+   */
+  static RawImageSource cifarImages(int count) throws IOException {
+    if (real())
+      return new CifarBinaryDataSetIterator(CIFAR10.batchesDir(), true, 100, count, false, false,
+          seed);
+    byte[] pixels = new byte[count * 3 * 32 * 32];
+    new Random(seed).nextBytes(pixels);
+    List<String> labels = Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+    return new RawImageSource() {
+      @Override
+      public int numExamples() {
+        return count;
+      }
+
+      @Override
+      public int channels() {
+        return 3;
+      }
+
+      @Override
+      public int height() {
+        return 32;
+      }
+
+      @Override
+      public int width() {
+        return 32;
+      }
+
+      @Override
+      public List<String> getLabels() {
+        return labels;
+      }
+
+      @Override
+      public int label(int index) {
+        return index % labels.size();
+      }
+
+      @Override
+      public void readImage(int index, byte[] dst, int dstOffset) {
+        System.arraycopy(pixels, index * 3 * 32 * 32, dst, dstOffset, 3 * 32 * 32);
+      }
+    };
+  }
+
+  /**
+   * @return A directory of CIFAR-10 binary training batches, random records of {@code count}
+   *     examples over the five batch files or the downloaded CIFAR-10 batches.
+   */
+  static File cifarBatchesDir(int count) throws IOException {
+    if (real())
+      return CIFAR10.prepare();
+    File dir = Files.createTempDirectory("bench-cifar").toFile();
+    Random random = new Random(seed);
+    File[] files = CifarBinaryDataSetIterator.dataFiles(dir, true);
+    byte[] record = new byte[CifarBinaryDataSetIterator.RECORD_SIZE];
+    for (int f = 0; f < files.length; f++) {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(files[f]))) {
+        for (int i = f; i < count; i += files.length) {
+          random.nextBytes(record);
+          record[0] = (byte) (i % CifarBinaryDataSetIterator.NUM_LABELS);
+          out.write(record);
+        }
+      }
+    }
+    return dir;
+  }
+
+  static void delete(File file) {
+    if (!real())
+      FileUtils.deleteQuietly(file);
+  }
+
+  /**
+   * @param name "lenet" for the MnistClassifier network or "cifar" for the Cifar network.
+   */
+  static MultiLayerNetwork network(String name) throws IOException {
+    if ("lenet".equals(name)) {
+      MultiLayerNetwork net =
+          new MultiLayerNetwork(MnistClassifier.buildConfiguration(seed, 1, 1, 10));
+      net.init();
+      return net;
+    }
+    return new Cifar().trainModelByCifarWithNet();
+  }
+
+  static int[] inputShape(String name, int batchSize) {
+    return "lenet".equals(name) ? new int[] {batchSize, 1, 28, 28}
+        : new int[] {batchSize, 3, 32, 32};
+  }
+
+  /**
+   * @return Random features in 0..1 with random one-hot labels.
+   */
+  static DataSet randomDataSet(String name, int batchSize) {
+    INDArray features = Nd4j.rand(inputShape(name, batchSize));
+    INDArray labels = Nd4j.zeros(batchSize, 10);
+    Random random = new Random(seed);
+    for (int i = 0; i < batchSize; i++)
+      labels.putScalar(i, random.nextInt(10), 1.0);
+    return new DataSet(features, labels);
+  }
+
+}
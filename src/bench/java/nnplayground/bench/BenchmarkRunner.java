@@ -0,0 +1,34 @@
+package nnplayground.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON for comparison across runs.
+ *
+ * <pre>
+ * mvn -Pbench compile exec:exec
+ *     [-Dbench.include=Inference] [-Dbench.data=real] [-Dbench.result=target/jmh-result.json]
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    String include = System.getProperty("bench.include", "");
+    String data = System.getProperty("bench.data", "synthetic");
+    ChainedOptionsBuilder options = new OptionsBuilder()
+        .include("nnplayground\\.bench\\..*" + include + ".*Benchmark")
+        .jvmArgsAppend("-Dbench.data=" + data)
+        .resultFormat(ResultFormatType.JSON)
+        .result(System.getProperty("bench.result", "target/jmh-result.json"));
+    // DL4J's CIFAR iterator always reads the real data set
+    if (!"real".equals(data))
+      options.param("cifarReader", "binary");
+    new Runner(options.build()).run();
+  }
+
+}
@@ -0,0 +1,54 @@
+package nnplayground.bench;
+
+import nnplayground.data.AugmentingDataSetIterator;
+import nnplayground.data.ImageAugmenter;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Images per second through the Cifar augmentation stage (AugmentingDataSetIterator) with 1, 2
+ * and 4 threads. The augmentation keeps up with training as long as this rate is above the one
+ * of FitBenchmark for the cifar network at the same batch size (batchSize * 1000 / ms per fit).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(CifarAugmentationBenchmark.batchSize)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CifarAugmentationBenchmark {
+
+  static final int batchSize = 64;
+
+  @Param({"1", "2", "4"})
+  public int threads;
+
+  private AugmentingDataSetIterator augmented;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    // whole batches only, every invocation counts batchSize images
+    augmented = new AugmentingDataSetIterator(BenchmarkData.cifarImages(100 * batchSize),
+        ImageAugmenter.cifar(), batchSize, true, true, threads, BenchmarkData.seed);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    augmented.shutdown();
+  }
+
+  @Benchmark
+  public DataSet augment() {
+    if (!augmented.hasNext())
+      augmented.reset();
+    return augmented.next();
+  }
+
+}
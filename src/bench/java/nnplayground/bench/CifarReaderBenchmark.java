@@ -0,0 +1,68 @@
+package nnplayground.bench;
+
+import nnplayground.data.CifarBinaryDataSetIterator;
+import org.deeplearning4j.datasets.iterator.impl.CifarDataSetIterator;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Images per second read from the CIFAR-10 training set by the memory mapped
+ * CifarBinaryDataSetIterator and by DL4J's CifarDataSetIterator. DL4J's iterator reads its own
+ * download of the data set, so "dl4j" only runs with -Dbench.data=real; the runner restricts
+ * synthetic runs to "binary".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(CifarReaderBenchmark.batchSize)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CifarReaderBenchmark {
+
+  static final int batchSize = 100;
+  private static final int numSamples = 50000;
+
+  @Param({"binary", "dl4j"})
+  public String cifarReader;
+
+  private File batchesDir;
+  private DataSetIterator iterator;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    if ("binary".equals(cifarReader)) {
+      batchesDir = BenchmarkData.cifarBatchesDir(numSamples);
+      iterator = new CifarBinaryDataSetIterator(batchesDir, true, batchSize, numSamples, true,
+          true, BenchmarkData.seed);
+    } else {
+      iterator = new CifarDataSetIterator(batchSize, numSamples, new int[] {32, 32, 3}, false,
+          true);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (batchesDir != null)
+      BenchmarkData.delete(batchesDir);
+  }
+
+  /**
+   * Whole batches only: 50000 is a multiple of the batch size.
+   */
+  @Benchmark
+  public DataSet read() {
+    if (!iterator.hasNext())
+      iterator.reset();
+    return iterator.next();
+  }
+
+}
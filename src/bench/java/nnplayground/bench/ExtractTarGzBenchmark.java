@@ -0,0 +1,54 @@
+package nnplayground.bench;
+
+import nnplayground.util.DataUtilities;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DataUtilities.extractTarGz on the MNIST archive (or a synthetic one with 2000 images).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ExtractTarGzBenchmark {
+
+  private File images;
+  private File archive;
+  private File target;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    images = BenchmarkData.imageDir(2000);
+    archive = BenchmarkData.archive(images);
+  }
+
+  @Setup(Level.Iteration)
+  public void createTarget() throws IOException {
+    target = Files.createTempDirectory("bench-extract").toFile();
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteTarget() {
+    FileUtils.deleteQuietly(target);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkData.delete(images);
+    BenchmarkData.delete(archive);
+  }
+
+  @Benchmark
+  public void extractTarGz() throws IOException {
+    DataUtilities.extractTarGz(archive.getPath(), target.getPath());
+  }
+
+}
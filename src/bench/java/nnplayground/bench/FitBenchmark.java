@@ -0,0 +1,45 @@
+package nnplayground.bench;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single fit step (forward, backward and update) at several batch sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FitBenchmark {
+
+  @Param({"lenet", "cifar"})
+  public String model;
+
+  @Param({"16", "64", "128"})
+  public int batchSize;
+
+  private MultiLayerNetwork net;
+  private DataSet data;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    net = BenchmarkData.network(model);
+    data = BenchmarkData.randomDataSet(model, batchSize);
+  }
+
+  @Benchmark
+  public double fit() {
+    net.fit(data);
+    return net.score();
+  }
+
+}
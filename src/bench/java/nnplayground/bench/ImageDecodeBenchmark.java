@@ -0,0 +1,67 @@
+package nnplayground.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.datavec.api.io.labels.ParentPathLabelGenerator;
+import org.datavec.api.split.FileSplit;
+import org.datavec.api.writable.Writable;
+import org.datavec.image.loader.NativeImageLoader;
+import org.datavec.image.recordreader.ImageRecordReader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-image decoding of MNIST sized png files through NativeImageLoader and ImageRecordReader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ImageDecodeBenchmark {
+
+  private File images;
+  private File[] files;
+  private int next = 0;
+  private NativeImageLoader loader;
+  private ImageRecordReader recordReader;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    images = BenchmarkData.imageDir(2000);
+    Collection<File> list = FileUtils.listFiles(images,
+        new String[] {"png"}, true);
+    files = list.toArray(new File[list.size()]);
+    loader = new NativeImageLoader(28, 28, 1);
+    recordReader = new ImageRecordReader(28, 28, 1, new ParentPathLabelGenerator());
+    recordReader.initialize(new FileSplit(images, NativeImageLoader.ALLOWED_FORMATS,
+        new Random(BenchmarkData.seed)));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    BenchmarkData.delete(images);
+  }
+
+  @Benchmark
+  public INDArray nativeImageLoader() throws IOException {
+    File file = files[next];
+    next = (next + 1) % files.length;
+    return loader.asMatrix(file);
+  }
+
+  @Benchmark
+  public List<Writable> imageRecordReader() {
+    if (!recordReader.hasNext())
+      recordReader.reset();
+    return recordReader.next();
+  }
+
+}
@@ -0,0 +1,44 @@
+package nnplayground.bench;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-image and batched output() of the MnistClassifier LeNet and the Cifar network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class InferenceBenchmark {
+
+  @Param({"lenet", "cifar"})
+  public String model;
+
+  @Param({"1", "64"})
+  public int batchSize;
+
+  private MultiLayerNetwork net;
+  private INDArray input;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    net = BenchmarkData.network(model);
+    input = Nd4j.rand(BenchmarkData.inputShape(model, batchSize));
+  }
+
+  @Benchmark
+  public INDArray output() {
+    return net.output(input, false);
+  }
+
+}
@@ -0,0 +1,50 @@
+package nnplayground.bench;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImagePreProcessingScaler.transform on a batch of raw 0..255 images.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScalerBenchmark {
+
+  @Param({"lenet", "cifar"})
+  public String model;
+
+  @Param({"64"})
+  public int batchSize;
+
+  private final ImagePreProcessingScaler scaler = new ImagePreProcessingScaler(0, 1);
+  private INDArray raw;
+  private INDArray features;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    raw = Nd4j.rand(BenchmarkData.inputShape(model, batchSize)).muli(255);
+  }
+
+  /**
+   * transform works in place, so every invocation gets a fresh copy of the raw batch.
+   */
+  @Setup(Level.Invocation)
+  public void copy() {
+    features = raw.dup();
+  }
+
+  @Benchmark
+  public INDArray transform() {
+    scaler.transform(features);
+    return features;
+  }
+
+}
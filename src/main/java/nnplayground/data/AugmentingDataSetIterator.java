@@ -0,0 +1,242 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntSupplier;
+
+/**
+ * DataSetIterator that augments every training image with an {@link ImageAugmenter} while
+ * building the batch. The raw uint8 images of a batch are read into one reused byte buffer and a
+ * fixed set of worker tasks, each with its own scratch, augments a slice of the batch into the
+ * reused float buffer. Every image is augmented with a seed derived from the seed, the epoch and
+ * its example index, so a run is reproducible independent of the number of threads.
+ *
+ * <p>Put a {@link PrefetchingDataSetIterator} on top to build the next batches while the network
+ * trains on the current one.
+ */
+public class AugmentingDataSetIterator implements DataSetIterator {
+
+  private final RawImageSource source;
+  private final ImageAugmenter augmenter;
+  private final int batchSize;
+  private final boolean shuffle;
+  private final float factor;
+  private final long seed;
+  private final Random random;
+  private final int[] order;
+  private final int imageSize;
+  private final int numLabels;
+  private final ExecutorService pool;
+  private final List<Callable<Void>> tasks = new ArrayList<>();
+  private byte[] pixels;
+  private float[] features;
+  private float[] labels;
+  private int batchStart;
+  private int batchCount;
+  private int cursor = 0;
+  private int epoch = 0;
+  private IntSupplier epochSource;
+  private int batchEpoch;
+  private DataSetPreProcessor preProcessor;
+
+  /**
+   * @param source Raw images, e.g. a CifarBinaryDataSetIterator or a PackedImageCache.
+   * @param batchSize Examples per batch.
+   * @param shuffle Shuffle the example order on creation and on every reset.
+   * @param scale Scale pixel values to 0..1, else keep 0..255.
+   * @param threads Worker threads augmenting a batch.
+   * @param seed Seed for the shuffling and the augmentation.
+   */
+  public AugmentingDataSetIterator(RawImageSource source, ImageAugmenter augmenter, int batchSize,
+                                   boolean shuffle, boolean scale, int threads, long seed) {
+    this.source = source;
+    this.augmenter = augmenter;
+    this.batchSize = batchSize;
+    this.shuffle = shuffle;
+    this.factor = scale ? 1f / 255f : 1f;
+    this.seed = seed;
+    this.random = new Random(seed);
+    this.order = new int[source.numExamples()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    this.imageSize = source.channels() * source.height() * source.width();
+    this.numLabels = source.getLabels().size();
+    this.pool = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "augmentation");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int t = 0; t < threads; t++) {
+      int slice = t;
+      int[] lut = ImageAugmenter.scratch(source.channels());
+      tasks.add(() -> {
+        augmentSlice(slice, tasks.size(), lut);
+        return null;
+      });
+    }
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  private void augmentSlice(int slice, int slices, int[] lut) {
+    int from = batchCount * slice / slices;
+    int to = batchCount * (slice + 1) / slices;
+    for (int i = from; i < to; i++) {
+      int example = order[batchStart + i];
+      source.readImage(example, pixels, i * imageSize);
+      augmenter.augment(pixels, i * imageSize, source.channels(), source.height(),
+          source.width(), features, i * imageSize, factor,
+          ImageAugmenter.sampleSeed(seed, batchEpoch, example), lut);
+    }
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    int n = Math.min(num, order.length - cursor);
+    // staging buffers are reused as long as the batch size does not change
+    if (features == null || features.length != n * imageSize) {
+      pixels = new byte[n * imageSize];
+      features = new float[n * imageSize];
+      labels = new float[n * numLabels];
+    } else {
+      Arrays.fill(labels, 0f);
+    }
+    batchStart = cursor;
+    batchCount = n;
+    batchEpoch = epochSource != null ? epochSource.getAsInt() : epoch;
+    try {
+      for (Future<Void> future : pool.invokeAll(tasks))
+        future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while augmenting", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Augmentation failed", e.getCause());
+    }
+    for (int i = 0; i < n; i++)
+      labels[i * numLabels + source.label(order[cursor + i])] = 1f;
+    cursor += n;
+
+    DataSet ds = new DataSet(
+        Nd4j.create(features, new int[] {n, source.channels(), source.height(), source.width()},
+            'c'),
+        Nd4j.create(labels, new int[] {n, numLabels}, 'c'));
+    if (preProcessor != null)
+      preProcessor.preProcess(ds);
+    return ds;
+  }
+
+  /**
+   * Take the epoch of the augmentation seeds from the training loop instead of counting resets,
+   * e.g. {@code checkpointer::getEpoch}, so a resumed run continues with the augmentations of its
+   * epoch instead of repeating those of the first one.
+   */
+  public void setEpochSource(IntSupplier epochSource) {
+    this.epochSource = epochSource;
+  }
+
+  /**
+   * Stop the worker threads.
+   */
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  @Override
+  public int totalExamples() {
+    return order.length;
+  }
+
+  @Override
+  public int inputColumns() {
+    return imageSize;
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return numLabels;
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  @Override
+  public void reset() {
+    cursor = 0;
+    epoch++;
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public int cursor() {
+    return cursor;
+  }
+
+  @Override
+  public int numExamples() {
+    return order.length;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return source.getLabels();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return cursor < order.length;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  private void shuffleOrder() {
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.broadcast.BroadcastDivOp;
+import org.nd4j.linalg.api.ops.impl.broadcast.BroadcastSubOp;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Standardizes image features per channel: (x - mean[c]) / std[c], in place with broadcast ops.
+ * Works on [n, channels, height, width] and on flattened [n, channels * height * width] features.
+ */
+public class ChannelStandardize implements DataSetPreProcessor {
+
+  private final INDArray mean;
+  private final INDArray std;
+
+  public ChannelStandardize(double[] mean, double[] std) {
+    double[] safeStd = std.clone();
+    for (int i = 0; i < safeStd.length; i++)
+      safeStd[i] = Math.max(safeStd[i], 1e-6);
+    this.mean = Nd4j.create(mean);
+    this.std = Nd4j.create(safeStd);
+  }
+
+  @Override
+  public void preProcess(DataSet toPreProcess) {
+    transform(toPreProcess.getFeatures());
+  }
+
+  /**
+   * Standardize features in place.
+   */
+  public void transform(INDArray features) {
+    INDArray view = features;
+    if (features.rank() == 2) {
+      int n = features.size(0);
+      view = features.reshape('c', n, mean.length(), features.size(1) / mean.length());
+    }
+    Nd4j.getExecutioner().exec(new BroadcastSubOp(view, mean, view, 1));
+    Nd4j.getExecutioner().exec(new BroadcastDivOp(view, std, view, 1));
+    if (view != features && view.data() != features.data())
+      features.assign(view.reshape('c', features.shape()));
+  }
+
+}
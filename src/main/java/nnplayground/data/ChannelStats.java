@@ -0,0 +1,236 @@
+package nnplayground.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Per-channel mean and standard deviation of the raw 0..255 pixels of an image dataset, computed
+ * in one parallel pass over the mapped examples and saved next to the dataset. The file name
+ * contains a hash of the dataset contents, so changed data gets new statistics and unchanged data
+ * is never scanned again.
+ */
+public class ChannelStats {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChannelStats.class);
+
+  private final double[] mean;
+  private final double[] std;
+  private final long count;
+
+  /**
+   * Reads the raw bytes of one example.
+   */
+  public interface ExampleReader {
+    void read(int index, byte[] dst);
+  }
+
+  ChannelStats(double[] mean, double[] std, long count) {
+    this.mean = mean;
+    this.std = std;
+    this.count = count;
+  }
+
+  /**
+   * Statistics of a packed image file, loaded from or saved to the directory of the file.
+   */
+  public static ChannelStats forPacked(PackedImageCache cache) throws IOException {
+    return forPacked(cache, null);
+  }
+
+  /**
+   * Statistics of some examples of a packed image file, e.g. the training part of a
+   * {@link StratifiedSplit}, so held-out examples don't leak into the normalization.
+   * @param examples Example indices, null for all.
+   */
+  public static ChannelStats forPacked(PackedImageCache cache, int[] examples)
+      throws IOException {
+    File file = cache.getFile();
+    return loadOrCompute(new File(file.getParentFile(), file.getName() + ".stats-"
+            + contentKey(file) + subsetKey(examples) + ".properties"),
+        examples != null ? examples.length : cache.numExamples(), cache.channels(),
+        cache.height() * cache.width(), 0, cache.imageSize(),
+        (index, dst) -> cache.readImage(examples != null ? examples[index] : index, dst, 0));
+  }
+
+  /**
+   * Statistics of the CIFAR-10 training batches, loaded from or saved to the batches directory.
+   */
+  public static ChannelStats forCifar(File batchesDir) throws IOException {
+    return forCifar(batchesDir, null);
+  }
+
+  /**
+   * Statistics of some of the CIFAR-10 training examples, e.g. the training part of a split.
+   * @param examples Example indices, null for all.
+   */
+  public static ChannelStats forCifar(File batchesDir, int[] examples) throws IOException {
+    CifarBinaryDataSetIterator train =
+        new CifarBinaryDataSetIterator(batchesDir, true, 1, -1, false, false, 0);
+    return loadOrCompute(new File(batchesDir, "train.stats-bgr-"
+            + contentKey(CifarBinaryDataSetIterator.dataFiles(batchesDir, true))
+            + subsetKey(examples) + ".properties"),
+        examples != null ? examples.length : train.totalExamples(),
+        CifarBinaryDataSetIterator.CHANNELS,
+        CifarBinaryDataSetIterator.HEIGHT * CifarBinaryDataSetIterator.WIDTH, 1,
+        CifarBinaryDataSetIterator.RECORD_SIZE,
+        (index, dst) -> train.readRecord(examples != null ? examples[index] : index, dst));
+  }
+
+  /**
+   * @return "-" and a CRC32 of the example indices as hex, empty for all examples.
+   */
+  private static String subsetKey(int[] examples) {
+    if (examples == null)
+      return "";
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate(examples.length * 4);
+    buffer.asIntBuffer().put(examples);
+    crc.update(buffer);
+    return "-" + Long.toHexString(crc.getValue());
+  }
+
+  static ChannelStats loadOrCompute(File statsFile, int numExamples, int channels,
+                                    int pixelsPerChannel, int offset, int recordSize,
+                                    ExampleReader reader) throws IOException {
+    if (statsFile.exists())
+      return load(statsFile);
+    long start = System.nanoTime();
+    ChannelStats stats = compute(numExamples, channels, pixelsPerChannel, offset, recordSize,
+        reader);
+    stats.save(statsFile);
+    LOG.info("Computed channel statistics of {} examples in {} ms, saved to {}", numExamples,
+        (System.nanoTime() - start) / 1000000, statsFile);
+    return stats;
+  }
+
+  /**
+   * One pass over all examples, split into one range per core.
+   * @param offset Bytes in front of the pixels of every example (e.g. a label byte).
+   * @param recordSize Bytes per example as read by the reader.
+   */
+  public static ChannelStats compute(int numExamples, int channels, int pixelsPerChannel,
+                                     int offset, int recordSize, ExampleReader reader) {
+    int parts = Runtime.getRuntime().availableProcessors();
+    double[][] partial = IntStream.range(0, parts).parallel().mapToObj(part -> {
+      double[] sums = new double[2 * channels];
+      byte[] record = new byte[recordSize];
+      long[] sum = new long[channels];
+      long[] squares = new long[channels];
+      for (int e = part; e < numExamples; e += parts) {
+        reader.read(e, record);
+        for (int c = 0; c < channels; c++) {
+          int base = offset + c * pixelsPerChannel;
+          long s = 0;
+          long q = 0;
+          for (int p = 0; p < pixelsPerChannel; p++) {
+            int v = record[base + p] & 0xFF;
+            s += v;
+            q += v * v;
+          }
+          sum[c] += s;
+          squares[c] += q;
+        }
+      }
+      for (int c = 0; c < channels; c++) {
+        sums[c] = sum[c];
+        sums[channels + c] = squares[c];
+      }
+      return sums;
+    }).toArray(double[][]::new);
+
+    long count = (long) numExamples * pixelsPerChannel;
+    double[] mean = new double[channels];
+    double[] std = new double[channels];
+    for (int c = 0; c < channels; c++) {
+      double sum = 0;
+      double squares = 0;
+      for (double[] p : partial) {
+        sum += p[c];
+        squares += p[channels + c];
+      }
+      mean[c] = sum / count;
+      std[c] = Math.sqrt(Math.max(0, squares / count - mean[c] * mean[c]));
+    }
+    return new ChannelStats(mean, std, count);
+  }
+
+  /**
+   * @return CRC32 over the lengths and contents of the files as hex.
+   */
+  public static String contentKey(File... files) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    for (File file : files) {
+      crc.update(Long.toString(file.length()).getBytes(StandardCharsets.US_ASCII));
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        while (channel.read(buffer) > 0) {
+          buffer.flip();
+          crc.update(buffer);
+          buffer.clear();
+        }
+      }
+    }
+    return Long.toHexString(crc.getValue());
+  }
+
+  public static ChannelStats load(File file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+    }
+    return fromProperties(properties);
+  }
+
+  static ChannelStats fromProperties(Properties properties) {
+    int channels = Integer.parseInt(properties.getProperty("channels"));
+    double[] mean = new double[channels];
+    double[] std = new double[channels];
+    for (int c = 0; c < channels; c++) {
+      mean[c] = Double.parseDouble(properties.getProperty("mean." + c));
+      std[c] = Double.parseDouble(properties.getProperty("std." + c));
+    }
+    return new ChannelStats(mean, std, Long.parseLong(properties.getProperty("count")));
+  }
+
+  public void save(File file) throws IOException {
+    Properties properties = new Properties();
+    store(properties);
+    try (OutputStream out = new FileOutputStream(file)) {
+      properties.store(out, "per-channel statistics of raw pixel values");
+    }
+  }
+
+  void store(Properties properties) {
+    properties.setProperty("channels", String.valueOf(mean.length));
+    properties.setProperty("count", String.valueOf(count));
+    for (int c = 0; c < mean.length; c++) {
+      properties.setProperty("mean." + c, String.valueOf(mean[c]));
+      properties.setProperty("std." + c, String.valueOf(std[c]));
+    }
+  }
+
+  public double[] mean() {
+    return mean.clone();
+  }
+
+  public double[] std() {
+    return std.clone();
+  }
+
+  /**
+   * @return A preprocessor standardizing raw pixels to zero mean and unit variance per channel.
+   */
+  public ChannelStandardize standardizer() {
+    return new ChannelStandardize(mean, std);
+  }
+
+}
@@ -0,0 +1,329 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * DataSetIterator over the extracted CIFAR-10 binary version (data_batch_*.bin, test_batch.bin).
+ * Every file is memory mapped and batches of shape [batch, 3, 32, 32] are built directly from the
+ * mapped 3073 byte records (1 label byte, 1024 bytes per R, G and B plane). The record layout is
+ * already CHW, so an image is converted with a single linear pass into a reused float buffer.
+ * The planes are delivered in B, G, R order, the order NativeImageLoader decodes images to at
+ * inference time (and DL4J's CifarLoader produced).
+ */
+public class CifarBinaryDataSetIterator implements DataSetIterator, RawImageSource {
+
+  public static final int HEIGHT = 32;
+  public static final int WIDTH = 32;
+  public static final int CHANNELS = 3;
+  public static final int IMAGE_SIZE = HEIGHT * WIDTH * CHANNELS;
+  public static final int RECORD_SIZE = IMAGE_SIZE + 1;
+  public static final int NUM_LABELS = 10;
+
+  private static final String[] TRAIN_FILES = {
+      "data_batch_1.bin", "data_batch_2.bin", "data_batch_3.bin", "data_batch_4.bin",
+      "data_batch_5.bin"};
+  private static final String[] TEST_FILES = {"test_batch.bin"};
+  private static final List<String> DEFAULT_LABELS = Arrays.asList("airplane", "automobile",
+      "bird", "cat", "deer", "dog", "frog", "horse", "ship", "truck");
+
+  private final MappedByteBuffer[] files;
+  private final int[] fileStart;
+  private final List<String> labelNames;
+  private final int batchSize;
+  private final boolean shuffle;
+  private final boolean scale;
+  private final Random random;
+  private final int[] examples;
+  private final int[] order;
+  private final byte[] record = new byte[RECORD_SIZE];
+  private float[] features;
+  private float[] labels;
+  private int cursor = 0;
+  private DataSetPreProcessor preProcessor;
+
+  /**
+   * @param batchesDir The extracted cifar-10-batches-bin directory.
+   * @param train Read the five training batches, else the test batch.
+   * @param batchSize Examples per batch.
+   * @param numExamples Maximum number of examples to use, or -1 for all.
+   * @param shuffle Shuffle the example order on creation and on every reset.
+   * @param scale Scale pixel values to 0..1 while converting, else keep 0..255.
+   * @param seed Seed for the shuffling.
+   * @throws IOException IO error.
+   */
+  public CifarBinaryDataSetIterator(File batchesDir, boolean train, int batchSize, int numExamples,
+                                    boolean shuffle, boolean scale, long seed) throws IOException {
+    this(batchesDir, train, batchSize, numExamples, shuffle, scale, seed, 0, 1);
+  }
+
+  /**
+   * Iterator over one of {@code numShards} disjoint shards: every numShards-th example starting
+   * at {@code shard}, of the first {@code numExamples}.
+   */
+  public CifarBinaryDataSetIterator(File batchesDir, boolean train, int batchSize, int numExamples,
+                                    boolean shuffle, boolean scale, long seed, int shard,
+                                    int numShards) throws IOException {
+    if (shard < 0 || shard >= numShards)
+      throw new IllegalArgumentException("Shard " + shard + " of " + numShards);
+    File[] batchFiles = dataFiles(batchesDir, train);
+    this.files = new MappedByteBuffer[batchFiles.length];
+    this.fileStart = new int[batchFiles.length + 1];
+    for (int i = 0; i < batchFiles.length; i++) {
+      File file = batchFiles[i];
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+           FileChannel channel = raf.getChannel()) {
+        if (channel.size() % RECORD_SIZE != 0)
+          throw new IOException("Not a CIFAR-10 binary batch file: " + file);
+        files[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        fileStart[i + 1] = fileStart[i] + (int) (channel.size() / RECORD_SIZE);
+      }
+    }
+    int total = fileStart[batchFiles.length];
+    int limit = numExamples < 0 ? total : Math.min(numExamples, total);
+    this.examples = new int[(limit - shard + numShards - 1) / numShards];
+    for (int i = 0; i < examples.length; i++)
+      examples[i] = shard + i * numShards;
+    this.order = examples.clone();
+    this.labelNames = readLabels(new File(batchesDir, "batches.meta.txt"));
+    this.batchSize = batchSize;
+    this.shuffle = shuffle;
+    this.scale = scale;
+    this.random = new Random(seed);
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  private CifarBinaryDataSetIterator(CifarBinaryDataSetIterator parent, int[] examples,
+                                     int batchSize, boolean shuffle, long seed) {
+    this.files = parent.files;
+    this.fileStart = parent.fileStart;
+    this.labelNames = parent.labelNames;
+    this.examples = examples;
+    this.order = examples.clone();
+    this.batchSize = batchSize;
+    this.shuffle = shuffle;
+    this.scale = parent.scale;
+    this.random = new Random(seed);
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  /**
+   * Iterator over some examples of this one (sharing the mapped files), e.g. one part of a
+   * {@link StratifiedSplit}.
+   * @param indices Example indices of this iterator, 0..numExamples-1.
+   */
+  public CifarBinaryDataSetIterator subset(int[] indices, int batchSize, boolean shuffle,
+                                           long seed) {
+    return new CifarBinaryDataSetIterator(this, StratifiedSplit.select(examples, indices),
+        batchSize, shuffle, seed);
+  }
+
+  /**
+   * @return The binary batch files of the training or the test set.
+   */
+  public static File[] dataFiles(File batchesDir, boolean train) {
+    String[] names = train ? TRAIN_FILES : TEST_FILES;
+    File[] files = new File[names.length];
+    for (int i = 0; i < names.length; i++)
+      files[i] = new File(batchesDir, names[i]);
+    return files;
+  }
+
+  /**
+   * Copy the record (label byte followed by the CHW pixels in B, G, R order) of one example.
+   * @param example Example index over all mapped files.
+   * @param dst Destination of at least {@link #RECORD_SIZE} bytes.
+   */
+  public void readRecord(int example, byte[] dst) {
+    ByteBuffer view = recordView(example);
+    dst[0] = view.get(view.position());
+    copyBgr(view, dst, 1);
+  }
+
+  /**
+   * Raw pixels of the index-th example of this iterator (of its shard and limit).
+   */
+  @Override
+  public void readImage(int index, byte[] dst, int dstOffset) {
+    copyBgr(recordView(examples[index]), dst, dstOffset);
+  }
+
+  /**
+   * Copy the pixels of the record at the view's position with the R and B planes swapped. The
+   * network must be trained on the channel order it is served with, and every inference path
+   * decodes through NativeImageLoader (OpenCV), which yields B, G, R.
+   */
+  private static void copyBgr(ByteBuffer view, byte[] dst, int dstOffset) {
+    int pixels = view.position() + 1;
+    int plane = HEIGHT * WIDTH;
+    for (int c = 0; c < CHANNELS; c++) {
+      view.position(pixels + (CHANNELS - 1 - c) * plane);
+      view.get(dst, dstOffset + c * plane, plane);
+    }
+  }
+
+  @Override
+  public int label(int index) {
+    ByteBuffer view = recordView(examples[index]);
+    return view.get(view.position()) & 0xFF;
+  }
+
+  private ByteBuffer recordView(int example) {
+    int file = 0;
+    while (example >= fileStart[file + 1])
+      file++;
+    ByteBuffer view = files[file].duplicate();
+    view.position((example - fileStart[file]) * RECORD_SIZE);
+    return view;
+  }
+
+  @Override
+  public int channels() {
+    return CHANNELS;
+  }
+
+  @Override
+  public int height() {
+    return HEIGHT;
+  }
+
+  @Override
+  public int width() {
+    return WIDTH;
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    int n = Math.min(num, order.length - cursor);
+    if (features == null || features.length != n * IMAGE_SIZE) {
+      features = new float[n * IMAGE_SIZE];
+      labels = new float[n * NUM_LABELS];
+    } else {
+      Arrays.fill(labels, 0f);
+    }
+    float factor = scale ? 1f / 255f : 1f;
+    for (int i = 0; i < n; i++) {
+      readRecord(order[cursor + i], record);
+      labels[i * NUM_LABELS + (record[0] & 0xFF)] = 1f;
+      int offset = i * IMAGE_SIZE;
+      for (int p = 0; p < IMAGE_SIZE; p++)
+        features[offset + p] = (record[p + 1] & 0xFF) * factor;
+    }
+    cursor += n;
+    DataSet ds = new DataSet(
+        Nd4j.create(features, new int[] {n, CHANNELS, HEIGHT, WIDTH}, 'c'),
+        Nd4j.create(labels, new int[] {n, NUM_LABELS}, 'c'));
+    if (preProcessor != null)
+      preProcessor.preProcess(ds);
+    return ds;
+  }
+
+  @Override
+  public int totalExamples() {
+    return order.length;
+  }
+
+  @Override
+  public int inputColumns() {
+    return IMAGE_SIZE;
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return NUM_LABELS;
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  @Override
+  public void reset() {
+    cursor = 0;
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public int cursor() {
+    return cursor;
+  }
+
+  @Override
+  public int numExamples() {
+    return order.length;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return labelNames;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return cursor < order.length;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  private void shuffleOrder() {
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+  private static List<String> readLabels(File meta) throws IOException {
+    if (!meta.exists())
+      return DEFAULT_LABELS;
+    List<String> labels = new ArrayList<>();
+    for (String line : Files.readAllLines(meta.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.trim().isEmpty())
+        labels.add(line.trim());
+    }
+    return labels.size() == NUM_LABELS ? Collections.unmodifiableList(labels) : DEFAULT_LABELS;
+  }
+
+}
@@ -0,0 +1,123 @@
+package nnplayground.data;
+
+/**
+ * Random crop with zero padding, horizontal flip and colour jitter (brightness, contrast and a gain
+ * per channel) of one uint8 CHW image, written straight into a float batch buffer. The random
+ * values of an image come from its own seed, so the result does not depend on which thread
+ * augments it or in which order. Nothing is allocated per image: the jitter is applied through a
+ * lookup table in a scratch array of the caller.
+ */
+public class ImageAugmenter {
+
+  private final int padding;
+  private final boolean flip;
+  private final double brightness;
+  private final double contrast;
+  private final double colour;
+
+  /**
+   * @param padding Maximum shift in pixels of the crop, the border is filled with zeros.
+   * @param flip Flip horizontally with probability 0.5.
+   * @param brightness Maximum brightness change as a fraction of the value range.
+   * @param contrast Maximum relative contrast change.
+   * @param colour Maximum relative gain change per channel.
+   */
+  public ImageAugmenter(int padding, boolean flip, double brightness, double contrast,
+                        double colour) {
+    this.padding = padding;
+    this.flip = flip;
+    this.brightness = brightness;
+    this.contrast = contrast;
+    this.colour = colour;
+  }
+
+  /**
+   * The usual CIFAR augmentation: 4 pixel padding, flips and mild jitter.
+   */
+  public static ImageAugmenter cifar() {
+    return new ImageAugmenter(4, true, 0.1, 0.2, 0.05);
+  }
+
+  /**
+   * @return Scratch space needed by {@link #augment} for images with this many channels.
+   */
+  public static int[] scratch(int channels) {
+    return new int[channels * 256];
+  }
+
+  /**
+   * @param src Raw CHW pixels.
+   * @param dst Destination floats at {@code dstOff}.
+   * @param factor Factor applied to the augmented 0..255 values (e.g. 1/255).
+   * @param seed Seed of this image.
+   * @param lut Scratch from {@link #scratch(int)}.
+   */
+  public void augment(byte[] src, int srcOff, int channels, int height, int width, float[] dst,
+                      int dstOff, float factor, long seed, int[] lut) {
+    long state = seed;
+    state = next(state);
+    int dx = padding == 0 ? 0 : (int) (uniform(state) * (2 * padding + 1)) - padding;
+    state = next(state);
+    int dy = padding == 0 ? 0 : (int) (uniform(state) * (2 * padding + 1)) - padding;
+    state = next(state);
+    boolean mirror = flip && uniform(state) < 0.5;
+    state = next(state);
+    double shift = (2 * uniform(state) - 1) * brightness * 255;
+    state = next(state);
+    double scale = 1 + (2 * uniform(state) - 1) * contrast;
+    for (int c = 0; c < channels; c++) {
+      state = next(state);
+      double gain = 1 + (2 * uniform(state) - 1) * colour;
+      int base = c * 256;
+      for (int v = 0; v < 256; v++) {
+        int jittered = (int) Math.round(((v - 127.5) * scale + 127.5 + shift) * gain);
+        lut[base + v] = jittered < 0 ? 0 : jittered > 255 ? 255 : jittered;
+      }
+    }
+
+    int plane = height * width;
+    for (int c = 0; c < channels; c++) {
+      int base = c * 256;
+      int srcPlane = srcOff + c * plane;
+      int dstPlane = dstOff + c * plane;
+      for (int y = 0; y < height; y++) {
+        int sy = y + dy;
+        int dstRow = dstPlane + y * width;
+        if (sy < 0 || sy >= height) {
+          for (int x = 0; x < width; x++)
+            dst[dstRow + x] = 0f;
+          continue;
+        }
+        int srcRow = srcPlane + sy * width;
+        for (int x = 0; x < width; x++) {
+          int sx = (mirror ? width - 1 - x : x) + dx;
+          dst[dstRow + x] = sx < 0 || sx >= width ? 0f
+              : lut[base + (src[srcRow + sx] & 0xFF)] * factor;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return A well mixed seed for one sample of one epoch.
+   */
+  public static long sampleSeed(long seed, int epoch, int example) {
+    return mix(mix(seed + 0x9E3779B97F4A7C15L * (epoch + 1)) + example);
+  }
+
+  // SplitMix64
+  private static long next(long state) {
+    return mix(state + 0x9E3779B97F4A7C15L);
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private static double uniform(long state) {
+    return (state >>> 11) * 0x1.0p-53;
+  }
+
+}
@@ -0,0 +1,145 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * The input normalization a model was trained with, saved as "*.normalization" next to the model
+ * file (ModelSerializer zip or mapped ".nnm"). Every inference path decodes raw 0..255 pixels and
+ * normalizes them with the one saved for its model, so a model trained on standardized inputs is
+ * never served scaled inputs. A model without the file is refused.
+ */
+public class InputNormalization implements DataSetPreProcessor {
+
+  public enum Type {
+    /** Pixels scaled to 0..1. */
+    SCALE,
+    /** Per-channel (x - mean) / std of the raw pixels, see {@link ChannelStats}. */
+    STANDARDIZE,
+    /** DL4J's Zagoruyko preprocessing of CIFAR-10, not reproducible for single raw images. */
+    ZAGORUYKO
+  }
+
+  private final Type type;
+  private final ChannelStats stats;
+  private final ChannelStandardize standardizer;
+
+  private InputNormalization(Type type, ChannelStats stats) {
+    this.type = type;
+    this.stats = stats;
+    this.standardizer = stats != null ? stats.standardizer() : null;
+  }
+
+  public static InputNormalization scale() {
+    return new InputNormalization(Type.SCALE, null);
+  }
+
+  public static InputNormalization standardize(ChannelStats stats) {
+    return new InputNormalization(Type.STANDARDIZE, stats);
+  }
+
+  public static InputNormalization zagoruyko() {
+    return new InputNormalization(Type.ZAGORUYKO, null);
+  }
+
+  public Type type() {
+    return type;
+  }
+
+  /**
+   * @return The statistics of a STANDARDIZE normalization, else null.
+   */
+  public ChannelStats stats() {
+    return stats;
+  }
+
+  @Override
+  public void preProcess(DataSet toPreProcess) {
+    transform(toPreProcess.getFeatures());
+  }
+
+  /**
+   * Normalize raw 0..255 features in place, [n, channels, height, width] or flattened.
+   * @throws UnsupportedOperationException For ZAGORUYKO.
+   */
+  public void transform(INDArray features) {
+    switch (type) {
+      case SCALE:
+        features.divi(255);
+        break;
+      case STANDARDIZE:
+        standardizer.transform(features);
+        break;
+      default:
+        throw new UnsupportedOperationException(
+            type + " inputs can't be computed from raw images");
+    }
+  }
+
+  /**
+   * @return The file the normalization of a model is saved to.
+   */
+  public static File file(File model) {
+    return new File(model.getPath() + ".normalization");
+  }
+
+  /**
+   * Save as the normalization of a model.
+   */
+  public void save(File model) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("type", type.name());
+    if (stats != null)
+      stats.store(properties);
+    File target = file(model);
+    File tmp = new File(target.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmp)) {
+      properties.store(out, "input normalization of " + model.getName());
+    }
+    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Load the normalization saved with a model.
+   * @throws IOException If there is none, the model's inputs are unknown.
+   */
+  public static InputNormalization load(File model) throws IOException {
+    File file = file(model);
+    if (!file.exists())
+      throw new IOException("No input normalization saved with " + model + " (expected " + file
+          + "), refusing to serve it with a guessed one");
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+    }
+    Type type = Type.valueOf(properties.getProperty("type"));
+    return new InputNormalization(type,
+        type == Type.STANDARDIZE ? ChannelStats.fromProperties(properties) : null);
+  }
+
+  /**
+   * Load the normalization saved with a model that is served from raw images.
+   * @throws IOException If there is none or it can't be applied to raw images.
+   */
+  public static InputNormalization forInference(File model) throws IOException {
+    InputNormalization normalization = load(model);
+    if (normalization.type == Type.ZAGORUYKO)
+      throw new IOException(model + " was trained on Zagoruyko preprocessed tensors, which can't"
+          + " be computed for raw images");
+    return normalization;
+  }
+
+  @Override
+  public String toString() {
+    return type.name().toLowerCase(Locale.ROOT);
+  }
+
+}
@@ -0,0 +1,49 @@
+package nnplayground.data;
+
+import org.datavec.api.io.labels.ParentPathLabelGenerator;
+import org.datavec.api.split.InputSplit;
+import org.datavec.image.recordreader.ImageRecordReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * ImageRecordReader over the images of a {@link ManifestIndex} (or a shard of it). No directory
+ * is listed; every reset starts the next epoch with its own deterministic shuffle.
+ *
+ * <p>Labels are the manifest's full ordered label list, the same for every shard: ImageRecordReader
+ * would infer them from the images of the split, so a shard missing a label would number the
+ * others differently.
+ */
+public class ManifestImageRecordReader extends ImageRecordReader {
+
+  private final ManifestIndex manifest;
+  private final long seed;
+  private int epoch = 0;
+
+  public ManifestImageRecordReader(ManifestIndex manifest, int height, int width, int channels,
+                                   long seed) throws IOException {
+    super(height, width, channels, new ParentPathLabelGenerator());
+    this.manifest = manifest;
+    this.seed = seed;
+    initialize(manifest.split(seed, epoch));
+  }
+
+  @Override
+  public void initialize(InputSplit split) throws IOException {
+    super.initialize(split);
+    labels.clear();
+    labels.addAll(manifest.getLabels());
+  }
+
+  @Override
+  public void reset() {
+    epoch++;
+    try {
+      initialize(manifest.split(seed, epoch));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+}
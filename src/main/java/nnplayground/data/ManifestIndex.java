@@ -0,0 +1,406 @@
+package nnplayground.data;
+
+import org.datavec.api.split.CollectionInputSplit;
+import org.datavec.api.split.InputSplit;
+import org.datavec.image.loader.NativeImageLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of a labeled image directory tree (label = parent directory name, like
+ * ParentPathLabelGenerator) with path, label index, size, modification time and an optional CRC32
+ * of every image, so training does not list and stat the whole tree on every run.
+ *
+ * <p>The index is built by walking the tree in parallel. A refresh only lists directories whose
+ * modification time changed (files were added, removed or renamed); the files of unchanged
+ * directories are taken from the previous index, and hashes of files with unchanged size and
+ * modification time are reused. Files rewritten in place are found with {@code verify}, which
+ * stats every file again (still without listing unchanged directories).
+ *
+ * <p>{@link #shard(int, int)} selects every n-th image, so n processes can split a dataset without
+ * overlap, and {@link #split(long, int)} shuffles the images of an epoch deterministically.
+ *
+ * <p>File layout (big endian): int magic, int version, UTF root, int labels, UTF labels, int
+ * directories, (UTF path, long modified) per directory, int entries, (UTF path, short label,
+ * long size, long modified, long crc32 or 0) per entry. Paths are relative to the root.
+ */
+public class ManifestIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ManifestIndex.class);
+
+  static final int MAGIC = 0x4E4E4D49; // "NNMI"
+  static final int VERSION = 1;
+
+  private final File root;
+  private final List<String> labels;
+  private final Map<String, Long> directories;
+  private final List<Entry> entries;
+
+  /**
+   * One image of the index.
+   */
+  public static final class Entry {
+    private final String path;
+    private final int label;
+    private final long size;
+    private final long modified;
+    private final long hash;
+
+    Entry(String path, int label, long size, long modified, long hash) {
+      this.path = path;
+      this.label = label;
+      this.size = size;
+      this.modified = modified;
+      this.hash = hash;
+    }
+
+    /** @return The path relative to the root, '/' separated. */
+    public String getPath() {
+      return path;
+    }
+
+    public int getLabel() {
+      return label;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getModified() {
+      return modified;
+    }
+
+    /** @return CRC32 of the contents, 0 if not hashed. */
+    public long getHash() {
+      return hash;
+    }
+  }
+
+  ManifestIndex(File root, List<String> labels, Map<String, Long> directories,
+                List<Entry> entries) {
+    this.root = root;
+    this.labels = Collections.unmodifiableList(labels);
+    this.directories = directories;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  /**
+   * Read the index file and refresh it, or build it if it doesn't exist yet. The file is only
+   * rewritten if something changed.
+   * @param hash Compute a CRC32 of every new or changed image.
+   * @param verify Stat every file of unchanged directories as well.
+   */
+  public static ManifestIndex open(File root, File indexFile, boolean hash, boolean verify)
+      throws IOException {
+    long start = System.nanoTime();
+    ManifestIndex previous = indexFile.exists() ? read(indexFile) : null;
+    if (previous != null && !previous.root.getAbsoluteFile().equals(root.getAbsoluteFile()))
+      previous = null;
+    ManifestIndex index = build(root, previous, hash, verify);
+    boolean changed = previous == null || !index.sameAs(previous);
+    if (changed)
+      index.write(indexFile);
+    LOG.info("Manifest of {} with {} images and {} labels {} in {} ms", root, index.size(),
+        index.labels.size(), previous == null ? "built" : changed ? "refreshed" : "unchanged",
+        (System.nanoTime() - start) / 1000000);
+    return index;
+  }
+
+  static ManifestIndex build(File root, ManifestIndex previous, boolean hash, boolean verify)
+      throws IOException {
+    if (!root.isDirectory())
+      throw new IOException("Not a directory: " + root);
+    Map<String, List<Entry>> previousFiles = new HashMap<>();
+    Map<String, List<String>> previousDirs = new HashMap<>();
+    if (previous != null) {
+      for (String dir : previous.directories.keySet()) {
+        previousFiles.put(dir, new ArrayList<>());
+        previousDirs.put(dir, new ArrayList<>());
+      }
+      for (String dir : previous.directories.keySet()) {
+        if (!dir.isEmpty())
+          previousDirs.get(parentOf(dir)).add(dir);
+      }
+      for (Entry entry : previous.entries)
+        previousFiles.get(parentOf(entry.path)).add(entry);
+    }
+    Set<String> formats = new HashSet<>(Arrays.asList(NativeImageLoader.ALLOWED_FORMATS));
+    ForkJoinPool pool = new ForkJoinPool();
+    Scan scan;
+    try {
+      scan = pool.invoke(new Scan(root, root, "", previous, previousFiles, previousDirs, formats,
+          hash, verify));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+
+    scan.files.sort(Comparator.comparing((Entry e) -> e.path));
+    TreeSet<String> labelSet = new TreeSet<>();
+    for (Entry e : scan.files)
+      labelSet.add(labelOf(e.path));
+    List<String> labels = new ArrayList<>(labelSet);
+    Map<String, Integer> labelIndex = new HashMap<>();
+    for (int i = 0; i < labels.size(); i++)
+      labelIndex.put(labels.get(i), i);
+    List<Entry> entries = new ArrayList<>(scan.files.size());
+    for (Entry e : scan.files)
+      entries.add(new Entry(e.path, labelIndex.get(labelOf(e.path)), e.size, e.modified, e.hash));
+    return new ManifestIndex(root, labels, new TreeMap<>(scan.directories), entries);
+  }
+
+  /**
+   * Lists (or reuses the previous listing of) one directory and forks a task per sub directory.
+   */
+  private static class Scan extends RecursiveTask<Scan> {
+    private final File root;
+    private final File dir;
+    private final String relative;
+    private final ManifestIndex previous;
+    private final Map<String, List<Entry>> previousFiles;
+    private final Map<String, List<String>> previousDirs;
+    private final Set<String> formats;
+    private final boolean hash;
+    private final boolean verify;
+    private final List<Entry> files = new ArrayList<>();
+    private final Map<String, Long> directories = new HashMap<>();
+
+    Scan(File root, File dir, String relative, ManifestIndex previous,
+         Map<String, List<Entry>> previousFiles, Map<String, List<String>> previousDirs,
+         Set<String> formats, boolean hash, boolean verify) {
+      this.root = root;
+      this.dir = dir;
+      this.relative = relative;
+      this.previous = previous;
+      this.previousFiles = previousFiles;
+      this.previousDirs = previousDirs;
+      this.formats = formats;
+      this.hash = hash;
+      this.verify = verify;
+    }
+
+    @Override
+    protected Scan compute() {
+      long modified = dir.lastModified();
+      directories.put(relative, modified);
+      Long known = previous == null ? null : previous.directories.get(relative);
+      Map<String, Entry> before = new HashMap<>();
+      for (Entry e : previousFiles.getOrDefault(relative, Collections.emptyList()))
+        before.put(e.path, e);
+      List<Scan> subTasks = new ArrayList<>();
+      if (known != null && known == modified) {
+        // unchanged directory: no listing, at most a stat per file
+        for (Entry e : before.values())
+          files.add(verify ? entry(new File(root, e.path), e.path, e) : e);
+        for (String sub : previousDirs.getOrDefault(relative, Collections.emptyList()))
+          subTasks.add(subTask(new File(root, sub), sub));
+      } else {
+        File[] children = dir.listFiles();
+        if (children != null) {
+          for (File child : children) {
+            String path = relative.isEmpty() ? child.getName() : relative + "/" + child.getName();
+            if (child.isDirectory()) {
+              subTasks.add(subTask(child, path));
+            } else {
+              String name = child.getName();
+              if (formats.contains(name.substring(name.lastIndexOf('.') + 1)))
+                files.add(entry(child, path, before.get(path)));
+            }
+          }
+        }
+      }
+      invokeAll(subTasks);
+      for (Scan sub : subTasks) {
+        Scan result = sub.join();
+        files.addAll(result.files);
+        directories.putAll(result.directories);
+      }
+      return this;
+    }
+
+    private Scan subTask(File child, String path) {
+      return new Scan(root, child, path, previous, previousFiles, previousDirs, formats, hash,
+          verify);
+    }
+
+    private Entry entry(File file, String path, Entry before) {
+      long size = file.length();
+      long modified = file.lastModified();
+      if (before != null && before.size == size && before.modified == modified
+          && (!hash || before.hash != 0))
+        return before;
+      return new Entry(path, -1, size, modified, hash ? crc(file) : 0);
+    }
+  }
+
+  private static long crc(File file) {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0)
+        crc.update(buffer, 0, n);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return crc.getValue() == 0 ? 1 : crc.getValue();
+  }
+
+  /**
+   * @return The k-th of n disjoint shards: every n-th image starting at k, in path order.
+   */
+  public ManifestIndex shard(int k, int n) {
+    if (k < 0 || k >= n)
+      throw new IllegalArgumentException("Shard " + k + " of " + n);
+    List<Entry> shard = new ArrayList<>(entries.size() / n + 1);
+    for (int i = k; i < entries.size(); i += n)
+      shard.add(entries.get(i));
+    return new ManifestIndex(root, labels, directories, shard);
+  }
+
+  /**
+   * Split off a validation part with the same label proportions ({@link StratifiedSplit}).
+   * @return The training and the held-out part.
+   */
+  public ManifestIndex[] holdOut(double fraction, long seed) {
+    int[][] split = StratifiedSplit.split(entries.size(), i -> entries.get(i).label, fraction,
+        seed);
+    ManifestIndex[] parts = new ManifestIndex[2];
+    for (int p = 0; p < 2; p++) {
+      List<Entry> part = new ArrayList<>(split[p].length);
+      for (int i : split[p])
+        part.add(entries.get(i));
+      parts[p] = new ManifestIndex(root, labels, directories, part);
+    }
+    return parts;
+  }
+
+  /**
+   * @return The entries in the order of one epoch, the same for the same seed and epoch.
+   */
+  public List<Entry> shuffled(long seed, int epoch) {
+    List<Entry> order = new ArrayList<>(entries);
+    Collections.shuffle(order, new Random(seed * 31 + epoch));
+    return order;
+  }
+
+  /**
+   * @return The images of one epoch in shuffled order, for a record reader.
+   */
+  public InputSplit split(long seed, int epoch) {
+    List<URI> uris = new ArrayList<>(entries.size());
+    for (Entry entry : shuffled(seed, epoch))
+      uris.add(file(entry).toURI());
+    return new CollectionInputSplit(uris);
+  }
+
+  public File file(Entry entry) {
+    return new File(root, entry.path);
+  }
+
+  public File getRoot() {
+    return root;
+  }
+
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  private boolean sameAs(ManifestIndex other) {
+    if (!directories.equals(other.directories) || !labels.equals(other.labels)
+        || entries.size() != other.entries.size())
+      return false;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry a = entries.get(i);
+      Entry b = other.entries.get(i);
+      if (!a.path.equals(b.path) || a.size != b.size || a.modified != b.modified
+          || a.hash != b.hash)
+        return false;
+    }
+    return true;
+  }
+
+  public void write(File file) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    if (file.getAbsoluteFile().getParentFile() != null)
+      file.getAbsoluteFile().getParentFile().mkdirs();
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(root.getPath());
+      out.writeInt(labels.size());
+      for (String label : labels)
+        out.writeUTF(label);
+      out.writeInt(directories.size());
+      for (Map.Entry<String, Long> dir : directories.entrySet()) {
+        out.writeUTF(dir.getKey());
+        out.writeLong(dir.getValue());
+      }
+      out.writeInt(entries.size());
+      for (Entry e : entries) {
+        out.writeUTF(e.path);
+        out.writeShort(e.label);
+        out.writeLong(e.size);
+        out.writeLong(e.modified);
+        out.writeLong(e.hash);
+      }
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  public static ManifestIndex read(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC)
+        throw new IOException("Not a manifest index: " + file);
+      int version = in.readInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported manifest index version " + version + ": " + file);
+      File root = new File(in.readUTF());
+      List<String> labels = new ArrayList<>();
+      for (int i = in.readInt(); i > 0; i--)
+        labels.add(in.readUTF());
+      Map<String, Long> directories = new TreeMap<>();
+      for (int i = in.readInt(); i > 0; i--)
+        directories.put(in.readUTF(), in.readLong());
+      int n = in.readInt();
+      List<Entry> entries = new ArrayList<>(n);
+      for (int i = 0; i < n; i++)
+        entries.add(new Entry(in.readUTF(), in.readShort(), in.readLong(), in.readLong(),
+            in.readLong()));
+      return new ManifestIndex(root, labels, directories, entries);
+    }
+  }
+
+  private static String parentOf(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash < 0 ? "" : path.substring(0, slash);
+  }
+
+  private static String labelOf(String path) {
+    String parent = parentOf(path);
+    return parent.substring(parent.lastIndexOf('/') + 1);
+  }
+
+}
@@ -0,0 +1,265 @@
+package nnplayground.data;
+
+import org.datavec.image.loader.NativeImageLoader;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * One-time conversion of a labeled image directory tree (label = parent directory name, like
+ * ParentPathLabelGenerator) into a single packed uint8 file which can be memory mapped.
+ *
+ * <p>File layout (big endian):
+ * <pre>
+ *   int    magic, version
+ *   int    numExamples, channels, height, width
+ *   int    numLabels, followed by numLabels UTF strings
+ *   byte[] numExamples label indices        (at labelsOffset, 8 byte aligned)
+ *   byte[] numExamples * c * h * w pixels   (at pixelsOffset, 64 byte aligned, CHW per image)
+ * </pre>
+ */
+public class PackedImageCache implements RawImageSource {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PackedImageCache.class);
+
+  static final int MAGIC = 0x4E4E5049; // "NNPI"
+  static final int VERSION = 1;
+
+  private final File file;
+  private final int numExamples;
+  private final int channels;
+  private final int height;
+  private final int width;
+  private final List<String> labels;
+  private final long labelsOffset;
+  private final long pixelsOffset;
+  private final MappedByteBuffer buffer;
+
+  private PackedImageCache(File file, int numExamples, int channels, int height, int width,
+                           List<String> labels, long labelsOffset, long pixelsOffset,
+                           MappedByteBuffer buffer) {
+    this.file = file;
+    this.numExamples = numExamples;
+    this.channels = channels;
+    this.height = height;
+    this.width = width;
+    this.labels = Collections.unmodifiableList(labels);
+    this.labelsOffset = labelsOffset;
+    this.pixelsOffset = pixelsOffset;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Open and memory map a packed image file.
+   * @param file Packed file created by {@link #pack}.
+   * @return The mapped cache.
+   * @throws IOException IO error or invalid file.
+   */
+  public static PackedImageCache open(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("Packed file too large to map: " + file);
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      ByteBuffer header = mapped.duplicate();
+      if (header.getInt() != MAGIC)
+        throw new IOException("Not a packed image file: " + file);
+      int version = header.getInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported packed image file version " + version + ": " + file);
+      int numExamples = header.getInt();
+      int channels = header.getInt();
+      int height = header.getInt();
+      int width = header.getInt();
+      int numLabels = header.getInt();
+      List<String> labels = new ArrayList<>(numLabels);
+      for (int i = 0; i < numLabels; i++) {
+        byte[] utf = new byte[header.getShort() & 0xFFFF];
+        header.get(utf);
+        labels.add(new String(utf, "UTF-8"));
+      }
+      long labelsOffset = align(header.position(), 8);
+      long pixelsOffset = align(labelsOffset + numExamples, 64);
+      long expected = pixelsOffset + (long) numExamples * channels * height * width;
+      if (channel.size() < expected)
+        throw new IOException("Truncated packed image file: " + file);
+      return new PackedImageCache(file, numExamples, channels, height, width, labels,
+          labelsOffset, pixelsOffset, mapped);
+    }
+  }
+
+  /**
+   * Decode every image below a directory once and write them into a packed file. The target is
+   * written to a temporary file first and renamed when complete, so an interrupted conversion
+   * never leaves a valid looking file behind.
+   * @param sourceDir Root directory, one sub directory per label.
+   * @param target Packed file to create.
+   * @param height Image height.
+   * @param width Image width.
+   * @param channels Image channels.
+   * @throws IOException IO error, an InterruptedIOException if the thread was interrupted (its
+   *                     interrupt status stays set) and packing aborted.
+   */
+  public static void pack(File sourceDir, File target, int height, int width, int channels)
+      throws IOException {
+    // the manifest next to the target lists the images, later packs only refresh it
+    ManifestIndex manifest =
+        ManifestIndex.open(sourceDir, new File(target.getPath() + ".manifest"), false, false);
+    List<File> files = new ArrayList<>(manifest.size());
+    for (ManifestIndex.Entry entry : manifest.getEntries())
+      files.add(manifest.file(entry));
+    List<String> labels = manifest.getLabels();
+    if (labels.size() > 256)
+      throw new IOException("Too many labels for a packed file: " + labels.size());
+
+    LOG.info("Packing {} images with {} labels from {} into {}",
+        files.size(), labels.size(), sourceDir, target);
+    long start = System.currentTimeMillis();
+
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(headerBytes);
+    header.writeInt(MAGIC);
+    header.writeInt(VERSION);
+    header.writeInt(files.size());
+    header.writeInt(channels);
+    header.writeInt(height);
+    header.writeInt(width);
+    header.writeInt(labels.size());
+    for (String label : labels)
+      header.writeUTF(label);
+    header.flush();
+    long labelsOffset = align(headerBytes.size(), 8);
+    long pixelsOffset = align(labelsOffset + files.size(), 64);
+    int imageSize = channels * height * width;
+
+    File tmp = new File(target.getPath() + ".tmp");
+    if (target.getParentFile() != null)
+      target.getParentFile().mkdirs();
+    ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+         FileChannel channel = raf.getChannel()) {
+      raf.setLength(pixelsOffset + (long) files.size() * imageSize);
+      channel.write(ByteBuffer.wrap(headerBytes.toByteArray()), 0);
+      byte[] labelIdx = new byte[files.size()];
+      for (int i = 0; i < files.size(); i++)
+        labelIdx[i] = (byte) manifest.getEntries().get(i).getLabel();
+      channel.write(ByteBuffer.wrap(labelIdx), labelsOffset);
+
+      ThreadLocal<NativeImageLoader> loaders =
+          ThreadLocal.withInitial(() -> new NativeImageLoader(height, width, channels));
+      List<Future<?>> tasks = new ArrayList<>(files.size());
+      for (int i = 0; i < files.size(); i++) {
+        final int index = i;
+        tasks.add(pool.submit(() -> {
+          INDArray image = loaders.get().asMatrix(files.get(index));
+          channel.write(ByteBuffer.wrap(toBytes(image, imageSize)),
+              pixelsOffset + (long) index * imageSize);
+          return null;
+        }));
+      }
+      for (Future<?> task : tasks)
+        task.get();
+    } catch (InterruptedException e) {
+      // abort: stop the decoders before the partial file goes
+      Thread.currentThread().interrupt();
+      pool.shutdownNow();
+      tmp.delete();
+      throw new InterruptedIOException("Interrupted while packing " + target);
+    } catch (IOException | ExecutionException | RuntimeException e) {
+      pool.shutdownNow();
+      tmp.delete();
+      throw e instanceof IOException ? (IOException) e : new IOException("Packing failed", e);
+    } finally {
+      pool.shutdownNow();
+    }
+    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("Packed {} images in {} ms", files.size(), System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Pack a directory only if the packed file does not exist yet.
+   * @return The opened cache.
+   */
+  public static PackedImageCache openOrPack(File sourceDir, File target, int height, int width,
+                                            int channels) throws IOException {
+    if (!target.exists())
+      pack(sourceDir, target, height, width, channels);
+    return open(target);
+  }
+
+  /** Copy the pixels of one example into {@code dst} at {@code dstOffset}. */
+  @Override
+  public void readImage(int index, byte[] dst, int dstOffset) {
+    int size = imageSize();
+    ByteBuffer view = buffer.duplicate();
+    view.position((int) (pixelsOffset + (long) index * size));
+    view.get(dst, dstOffset, size);
+  }
+
+  /** @return The label index of one example. */
+  @Override
+  public int label(int index) {
+    return buffer.get((int) (labelsOffset + index)) & 0xFF;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public int numExamples() {
+    return numExamples;
+  }
+
+  @Override
+  public int channels() {
+    return channels;
+  }
+
+  @Override
+  public int height() {
+    return height;
+  }
+
+  @Override
+  public int width() {
+    return width;
+  }
+
+  public int imageSize() {
+    return channels * height * width;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  private static byte[] toBytes(INDArray image, int imageSize) throws IOException {
+    float[] values = image.dup('c').data().asFloat();
+    if (values.length != imageSize)
+      throw new IOException("Unexpected image size " + values.length + ", expected " + imageSize);
+    byte[] bytes = new byte[imageSize];
+    for (int i = 0; i < imageSize; i++)
+      bytes[i] = (byte) Math.max(0, Math.min(255, Math.round(values[i])));
+    return bytes;
+  }
+
+  static long align(long offset, int alignment) {
+    return (offset + alignment - 1) / alignment * alignment;
+  }
+
+}
@@ -0,0 +1,186 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * DataSetIterator over a memory mapped {@link PackedImageCache}. Batches are built straight from
+ * the mapped bytes with no per-image file access or decoding. Features have the same shape and
+ * value range as ImageRecordReader output ([batch, channels, height, width], 0..255), so the usual
+ * ImagePreProcessingScaler can be used on top.
+ *
+ * <p>{@link #reset()} only reshuffles the example order (if shuffling is enabled), nothing is read
+ * from disk again.
+ */
+public class PackedImageDataSetIterator implements DataSetIterator {
+
+  private final PackedImageCache cache;
+  private final int batchSize;
+  private final boolean shuffle;
+  private final Random random;
+  private final int[] order;
+  private final byte[] pixels;
+  private float[] features;
+  private float[] labels;
+  private int cursor = 0;
+  private DataSetPreProcessor preProcessor;
+
+  /**
+   * @param cache Opened packed image cache.
+   * @param batchSize Examples per batch.
+   * @param shuffle Shuffle the example order on creation and on every reset.
+   * @param seed Seed for the shuffling.
+   */
+  public PackedImageDataSetIterator(PackedImageCache cache, int batchSize, boolean shuffle,
+                                    long seed) {
+    this(cache, IntStream.range(0, cache.numExamples()).toArray(), batchSize, shuffle, seed);
+  }
+
+  /**
+   * Iterator over some of the examples of the cache, e.g. one part of a {@link StratifiedSplit}.
+   * @param examples Example indices in the cache.
+   */
+  public PackedImageDataSetIterator(PackedImageCache cache, int[] examples, int batchSize,
+                                    boolean shuffle, long seed) {
+    this.cache = cache;
+    this.batchSize = batchSize;
+    this.shuffle = shuffle;
+    this.random = new Random(seed);
+    this.order = examples.clone();
+    this.pixels = new byte[cache.imageSize()];
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  public PackedImageDataSetIterator(File packedFile, int batchSize, boolean shuffle, long seed)
+      throws IOException {
+    this(PackedImageCache.open(packedFile), batchSize, shuffle, seed);
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    int n = Math.min(num, order.length - cursor);
+    int imageSize = cache.imageSize();
+    int numLabels = cache.getLabels().size();
+    // staging buffers are reused as long as the batch size does not change
+    if (features == null || features.length != n * imageSize) {
+      features = new float[n * imageSize];
+      labels = new float[n * numLabels];
+    } else {
+      Arrays.fill(labels, 0f);
+    }
+    for (int i = 0; i < n; i++) {
+      int example = order[cursor + i];
+      cache.readImage(example, pixels, 0);
+      int offset = i * imageSize;
+      for (int p = 0; p < imageSize; p++)
+        features[offset + p] = pixels[p] & 0xFF;
+      labels[i * numLabels + cache.label(example)] = 1f;
+    }
+    cursor += n;
+    DataSet ds = new DataSet(
+        Nd4j.create(features, new int[] {n, cache.channels(), cache.height(), cache.width()}, 'c'),
+        Nd4j.create(labels, new int[] {n, numLabels}, 'c'));
+    if (preProcessor != null)
+      preProcessor.preProcess(ds);
+    return ds;
+  }
+
+  @Override
+  public int totalExamples() {
+    return order.length;
+  }
+
+  @Override
+  public int inputColumns() {
+    return cache.imageSize();
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return cache.getLabels().size();
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  @Override
+  public void reset() {
+    cursor = 0;
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public int cursor() {
+    return cursor;
+  }
+
+  @Override
+  public int numExamples() {
+    return order.length;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return cache.getLabels();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return cursor < order.length;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  public PackedImageCache getCache() {
+    return cache;
+  }
+
+  private void shuffleOrder() {
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+}
@@ -0,0 +1,321 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline stage between any DataSetIterator and net.fit. A pool of worker threads fetches the
+ * next batches from the wrapped iterator and runs the preprocessor (e.g. ImagePreProcessingScaler)
+ * on them while the network trains on the current batch. At most {@code prefetch} batches are
+ * prepared ahead, and batches are handed out in the order of the wrapped iterator.
+ *
+ * <p>The wrapped iterator is not thread safe, so fetching from it is serialized; preprocessing
+ * runs in parallel. The preprocessor of the wrapped iterator is taken over by this stage.
+ *
+ * <p>Batches are recycled: a fixed pool of at most {@code prefetch + 1} feature and label arrays
+ * is filled with the fetched batches and preprocessed in place, so the arrays handed to the
+ * network stay the same from batch to batch and epoch to epoch instead of being allocated anew.
+ * A batch returned by {@link #next()} is only valid until the following call of next() or
+ * {@link #reset()}, which takes it back into the pool. Batches of another shape (the last, smaller
+ * one of an epoch) or with masks are passed through as fetched.
+ *
+ * <p>The time the consumer blocks in {@link #hasNext()} / {@link #next()} is recorded per epoch
+ * and logged on {@link #reset()}: a high share means training is limited by the data pipeline,
+ * a share near zero means it is limited by compute.
+ */
+public class PrefetchingDataSetIterator implements DataSetIterator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PrefetchingDataSetIterator.class);
+
+  private final DataSetIterator source;
+  private final int prefetch;
+  private final int workers;
+  private volatile DataSetPreProcessor preProcessor;
+
+  private final Object lock = new Object();
+  private final Map<Long, DataSet> ready = new HashMap<>();
+  private final Queue<DataSet> free = new ConcurrentLinkedQueue<>();
+  private DataSet handedOut;
+  private ExecutorService pool;
+  private Semaphore permits;
+  private long fetched; // guarded by source
+  private long total; // guarded by lock
+  private long consumed; // guarded by lock
+  private boolean sourceDone; // guarded by lock
+  private Throwable failure; // guarded by lock
+
+  private int epoch = 0;
+  private int epochBatches = 0;
+  private long epochStart = 0;
+  private long epochWaitNanos = 0;
+  private long lastEpochNanos = 0;
+  private long lastEpochWaitNanos = 0;
+
+  /**
+   * @param source The wrapped iterator.
+   * @param prefetch Number of batches prepared ahead.
+   * @param workers Number of worker threads.
+   */
+  public PrefetchingDataSetIterator(DataSetIterator source, int prefetch, int workers) {
+    this.source = source;
+    this.prefetch = prefetch;
+    this.workers = workers;
+    this.preProcessor = source.getPreProcessor();
+    source.setPreProcessor(null);
+    start();
+  }
+
+  private void start() {
+    synchronized (lock) {
+      ready.clear();
+      consumed = 0;
+      total = 0;
+      sourceDone = false;
+      failure = null;
+    }
+    fetched = 0;
+    permits = new Semaphore(prefetch);
+    pool = Executors.newFixedThreadPool(workers, r -> {
+      Thread t = new Thread(r, "prefetch-worker");
+      t.setDaemon(true);
+      return t;
+    });
+    for (int i = 0; i < workers; i++)
+      pool.submit(this::work);
+  }
+
+  private void stop() {
+    pool.shutdownNow();
+    try {
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void work() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        permits.acquire();
+        DataSet ds;
+        long seq;
+        synchronized (source) {
+          if (!source.hasNext()) {
+            synchronized (lock) {
+              sourceDone = true;
+              total = fetched;
+              lock.notifyAll();
+            }
+            return;
+          }
+          ds = source.next();
+          seq = fetched++;
+        }
+        ds = recycle(ds);
+        DataSetPreProcessor pp = preProcessor;
+        if (pp != null)
+          pp.preProcess(ds);
+        synchronized (lock) {
+          ready.put(seq, ds);
+          lock.notifyAll();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      synchronized (lock) {
+        failure = t;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return A pooled batch holding a copy of the fetched one, or the fetched one if no pooled
+   *     batch fits, which then joins the pool once it is handed back.
+   */
+  private DataSet recycle(DataSet ds) {
+    if (ds.getFeaturesMaskArray() != null || ds.getLabelsMaskArray() != null)
+      return ds;
+    DataSet buffer = free.poll();
+    if (buffer == null)
+      return ds;
+    if (!Arrays.equals(buffer.getFeatures().shape(), ds.getFeatures().shape())
+        || !Arrays.equals(buffer.getLabels().shape(), ds.getLabels().shape())) {
+      free.offer(buffer);
+      return ds;
+    }
+    buffer.getFeatures().assign(ds.getFeatures());
+    buffer.getLabels().assign(ds.getLabels());
+    return buffer;
+  }
+
+  /**
+   * Take back the batch the consumer is done with.
+   */
+  private void takeBack() {
+    if (handedOut != null && handedOut.getFeaturesMaskArray() == null
+        && handedOut.getLabelsMaskArray() == null && free.size() <= prefetch)
+      free.offer(handedOut);
+    handedOut = null;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (epochStart == 0)
+      epochStart = System.nanoTime();
+    long waitStart = System.nanoTime();
+    try {
+      synchronized (lock) {
+        while (!ready.containsKey(consumed) && !(sourceDone && consumed >= total)) {
+          if (failure != null)
+            throw new IllegalStateException("Prefetching failed", failure);
+          lock.wait();
+        }
+        return ready.containsKey(consumed);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for data", e);
+    } finally {
+      epochWaitNanos += System.nanoTime() - waitStart;
+    }
+  }
+
+  @Override
+  public DataSet next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    takeBack();
+    DataSet ds;
+    synchronized (lock) {
+      ds = ready.remove(consumed++);
+    }
+    permits.release();
+    epochBatches++;
+    handedOut = ds;
+    return ds;
+  }
+
+  /**
+   * Batches are prepared with the batch size of the wrapped iterator, {@code num} is ignored.
+   */
+  @Override
+  public DataSet next(int num) {
+    return next();
+  }
+
+  @Override
+  public void reset() {
+    stop();
+    takeBack();
+    if (epochBatches > 0) {
+      lastEpochNanos = System.nanoTime() - epochStart;
+      lastEpochWaitNanos = epochWaitNanos;
+      LOG.info("Epoch {}: {} batches, waited {} ms for data of {} ms ({}%)", epoch, epochBatches,
+          lastEpochWaitNanos / 1000000, lastEpochNanos / 1000000,
+          String.format("%.1f", 100.0 * lastEpochWaitNanos / lastEpochNanos));
+      epoch++;
+    }
+    epochBatches = 0;
+    epochStart = 0;
+    epochWaitNanos = 0;
+    source.reset();
+    start();
+  }
+
+  /**
+   * Stop the worker threads.
+   */
+  public void shutdown() {
+    stop();
+  }
+
+  /**
+   * @return Time the consumer waited for data in the last completed epoch.
+   */
+  public long getLastEpochWaitMillis() {
+    return lastEpochWaitNanos / 1000000;
+  }
+
+  /**
+   * @return Wall time of the last completed epoch, from first request to reset.
+   */
+  public long getLastEpochMillis() {
+    return lastEpochNanos / 1000000;
+  }
+
+  @Override
+  public int totalExamples() {
+    return source.totalExamples();
+  }
+
+  @Override
+  public int inputColumns() {
+    return source.inputColumns();
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return source.totalOutcomes();
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return source.resetSupported();
+  }
+
+  /**
+   * Already asynchronous, so fit() must not wrap it into another AsyncDataSetIterator.
+   */
+  @Override
+  public boolean asyncSupported() {
+    return false;
+  }
+
+  @Override
+  public int batch() {
+    return source.batch();
+  }
+
+  @Override
+  public int cursor() {
+    return source.cursor();
+  }
+
+  @Override
+  public int numExamples() {
+    return source.numExamples();
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return source.getLabels();
+  }
+
+}
@@ -0,0 +1,27 @@
+package nnplayground.data;
+
+import java.util.List;
+
+/**
+ * Random access to raw uint8 images (CHW) and their label indices. Reads must be safe from
+ * several threads at once.
+ */
+public interface RawImageSource {
+
+  int numExamples();
+
+  int channels();
+
+  int height();
+
+  int width();
+
+  List<String> getLabels();
+
+  /** @return The label index of one example. */
+  int label(int index);
+
+  /** Copy the pixels of one example into {@code dst} at {@code dstOffset}. */
+  void readImage(int index, byte[] dst, int dstOffset);
+
+}
@@ -0,0 +1,199 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * DataSetIterator for knowledge distillation: the images of a {@link RawImageSource} with the
+ * teacher's soft targets next to the one-hot labels. The labels of an example are
+ * {@code [softmax(teacherLogProbs / temperature) | onehot(label)]}, twice the number of classes,
+ * computed once on creation, as expected by {@link nnplayground.train.DistillationLoss}.
+ */
+public class SoftTargetDataSetIterator implements DataSetIterator {
+
+  private final RawImageSource source;
+  private final float[] targets;
+  private final int numLabels;
+  private final int batchSize;
+  private final boolean shuffle;
+  private final float factor;
+  private final Random random;
+  private final int[] order;
+  private final int imageSize;
+  private byte[] pixels;
+  private float[] features;
+  private float[] labels;
+  private int cursor = 0;
+  private DataSetPreProcessor preProcessor;
+
+  /**
+   * @param source Raw images, e.g. a non-shuffled CifarBinaryDataSetIterator.
+   * @param teacherLogProbs Log probabilities of the teacher, [numExamples * numLabels] in the
+   *                        example order of the source.
+   * @param temperature Softmax temperature, larger values give softer targets.
+   * @param batchSize Examples per batch.
+   * @param shuffle Shuffle the example order on creation and on every reset.
+   * @param scale Scale pixel values to 0..1, else keep 0..255.
+   * @param seed Seed for the shuffling.
+   */
+  public SoftTargetDataSetIterator(RawImageSource source, float[] teacherLogProbs,
+                                   double temperature, int batchSize,
+                                   boolean shuffle, boolean scale, long seed) {
+    this.source = source;
+    this.numLabels = source.getLabels().size();
+    if (teacherLogProbs.length != source.numExamples() * numLabels)
+      throw new IllegalArgumentException("Expected " + source.numExamples() + " x " + numLabels
+          + " teacher outputs, got " + teacherLogProbs.length);
+    this.targets = softTargets(source, teacherLogProbs, numLabels, temperature);
+    this.batchSize = batchSize;
+    this.shuffle = shuffle;
+    this.factor = scale ? 1f / 255f : 1f;
+    this.random = new Random(seed);
+    this.order = new int[source.numExamples()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    this.imageSize = source.channels() * source.height() * source.width();
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  /**
+   * @return [numExamples][soft targets, one-hot label].
+   */
+  private static float[] softTargets(RawImageSource source, float[] logProbs, int numLabels,
+                                     double temperature) {
+    float[] targets = new float[2 * logProbs.length];
+    for (int e = 0; e < source.numExamples(); e++) {
+      int offset = e * numLabels;
+      int target = 2 * offset;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int c = 0; c < numLabels; c++)
+        max = Math.max(max, logProbs[offset + c] / temperature);
+      double sum = 0;
+      for (int c = 0; c < numLabels; c++)
+        sum += Math.exp(logProbs[offset + c] / temperature - max);
+      for (int c = 0; c < numLabels; c++)
+        targets[target + c] = (float) (Math.exp(logProbs[offset + c] / temperature - max) / sum);
+      targets[target + numLabels + source.label(e)] = 1;
+    }
+    return targets;
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    int n = Math.min(num, order.length - cursor);
+    if (features == null || features.length != n * imageSize) {
+      pixels = new byte[imageSize];
+      features = new float[n * imageSize];
+      labels = new float[n * 2 * numLabels];
+    }
+    for (int i = 0; i < n; i++) {
+      int example = order[cursor + i];
+      source.readImage(example, pixels, 0);
+      int offset = i * imageSize;
+      for (int p = 0; p < imageSize; p++)
+        features[offset + p] = (pixels[p] & 0xFF) * factor;
+      System.arraycopy(targets, example * 2 * numLabels, labels, i * 2 * numLabels,
+          2 * numLabels);
+    }
+    cursor += n;
+
+    DataSet ds = new DataSet(
+        Nd4j.create(features, new int[] {n, source.channels(), source.height(), source.width()},
+            'c'),
+        Nd4j.create(labels, new int[] {n, 2 * numLabels}, 'c'));
+    if (preProcessor != null)
+      preProcessor.preProcess(ds);
+    return ds;
+  }
+
+  @Override
+  public int totalExamples() {
+    return order.length;
+  }
+
+  @Override
+  public int inputColumns() {
+    return imageSize;
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return numLabels;
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  @Override
+  public void reset() {
+    cursor = 0;
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public int cursor() {
+    return cursor;
+  }
+
+  @Override
+  public int numExamples() {
+    return order.length;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return source.getLabels();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return cursor < order.length;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  private void shuffleOrder() {
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+package nnplayground.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Splits the examples of a training set into a training part and a held-out validation part
+ * with the same class proportions, so validation (early stopping, model selection) never looks
+ * at the test set.
+ */
+public final class StratifiedSplit {
+
+  private StratifiedSplit() {
+  }
+
+  /**
+   * @param numExamples Number of examples, indexed 0..numExamples-1.
+   * @param label Label index of an example.
+   * @param fraction Fraction of every class held out (0..1).
+   * @param seed Seed of the selection, the same seed gives the same split.
+   * @return The training and the held-out example indices, each in ascending order.
+   */
+  public static int[][] split(int numExamples, IntUnaryOperator label, double fraction,
+                              long seed) {
+    Map<Integer, List<Integer>> byClass = new TreeMap<>();
+    for (int i = 0; i < numExamples; i++)
+      byClass.computeIfAbsent(label.applyAsInt(i), k -> new ArrayList<>()).add(i);
+    BitSet heldOut = new BitSet(numExamples);
+    Random random = new Random(seed);
+    for (List<Integer> examples : byClass.values()) {
+      Collections.shuffle(examples, random);
+      int count = (int) Math.round(examples.size() * fraction);
+      for (int i = 0; i < count; i++)
+        heldOut.set(examples.get(i));
+    }
+    int[] train = new int[numExamples - heldOut.cardinality()];
+    int[] validation = new int[heldOut.cardinality()];
+    int t = 0;
+    int v = 0;
+    for (int i = 0; i < numExamples; i++) {
+      if (heldOut.get(i))
+        validation[v++] = i;
+      else
+        train[t++] = i;
+    }
+    return new int[][] {train, validation};
+  }
+
+  /**
+   * Split the examples of a raw image source.
+   */
+  public static int[][] split(RawImageSource source, double fraction, long seed) {
+    return split(source.numExamples(), source::label, fraction, seed);
+  }
+
+  /**
+   * @return The values of {@code indices} mapped through {@code examples}, e.g. to turn split
+   *     positions into absolute example indices.
+   */
+  static int[] select(int[] examples, int[] indices) {
+    return Arrays.stream(indices).map(i -> examples[i]).toArray();
+  }
+
+}
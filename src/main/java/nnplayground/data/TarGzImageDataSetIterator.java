@@ -0,0 +1,402 @@
+package nnplayground.data;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.datavec.image.loader.NativeImageLoader;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * DataSetIterator which reads labeled images straight out of a "tar.gz" archive, without
+ * extracting it to disk. The label of an image is the name of its parent directory (like
+ * ParentPathLabelGenerator). The archive is read sequentially on a reader thread while the images
+ * are decoded on a pool of worker threads; a bounded queue between them keeps the memory use
+ * constant.
+ *
+ * <p>Archives are usually ordered by directory, i.e. by label. A shuffle buffer mixes the stream
+ * before batching. A batch only mixes the labels present in the buffer, so a buffer smaller than
+ * two label groups yields batches of one or two labels; such sizes are logged as a warning.
+ * {@link #SHUFFLE_LABEL_GROUPS} sizes the buffer from the archive to two of its largest label
+ * groups.
+ *
+ * <p>A failed decode fails the next() that reaches the image and stops the reader;
+ * {@link #reset()} starts reading again.
+ */
+public class TarGzImageDataSetIterator implements DataSetIterator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TarGzImageDataSetIterator.class);
+
+  /** Shuffle buffer size of two times the images of the largest label. */
+  public static final int SHUFFLE_LABEL_GROUPS = -1;
+
+  private static final Sample END = new Sample(null, -1);
+
+  private final File archive;
+  private final String prefix;
+  private final int height;
+  private final int width;
+  private final int channels;
+  private final int batchSize;
+  private final int shuffleBufferSize;
+  private final int workers;
+  private final Random random;
+  private final List<String> labels;
+  private final Set<String> selected; // entries of this part of a split, null for all
+  private final int numExamples; // counted by the header scan
+  private final Set<String> formats =
+      new HashSet<>(Arrays.asList(NativeImageLoader.ALLOWED_FORMATS));
+
+  private ExecutorService decoders;
+  private Thread reader;
+  private BlockingQueue<Future<Sample>> queue;
+  private final List<Sample> shuffleBuffer = new ArrayList<>();
+  private boolean exhausted;
+  private int cursor;
+  private DataSetPreProcessor preProcessor;
+
+  /**
+   * @param archive The "tar.gz" archive.
+   * @param prefix Only entries below this path are used, e.g. "mnist_png/training/".
+   * @param height Image height.
+   * @param width Image width.
+   * @param channels Image channels.
+   * @param batchSize Examples per batch.
+   * @param shuffleBufferSize Size of the shuffle buffer, 0 keeps the archive order,
+   *                          {@link #SHUFFLE_LABEL_GROUPS} sizes it from the archive.
+   * @param seed Seed for the shuffling.
+   * @throws IOException IO error while scanning the archive for labels.
+   */
+  public TarGzImageDataSetIterator(File archive, String prefix, int height, int width,
+                                   int channels, int batchSize, int shuffleBufferSize, long seed)
+      throws IOException {
+    this(archive, prefix, height, width, channels, batchSize, shuffleBufferSize, seed,
+        Runtime.getRuntime().availableProcessors());
+  }
+
+  public TarGzImageDataSetIterator(File archive, String prefix, int height, int width,
+                                   int channels, int batchSize, int shuffleBufferSize, long seed,
+                                   int workers) throws IOException {
+    this(archive, prefix, height, width, channels, batchSize, shuffleBufferSize, seed, workers,
+        0, false, 0);
+  }
+
+  /**
+   * Iterator over one part of a {@link StratifiedSplit} of the images in the archive, e.g. to
+   * hold out a validation set from the training images.
+   * @param holdOut Fraction of every label held out, 0 for no split.
+   * @param heldOut Iterate the held-out part, else the rest.
+   * @param splitSeed Seed of the split, the same for both parts.
+   */
+  public TarGzImageDataSetIterator(File archive, String prefix, int height, int width,
+                                   int channels, int batchSize, int shuffleBufferSize, long seed,
+                                   int workers, double holdOut, boolean heldOut, long splitSeed)
+      throws IOException {
+    this.archive = archive;
+    this.prefix = prefix;
+    this.height = height;
+    this.width = width;
+    this.channels = channels;
+    this.batchSize = batchSize;
+    this.workers = workers;
+    this.random = new Random(seed);
+    List<String> names = new ArrayList<>();
+    this.labels = scan(names);
+    this.selected = holdOut > 0 ? select(names, holdOut, heldOut, splitSeed) : null;
+    this.numExamples = selected != null ? selected.size() : names.size();
+    this.shuffleBufferSize = shuffleBufferSize(shuffleBufferSize, names);
+    start();
+  }
+
+  /**
+   * @return The requested size, or two of the largest label groups for SHUFFLE_LABEL_GROUPS.
+   */
+  private int shuffleBufferSize(int requested, List<String> entryNames) {
+    int[] counts = new int[labels.size()];
+    for (String name : entryNames)
+      if (selected == null || selected.contains(name))
+        counts[labels.indexOf(labelOf(name))]++;
+    int largest = Arrays.stream(counts).max().orElse(0);
+    if (requested == SHUFFLE_LABEL_GROUPS) {
+      LOG.info("Shuffle buffer of {} images, two times the largest label", 2 * largest);
+      return 2 * largest;
+    }
+    if (requested > 0 && requested < 2 * largest)
+      LOG.warn("Shuffle buffer of {} images is smaller than two labels of up to {} images, "
+          + "batches will mix only a few labels", requested, largest);
+    return requested;
+  }
+
+  /**
+   * Collect the image entry names and the label names (parent directories) with a pass over the
+   * entry headers only.
+   */
+  private List<String> scan(List<String> entryNames) throws IOException {
+    TreeSet<String> names = new TreeSet<>();
+    try (TarArchiveInputStream tais = open()) {
+      TarArchiveEntry entry;
+      while ((entry = tais.getNextTarEntry()) != null) {
+        if (isImage(entry)) {
+          names.add(labelOf(entry.getName()));
+          entryNames.add(entry.getName());
+        }
+      }
+    }
+    LOG.info("Found {} labels in {}", names.size(), archive);
+    return Collections.unmodifiableList(new ArrayList<>(names));
+  }
+
+  private Set<String> select(List<String> entryNames, double holdOut, boolean heldOut,
+                             long splitSeed) {
+    int[][] split = StratifiedSplit.split(entryNames.size(),
+        i -> labels.indexOf(labelOf(entryNames.get(i))), holdOut, splitSeed);
+    Set<String> names = new HashSet<>();
+    for (int i : split[heldOut ? 1 : 0])
+      names.add(entryNames.get(i));
+    return names;
+  }
+
+  private TarArchiveInputStream open() throws IOException {
+    return new TarArchiveInputStream(new GzipCompressorInputStream(
+        new BufferedInputStream(new FileInputStream(archive), 1 << 16)));
+  }
+
+  private boolean isImage(TarArchiveEntry entry) {
+    String name = entry.getName();
+    return entry.isFile() && name.startsWith(prefix)
+        && formats.contains(name.substring(name.lastIndexOf('.') + 1));
+  }
+
+  private static String labelOf(String entryName) {
+    String parent = entryName.substring(0, entryName.lastIndexOf('/'));
+    return parent.substring(parent.lastIndexOf('/') + 1);
+  }
+
+  private void start() {
+    decoders = Executors.newFixedThreadPool(workers, r -> {
+      Thread t = new Thread(r, "tar-image-decoder");
+      t.setDaemon(true);
+      return t;
+    });
+    queue = new ArrayBlockingQueue<>(Math.max(2 * batchSize, 4 * workers));
+    exhausted = false;
+    cursor = 0;
+    ThreadLocal<NativeImageLoader> loaders =
+        ThreadLocal.withInitial(() -> new NativeImageLoader(height, width, channels));
+    ExecutorService pool = decoders;
+    BlockingQueue<Future<Sample>> out = queue;
+    reader = new Thread(() -> {
+      try (TarArchiveInputStream tais = open()) {
+        TarArchiveEntry entry;
+        while ((entry = tais.getNextTarEntry()) != null) {
+          if (!isImage(entry) || selected != null && !selected.contains(entry.getName()))
+            continue;
+          byte[] bytes = IOUtils.toByteArray(tais, entry.getSize());
+          int label = labels.indexOf(labelOf(entry.getName()));
+          String name = entry.getName();
+          out.put(pool.submit(() -> {
+            try {
+              float[] pixels = loaders.get().asMatrix(new ByteArrayInputStream(bytes))
+                  .dup('c').data().asFloat();
+              return new Sample(pixels, label);
+            } catch (IOException | RuntimeException e) {
+              throw new IOException("Can't decode " + name, e);
+            }
+          }));
+        }
+        out.put(CompletableFuture.completedFuture(END));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (RejectedExecutionException e) {
+        // stopped while reading an entry, the decoders are gone
+      } catch (IOException e) {
+        CompletableFuture<Sample> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        try {
+          out.put(failed);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "tar-image-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void stop() {
+    // the reader must be gone before the pool is, it submits to it
+    reader.interrupt();
+    try {
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    decoders.shutdownNow();
+    queue.clear();
+    shuffleBuffer.clear();
+  }
+
+  /**
+   * Take the next decoded sample from the queue in archive order. On failure the reader and the
+   * decoders are stopped and the iterator is exhausted until reset.
+   */
+  private Sample take() {
+    boolean failed = true;
+    try {
+      Sample sample = queue.take().get();
+      if (sample == END)
+        exhausted = true;
+      failed = false;
+      return sample;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while reading " + archive, e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Failed to read " + archive, e.getCause());
+    } finally {
+      if (failed) {
+        exhausted = true;
+        stop();
+      }
+    }
+  }
+
+  private void fillShuffleBuffer() {
+    int target = Math.max(1, shuffleBufferSize);
+    while (!exhausted && shuffleBuffer.size() < target) {
+      Sample sample = take();
+      if (sample != END)
+        shuffleBuffer.add(sample);
+    }
+  }
+
+  private Sample poll() {
+    fillShuffleBuffer();
+    int index = shuffleBufferSize > 0 ? random.nextInt(shuffleBuffer.size()) : 0;
+    Sample sample = shuffleBuffer.get(index);
+    Sample last = shuffleBuffer.remove(shuffleBuffer.size() - 1);
+    if (index < shuffleBuffer.size())
+      shuffleBuffer.set(index, last);
+    return sample;
+  }
+
+  @Override
+  public boolean hasNext() {
+    fillShuffleBuffer();
+    return !shuffleBuffer.isEmpty();
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    int imageSize = channels * height * width;
+    List<Sample> batch = new ArrayList<>(num);
+    while (batch.size() < num && hasNext())
+      batch.add(poll());
+    int n = batch.size();
+    float[] features = new float[n * imageSize];
+    float[] outcomes = new float[n * labels.size()];
+    for (int i = 0; i < n; i++) {
+      Sample sample = batch.get(i);
+      System.arraycopy(sample.pixels, 0, features, i * imageSize, imageSize);
+      outcomes[i * labels.size() + sample.label] = 1f;
+    }
+    cursor += n;
+    DataSet ds = new DataSet(
+        Nd4j.create(features, new int[] {n, channels, height, width}, 'c'),
+        Nd4j.create(outcomes, new int[] {n, labels.size()}, 'c'));
+    if (preProcessor != null)
+      preProcessor.preProcess(ds);
+    return ds;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  /**
+   * Restart streaming from the beginning of the archive.
+   */
+  @Override
+  public void reset() {
+    stop();
+    start();
+  }
+
+  @Override
+  public int totalExamples() {
+    return numExamples;
+  }
+
+  @Override
+  public int inputColumns() {
+    return channels * height * width;
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return labels.size();
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public int cursor() {
+    return cursor;
+  }
+
+  @Override
+  public int numExamples() {
+    return numExamples;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  private static class Sample {
+    private final float[] pixels;
+    private final int label;
+
+    private Sample(float[] pixels, int label) {
+      this.pixels = pixels;
+      this.label = label;
+    }
+  }
+
+}
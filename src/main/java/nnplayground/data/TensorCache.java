@@ -0,0 +1,335 @@
+package nnplayground.data;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Fully preprocessed features and labels of a dataset in a file of raw floats that is memory
+ * mapped on later runs, so expensive preprocessing (e.g. Zagoruyko's for CIFAR) runs only once.
+ *
+ * <pre>
+ * int magic "NNTC", int version, int examples, int labels, int feature rank, int[rank] feature
+ * shape of one example, padding to 64 bytes, features [examples][size], labels [examples][labels],
+ * int label names, UTF label names
+ * </pre>
+ *
+ * All floats are in native byte order.
+ */
+public class TensorCache implements DataSetIterator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TensorCache.class);
+
+  static final int MAGIC = 0x4E4E5443; // "NNTC"
+  static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+
+  private final FloatBuffer features;
+  private final FloatBuffer labels;
+  private final int numExamples;
+  private final int numLabels;
+  private final int[] exampleShape;
+  private final List<String> labelNames;
+  private final int featureSize;
+  private final int batchSize;
+  private final boolean shuffle;
+  private final Random random;
+  private final int[] order;
+  private int cursor = 0;
+  private DataSetPreProcessor preProcessor;
+
+  /**
+   * Open a cache file, writing it first from the source iterator if it doesn't exist.
+   * @param source Creates the (expensive) source iterator, only called if the file is missing.
+   */
+  public static TensorCache openOrWrite(File file, Supplier<DataSetIterator> source,
+                                        int batchSize, boolean shuffle, long seed)
+      throws IOException {
+    if (!file.exists())
+      write(source.get(), file);
+    return new TensorCache(file, batchSize, shuffle, seed);
+  }
+
+  /**
+   * Write all batches of an iterator, including its preprocessing.
+   */
+  public static void write(DataSetIterator source, File file) throws IOException {
+    long start = System.nanoTime();
+    File tmp = new File(file.getPath() + ".tmp");
+    File labelsTmp = new File(file.getPath() + ".labels.tmp");
+    int examples = 0;
+    int numLabels = 0;
+    int[] shape = null;
+    try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+         FileChannel labelsOut = FileChannel.open(labelsTmp.toPath(), StandardOpenOption.CREATE,
+             StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      out.position(HEADER_SIZE);
+      source.reset();
+      while (source.hasNext()) {
+        DataSet ds = source.next();
+        int n = ds.numExamples();
+        if (shape == null) {
+          int[] batchShape = ds.getFeatures().shape();
+          shape = Arrays.copyOfRange(batchShape, 1, batchShape.length);
+          numLabels = ds.getLabels().size(1);
+        }
+        writeFloats(out, Nd4j.toFlattened('c', ds.getFeatures()).data().asFloat());
+        writeFloats(labelsOut, Nd4j.toFlattened('c', ds.getLabels()).data().asFloat());
+        examples += n;
+      }
+      if (shape == null)
+        throw new IOException("No data to cache");
+      labelsOut.position(0);
+      long labelsSize = labelsOut.size();
+      long transferred = 0;
+      while (transferred < labelsSize)
+        transferred += labelsOut.transferTo(transferred, labelsSize - transferred, out);
+      List<String> names = source.getLabels() == null ? Collections.emptyList()
+          : source.getLabels();
+      DataOutputStream namesOut = new DataOutputStream(Channels.newOutputStream(out));
+      namesOut.writeInt(names.size());
+      for (String name : names)
+        namesOut.writeUTF(name);
+      namesOut.flush();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).putInt(examples).putInt(numLabels)
+          .putInt(shape.length);
+      for (int d : shape)
+        header.putInt(d);
+      header.rewind();
+      out.write(header, 0);
+    } finally {
+      Files.deleteIfExists(labelsTmp.toPath());
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("Cached {} preprocessed examples in {} ({} ms)", examples, file,
+        (System.nanoTime() - start) / 1000000);
+  }
+
+  private static void writeFloats(FileChannel channel, float[] values) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder());
+    buffer.asFloatBuffer().put(values);
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  public TensorCache(File file, int batchSize, boolean shuffle, long seed) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) > 0) {
+        // read the whole header
+      }
+      header.flip();
+      if (header.getInt() != MAGIC || header.getInt() != VERSION)
+        throw new IOException(file + " is not a tensor cache file of version " + VERSION);
+      numExamples = header.getInt();
+      numLabels = header.getInt();
+      exampleShape = new int[header.getInt()];
+      int size = 1;
+      for (int i = 0; i < exampleShape.length; i++) {
+        exampleShape[i] = header.getInt();
+        size *= exampleShape[i];
+      }
+      featureSize = size;
+      long featureBytes = 4L * numExamples * featureSize;
+      if (featureBytes > Integer.MAX_VALUE)
+        throw new IOException(file + " is too large to be mapped");
+      MappedByteBuffer mappedFeatures =
+          channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, featureBytes);
+      MappedByteBuffer mappedLabels = channel.map(FileChannel.MapMode.READ_ONLY,
+          HEADER_SIZE + featureBytes, 4L * numExamples * numLabels);
+      features = mappedFeatures.order(ByteOrder.nativeOrder()).asFloatBuffer();
+      labels = mappedLabels.order(ByteOrder.nativeOrder()).asFloatBuffer();
+      channel.position(HEADER_SIZE + featureBytes + 4L * numExamples * numLabels);
+      DataInputStream namesIn = new DataInputStream(Channels.newInputStream(channel));
+      String[] names = new String[namesIn.readInt()];
+      for (int i = 0; i < names.length; i++)
+        names[i] = namesIn.readUTF();
+      labelNames = names.length == 0 ? null : Arrays.asList(names);
+    }
+    this.batchSize = batchSize;
+    this.shuffle = shuffle;
+    this.random = new Random(seed);
+    this.order = new int[numExamples];
+    for (int i = 0; i < numExamples; i++)
+      order[i] = i;
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  private TensorCache(TensorCache parent, int[] examples, int batchSize, boolean shuffle,
+                      long seed) {
+    this.features = parent.features;
+    this.labels = parent.labels;
+    this.numExamples = parent.numExamples;
+    this.numLabels = parent.numLabels;
+    this.exampleShape = parent.exampleShape;
+    this.labelNames = parent.labelNames;
+    this.featureSize = parent.featureSize;
+    this.batchSize = batchSize;
+    this.shuffle = shuffle;
+    this.random = new Random(seed);
+    this.order = examples.clone();
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  /**
+   * Iterator over some examples of the same mapped file, e.g. one part of a
+   * {@link StratifiedSplit}.
+   * @param examples Example indices in the file.
+   */
+  public TensorCache subset(int[] examples, int batchSize, boolean shuffle, long seed) {
+    return new TensorCache(this, examples, batchSize, shuffle, seed);
+  }
+
+  /**
+   * @return The label index (largest label value) of an example in the file.
+   */
+  public int label(int example) {
+    int best = 0;
+    for (int c = 1; c < numLabels; c++) {
+      if (labels.get(example * numLabels + c) > labels.get(example * numLabels + best))
+        best = c;
+    }
+    return best;
+  }
+
+  /**
+   * @return The number of examples in the file.
+   */
+  public int fileExamples() {
+    return numExamples;
+  }
+
+  private void shuffleOrder() {
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    int n = Math.min(num, order.length - cursor);
+    float[] x = new float[n * featureSize];
+    float[] y = new float[n * numLabels];
+    FloatBuffer featureView = features.duplicate();
+    FloatBuffer labelView = labels.duplicate();
+    for (int i = 0; i < n; i++) {
+      int example = order[cursor + i];
+      featureView.position(example * featureSize);
+      featureView.get(x, i * featureSize, featureSize);
+      labelView.position(example * numLabels);
+      labelView.get(y, i * numLabels, numLabels);
+    }
+    cursor += n;
+    int[] shape = new int[exampleShape.length + 1];
+    shape[0] = n;
+    System.arraycopy(exampleShape, 0, shape, 1, exampleShape.length);
+    DataSet ds = new DataSet(Nd4j.create(x, shape, 'c'),
+        Nd4j.create(y, new int[] {n, numLabels}, 'c'));
+    if (preProcessor != null)
+      preProcessor.preProcess(ds);
+    return ds;
+  }
+
+  @Override
+  public int totalExamples() {
+    return order.length;
+  }
+
+  @Override
+  public int inputColumns() {
+    return featureSize;
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return numLabels;
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  @Override
+  public void reset() {
+    cursor = 0;
+    if (shuffle)
+      shuffleOrder();
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public int cursor() {
+    return cursor;
+  }
+
+  @Override
+  public int numExamples() {
+    return order.length;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return labelNames;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return cursor < order.length;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+}
@@ -1,5 +1,21 @@
 package nnplayground.examples;
 
+import nnplayground.data.AugmentingDataSetIterator;
+import nnplayground.data.ChannelStats;
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.data.ImageAugmenter;
+import nnplayground.data.InputNormalization;
+import nnplayground.data.PrefetchingDataSetIterator;
+import nnplayground.data.StratifiedSplit;
+import nnplayground.data.TensorCache;
+import nnplayground.inference.PredictionCache;
+import nnplayground.train.AsyncCheckpointer;
+import nnplayground.train.EarlyStoppingTrainer;
+import nnplayground.train.MagnitudePruningListener;
+import nnplayground.train.OffHeapBudgetListener;
+import nnplayground.train.TrainingMetricsListener;
+import nnplayground.train.WorkspaceSetup;
+import nnplayground.util.CIFAR10;
 import org.apache.commons.io.FilenameUtils;
 import org.datavec.image.loader.CifarLoader;
 import org.datavec.image.loader.NativeImageLoader;
@@ -18,6 +34,7 @@ import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.buffer.DataBuffer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.slf4j.Logger;
@@ -58,7 +75,9 @@ public class Cifar {
     private static int iterations = 1;
     private static int freIterations = 50;
     private static int seed = 123;
-    private static boolean preProcessCifar = false;//use Zagoruyko's preprocess for Cifar
+    // -Dcifar.normalization=zagoruyko uses Zagoruyko's preprocess for Cifar (scale | standardize | zagoruyko)
+    private static String normalizationType = System.getProperty("cifar.normalization", "scale");
+    private static boolean preProcessCifar = "zagoruyko".equals(normalizationType);
     private static int epochs = 50;
 
     public static void main(String[] args) throws Exception {
@@ -68,21 +87,103 @@ public class Cifar {
 
         //train model and eval model
         MultiLayerNetwork model = cf.trainModelByCifarWithNet();//ignore
+        // checkpoints are written in the background, a restarted run continues from the latest one
+        File checkpoints = new File(DATA_PATH + "checkpoints");
+        AsyncCheckpointer checkpointer = new AsyncCheckpointer(checkpoints, "cifar",
+            Integer.getInteger("checkpoint.iterations", 500), Long.getLong("checkpoint.minutes", 10), 3);
+        AsyncCheckpointer.Checkpoint checkpoint = AsyncCheckpointer.latest(checkpoints, "cifar");
+        if (checkpoint != null && !Boolean.getBoolean("checkpoint.noResume"))
+            model = checkpointer.restore(checkpoint);
 //        UIServer uiServer = UIServer.getInstance();
 //        StatsStorage statsStorage = new InMemoryStatsStorage();
 //        uiServer.attach(statsStorage);
-        model.setListeners(new ScoreIterationListener(freIterations)); // new StatsListener( statsStorage),
-
-        CifarDataSetIterator cifar = new CifarDataSetIterator(batchSize, numSamples,
-            new int[] {height, width, channels}, preProcessCifar, true);
-        CifarDataSetIterator cifarEval = new CifarDataSetIterator(batchSize, 10000,
-            new int[] {height, width, channels}, preProcessCifar, false);
+        model.setListeners(new ScoreIterationListener(freIterations), checkpointer); // new StatsListener( statsStorage),
+
+        DataSetIterator cifar;
+        DataSetIterator cifarValidation;
+        DataSetIterator cifarEval;
+        // saved with the model, inference normalizes raw images the same way
+        InputNormalization normalization;
+        // early stopping validates on a stratified part of the training data held out from training,
+        // the test set is only used for the final evaluation
+        double validationFraction = Double.parseDouble(System.getProperty("earlyStopping.fraction", "0.1"));
+        if (preProcessCifar) {
+            // Zagoruyko's preprocessing runs once, later runs map the cached tensors. The cache files are
+            // keyed by the content of the CIFAR-10 batches and the parameters, so a changed dataset or
+            // image size writes new ones instead of reusing stale tensors
+            File batchesDir = CIFAR10.prepare();
+            File cacheDir = batchesDir.getParentFile();
+            String key = height + "x" + width + "x" + channels + "-"
+                + ChannelStats.contentKey(CifarBinaryDataSetIterator.dataFiles(batchesDir, true))
+                + ChannelStats.contentKey(CifarBinaryDataSetIterator.dataFiles(batchesDir, false));
+            TensorCache trainCache = TensorCache.openOrWrite(new File(cacheDir, "zagoruyko-train-" + numSamples + "-" + key + ".tensors"),
+                () -> new CifarDataSetIterator(batchSize, numSamples,
+                    new int[] {height, width, channels}, preProcessCifar, true), batchSize, false, seed);
+            int[][] split = StratifiedSplit.split(trainCache.fileExamples(), trainCache::label, validationFraction, seed);
+            cifar = trainCache.subset(split[0], batchSize, true, seed);
+            cifarValidation = trainCache.subset(split[1], batchSize, false, seed);
+            cifarEval = TensorCache.openOrWrite(new File(cacheDir, "zagoruyko-test-10000-" + key + ".tensors"),
+                () -> new CifarDataSetIterator(batchSize, 10000,
+                    new int[] {height, width, channels}, preProcessCifar, false), batchSize, false, seed);
+            normalization = InputNormalization.zagoruyko();
+        } else {
+            // read the extracted binary batches directly through memory mapping
+            File batchesDir = CIFAR10.prepare();
+            // -Dcifar.normalization=standardize uses per-channel statistics persisted next to the batches
+            boolean standardize = "standardize".equals(normalizationType);
+            CifarBinaryDataSetIterator all =
+                new CifarBinaryDataSetIterator(batchesDir, true, batchSize, numSamples, false, !standardize, seed);
+            int[][] split = StratifiedSplit.split(all, validationFraction, seed);
+            CifarBinaryDataSetIterator train = all.subset(split[0], batchSize, true, seed);
+            cifarValidation = all.subset(split[1], batchSize, false, seed);
+            cifar = train;
+            // random crops, flips and colour jitter on the raw bytes, -Dcifar.augment=false trains on the plain images
+            if (!"false".equals(System.getProperty("cifar.augment"))) {
+                AugmentingDataSetIterator augmenting = new AugmentingDataSetIterator(train, ImageAugmenter.cifar(),
+                    batchSize, true, !standardize, Integer.getInteger("cifar.augmentThreads", 2), seed);
+                // seeded by the checkpointed epoch, a resumed run doesn't repeat the first epoch's augmentations
+                augmenting.setEpochSource(checkpointer::getEpoch);
+                cifar = augmenting;
+            }
+            cifarEval = new CifarBinaryDataSetIterator(batchesDir, false, batchSize, 10000, false, !standardize, seed);
+            normalization = InputNormalization.scale();
+            if (standardize) {
+                // statistics of the training part only, the held-out part must not leak into them
+                normalization = InputNormalization.standardize(ChannelStats.forCifar(batchesDir, split[0]));
+                cifar.setPreProcessor(normalization);
+                cifarValidation.setPreProcessor(normalization);
+                cifarEval.setPreProcessor(normalization);
+            }
+        }
 
         labelStr = String.join(",", cifar.getLabels().toArray(new String[cifar.getLabels().size()]));
-        for ( int i = 0; i < epochs; i ++ ) {
-            System.out.println("Epoch=====================" + i);
-            model.fit(cifar);
+        // prepare the next batches while the network trains on the current one
+        cifar = checkpointer.wrap(new PrefetchingDataSetIterator(cifar, 8, 2));
+        // flat off-heap memory: pre-sized workspace, -Dworkspace.budgetMB fails fast when exceeded
+        WorkspaceSetup.presize(model.getLayerWiseConfigurations(), InputType.convolutional(height, width, channels), batchSize);
+        OffHeapBudgetListener budget = new OffHeapBudgetListener(Long.getLong("workspace.budgetMB", 0) * 1024 * 1024, 500);
+        model.addListeners(budget);
+        // -Dprune.sparsity=0.9 prunes ffn1 and ffn2 gradually from the second epoch to the middle of training
+        double sparsity = Double.parseDouble(System.getProperty("prune.sparsity", "0"));
+        if (sparsity > 0) {
+            int iterationsPerEpoch = cifar.numExamples() / batchSize;
+            model.addListeners(new MagnitudePruningListener(Arrays.asList("ffn1", "ffn2"), 0, sparsity,
+                iterationsPerEpoch, iterationsPerEpoch * Math.max(2, epochs / 2), 100));
         }
+        // throughput, time split, memory and GC per iteration and epoch (also exposed via JMX)
+        TrainingMetricsListener metrics =
+            new TrainingMetricsListener("cifar", new File(DATA_PATH + "cifar-metrics.csv"), freIterations);
+        model.addListeners(metrics);
+        cifar = metrics.wrap(cifar);
+        // validates on the held-out part of the training data and stops once the accuracy plateaus
+        EarlyStoppingTrainer trainer = new EarlyStoppingTrainer(model, cifar, cifarValidation,
+            Integer.getInteger("earlyStopping.interval", 0), Integer.getInteger("earlyStopping.patience", 3),
+            Double.parseDouble(System.getProperty("earlyStopping.minDelta", "0.001")), epochs);
+        // the best parameters and the patience count survive a restart
+        checkpointer.track(trainer);
+        trainer.fit(checkpointer.getEpoch());
+        checkpointer.close();
+        budget.report();
 
         log.info("=====eval model========");
         Evaluation eval = new Evaluation(cifarEval.getLabels());
@@ -93,8 +194,8 @@ public class Cifar {
         }
         System.out.println(eval.stats());
 
-        cf.testModelByUnkownImage(model);
-        cf.saveModel(model, "trainModelByCifarWithAlexNet_model.json");
+        cf.testModelByUnkownImage(model, normalization);
+        cf.saveModel(model, "trainModelByCifarWithAlexNet_model.json", normalization);
     }
 
 
@@ -102,7 +203,8 @@ public class Cifar {
         log.info("this is Net for the cifar");
         MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
             .seed(seed)
-            .cacheMode(CacheMode.DEVICE)
+            .trainingWorkspaceMode(WorkspaceSetup.mode()) // reuse activation and gradient memory between iterations
+            .inferenceWorkspaceMode(WorkspaceSetup.mode())
             .updater(Updater.ADAM)
             .iterations(iterations)
             .gradientNormalization(GradientNormalization.RenormalizeL2PerLayer) // normalize to prevent vanishing or exploding gradients
@@ -161,18 +263,23 @@ public class Cifar {
     }
 
 
-    public MultiLayerNetwork saveModel(MultiLayerNetwork model, String fileName) {
+    public MultiLayerNetwork saveModel(MultiLayerNetwork model, String fileName, InputNormalization normalization) {
         File locationModelFile = new File(DATA_PATH + fileName);
         boolean saveUpdater = false;
         try {
             ModelSerializer.writeModel(model,locationModelFile,saveUpdater);
+            normalization.save(locationModelFile);
         } catch (Exception e) {
             log.error("Saving model is not success !",e);
         }
         return model;
     }
 
-    public void testModelByUnkownImage(MultiLayerNetwork model) {
+    public void testModelByUnkownImage(MultiLayerNetwork model, InputNormalization normalization) {
+        if (normalization.type() == InputNormalization.Type.ZAGORUYKO) {
+            log.warn("Zagoruyko preprocessing can't be applied to single images, skipping the analysis");
+            return;
+        }
         JFileChooser fc = new JFileChooser();
         int ret = fc.showOpenDialog(null);
         String filename = "";
@@ -180,7 +287,7 @@ public class Cifar {
             File file = fc.getSelectedFile();
             filename = file.getAbsolutePath();
         }
-        AnalysisUnkownImage ui = new AnalysisUnkownImage(filename,model);
+        AnalysisUnkownImage ui = new AnalysisUnkownImage(filename,model,normalization);
         ui.showGUI();
     }
 
@@ -191,8 +298,16 @@ public class Cifar {
 
         private JTextArea jta;
         MultiLayerNetwork model;
-        public AnalysisUnkownImage(String filename, MultiLayerNetwork model){
+        // the same files classified again are answered from the cache
+        private final PredictionCache cache = PredictionCache.shared();
+        private final long modelVersion;
+        // Use NativeImageLoader to convert to numerical matrix
+        private final NativeImageLoader loader = new NativeImageLoader(height, width, 3);
+        private final InputNormalization normalization;
+        public AnalysisUnkownImage(String filename, MultiLayerNetwork model, InputNormalization normalization){
             this.model = model;
+            this.normalization = normalization;
+            this.modelVersion = PredictionCache.version(model);
             JLabel label1=new JLabel("Directory/File(Plz fill in path");
             JLabel label3=new JLabel("  skymind.ai");
             JLabel label4=new JLabel("welcome to here  ");
@@ -276,8 +391,6 @@ public class Cifar {
                     String  formatAllows = StringUtils.arrayToString(NativeImageLoader.ALLOWED_FORMATS);
                     if(formatAllows.contains(suffix)){
                         File file = files[i];
-                        // Use NativeImageLoader to convert to numerical matrix
-                        NativeImageLoader loader = new NativeImageLoader(height, width, 3);
                         // Get the image into an INDarray
                         INDArray image = null;
                         try {
@@ -288,9 +401,9 @@ public class Cifar {
                         if (image == null) {
                             return;
                         }
-                       /* DataNormalization scaler = new ImagePreProcessingScaler(0,1);
-                        scaler.transform(image);*/
-                        INDArray output = model.output(image);
+                        // normalized the way the network was trained
+                        normalization.transform(image);
+                        INDArray output = cache.output(modelVersion, image, model::output);
 
                         log.info("## The Neural Nets Pediction ##");
                         log.info("## list of probabilities per label ##");
@@ -300,7 +413,8 @@ public class Cifar {
 
                         String modelResult = output.toString();
 
-                        int [] predict = model.predict(image);
+                        // the prediction is the argmax of the output, no second forward pass
+                        int [] predict = {Nd4j.argMax(output, 1).getInt(0)};
                         modelResult += "===" + Arrays.toString(predict);
                         jta.append("the file chosen:");
                         jta.append("\n");
@@ -314,6 +428,7 @@ public class Cifar {
 
                 }
             }
+            log.info("Prediction cache: {}", cache);
         }
         public void showGUI() {
             setSize(560,500);
@@ -1,10 +1,25 @@
 package nnplayground.examples;
 
+import nnplayground.data.ChannelStats;
+import nnplayground.data.InputNormalization;
+import nnplayground.data.ManifestImageRecordReader;
+import nnplayground.data.ManifestIndex;
+import nnplayground.data.PackedImageCache;
+import nnplayground.data.PackedImageDataSetIterator;
+import nnplayground.data.PrefetchingDataSetIterator;
+import nnplayground.data.StratifiedSplit;
+import nnplayground.data.TarGzImageDataSetIterator;
+import nnplayground.inference.MappedModel;
+import nnplayground.train.AsyncCheckpointer;
+import nnplayground.train.AsyncStatsStorageRouter;
+import nnplayground.train.EarlyStoppingTrainer;
+import nnplayground.train.OffHeapBudgetListener;
+import nnplayground.train.TimedListener;
+import nnplayground.train.TrainingMetricsListener;
+import nnplayground.train.WorkspaceSetup;
 import nnplayground.util.DataUtilities;
-import org.datavec.api.io.labels.ParentPathLabelGenerator;
-import org.datavec.api.split.FileSplit;
-import org.datavec.image.loader.NativeImageLoader;
-import org.datavec.image.recordreader.ImageRecordReader;
+import nnplayground.util.ModelLocations;
+import nnplayground.util.SegmentedDownloader;
 import org.deeplearning4j.api.storage.StatsStorage;
 import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
@@ -23,12 +38,13 @@ import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.ui.api.UIServer;
 import org.deeplearning4j.ui.stats.StatsListener;
+import org.deeplearning4j.ui.stats.api.StatsUpdateConfiguration;
+import org.deeplearning4j.ui.stats.impl.DefaultStatsUpdateConfiguration;
+import org.deeplearning4j.ui.storage.FileStatsStorage;
 import org.deeplearning4j.ui.storage.InMemoryStatsStorage;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,7 +52,6 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
 
 /**
  * Handwritten digits image classification on MNIST dataset (99% accuracy). This example will
@@ -52,6 +67,12 @@ public class MnistClassifier {
   private static final String basePath = "./var/data" + "/mnist";
   private static final String dataUrl =
       "http://github.com/myleott/mnist_png/raw/master/mnist_png.tar.gz";
+  // SHA-256 of mnist_png.tar.gz; without it the checksum of the first download is recorded and
+  // only that copy is trusted later
+  private static final String dataSha256 = System.getProperty("mnist.sha256");
+  // "packed" (default), "tar" to train straight from the downloaded archive or "manifest" to
+  // read the png files through a persistent index
+  private static final String dataSource = System.getProperty("mnist.source", "packed");
 
   public static void main(String[] args) throws Exception {
 
@@ -59,10 +80,12 @@ public class MnistClassifier {
     UIServer uiServer = UIServer.getInstance();
 
     // Configure where the network information (gradients, score vs. time etc) is to be stored.
-    // Here: store in memory.
-    StatsStorage statsStorage =
-        new InMemoryStatsStorage(); // Alternative: new FileStatsStorage(File), for saving and
-                                    // loading later
+    // Here: in a file the UI reads from, so the heap stays flat however long training runs
+    // (-Dstats.storage=memory for an InMemoryStatsStorage).
+    new File(basePath).mkdirs();
+    StatsStorage statsStorage = "memory".equals(System.getProperty("stats.storage", "file"))
+        ? new InMemoryStatsStorage()
+        : new FileStatsStorage(new File(basePath + "/mnist-stats.dl4j"));
 
     // Attach the StatsStorage instance to the UI: this allows the contents of the StatsStorage to
     // be visualized
@@ -77,116 +100,239 @@ public class MnistClassifier {
     int iterations = 1;
 
     int seed = 1234;
-    Random randNumGen = new Random(seed);
 
     log.info("Data load and vectorization...");
     String localFilePath = basePath + "/mnist_png.tar.gz";
-    if (DataUtilities.downloadFile(dataUrl, localFilePath))
+    if (dataSha256 == null)
+      log.warn("No -Dmnist.sha256 given, {} is not verified against a pinned checksum", dataUrl);
+    if (new SegmentedDownloader().download(dataUrl, new File(localFilePath), dataSha256))
       log.debug("Data downloaded from {}", dataUrl);
-    if (!new File(basePath + "/mnist_png").exists())
-      DataUtilities.extractTarGz(localFilePath, basePath);
-
-    // vectorization of train data
-    File trainData = new File(basePath + "/mnist_png/training");
-    FileSplit trainSplit = new FileSplit(trainData, NativeImageLoader.ALLOWED_FORMATS, randNumGen);
-    ParentPathLabelGenerator labelMaker =
-        new ParentPathLabelGenerator(); // parent path as the image label
-    ImageRecordReader trainRR = new ImageRecordReader(height, width, channels, labelMaker);
-    trainRR.initialize(trainSplit);
-    DataSetIterator trainIter = new RecordReaderDataSetIterator(trainRR, batchSize, 1, outputNum);
-
-    // pixel values from 0-255 to 0-1 (min-max scaling)
-    DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
-    scaler.fit(trainIter);
-    trainIter.setPreProcessor(scaler);
-
-    // vectorization of test data
-    File testData = new File(basePath + "/mnist_png/testing");
-    FileSplit testSplit = new FileSplit(testData, NativeImageLoader.ALLOWED_FORMATS, randNumGen);
-    ImageRecordReader testRR = new ImageRecordReader(height, width, channels, labelMaker);
-    testRR.initialize(testSplit);
-    DataSetIterator testIter = new RecordReaderDataSetIterator(testRR, batchSize, 1, outputNum);
-    testIter.setPreProcessor(scaler); // same normalization for better results
+    DataSetIterator trainIter;
+    DataSetIterator validationIter;
+    DataSetIterator testIter;
+    // pixel values from 0-255 to 0-1 (min-max scaling), saved with the model for inference
+    InputNormalization normalization = InputNormalization.scale();
+    // early stopping validates on a stratified part of the training images held out from
+    // training, the test set is only used for the final evaluation
+    double validationFraction =
+        Double.parseDouble(System.getProperty("earlyStopping.fraction", "0.1"));
+    if ("tar".equals(dataSource)) {
+      // stream the images straight out of the archive, no extraction step
+      File archive = new File(localFilePath);
+      int workers = Runtime.getRuntime().availableProcessors();
+      // the archive is ordered by digit, the shuffle buffer holds two digits' worth of images
+      trainIter = new TarGzImageDataSetIterator(archive, "mnist_png/training/", height, width,
+          channels, batchSize, TarGzImageDataSetIterator.SHUFFLE_LABEL_GROUPS, seed, workers,
+          validationFraction, false, seed);
+      validationIter = new TarGzImageDataSetIterator(archive, "mnist_png/training/", height,
+          width, channels, batchSize, 0, seed, workers, validationFraction, true, seed);
+      testIter = new TarGzImageDataSetIterator(archive, "mnist_png/testing/", height, width,
+          channels, batchSize, 0, seed);
+    } else if ("manifest".equals(dataSource)) {
+      // a persistent index instead of listing the directories on every run, refreshed
+      // incrementally; -Dmnist.shard=k/n trains on the k-th of n disjoint shards
+      if (!new File(basePath + "/mnist_png").exists())
+        DataUtilities.extractTarGz(localFilePath, basePath);
+      ManifestIndex trainManifest = ManifestIndex.open(new File(basePath + "/mnist_png/training"),
+          new File(basePath + "/mnist-training.manifest"), false, false);
+      ManifestIndex testManifest = ManifestIndex.open(new File(basePath + "/mnist_png/testing"),
+          new File(basePath + "/mnist-testing.manifest"), false, false);
+      String[] shard = System.getProperty("mnist.shard", "0/1").split("/");
+      ManifestIndex[] split = trainManifest.holdOut(validationFraction, seed);
+      trainManifest = split[0].shard(Integer.parseInt(shard[0]), Integer.parseInt(shard[1]));
+      trainIter = new RecordReaderDataSetIterator(new ManifestImageRecordReader(trainManifest,
+          height, width, channels, seed), batchSize, 1, outputNum);
+      validationIter = new RecordReaderDataSetIterator(new ManifestImageRecordReader(split[1],
+          height, width, channels, seed), batchSize, 1, outputNum);
+      testIter = new RecordReaderDataSetIterator(new ManifestImageRecordReader(testManifest,
+          height, width, channels, seed), batchSize, 1, outputNum);
+    } else {
+      // the png files are decoded only once into a packed file which is memory mapped afterwards
+      File trainPack = new File(basePath + "/mnist-training.pack");
+      File testPack = new File(basePath + "/mnist-testing.pack");
+      if ((!trainPack.exists() || !testPack.exists()) && !new File(basePath + "/mnist_png").exists())
+        DataUtilities.extractTarGz(localFilePath, basePath);
+      PackedImageCache trainCache = PackedImageCache.openOrPack(
+          new File(basePath + "/mnist_png/training"), trainPack, height, width, channels);
+      int[][] split = StratifiedSplit.split(trainCache, validationFraction, seed);
+      trainIter = new PackedImageDataSetIterator(trainCache, split[0], batchSize, true, seed);
+      validationIter =
+          new PackedImageDataSetIterator(trainCache, split[1], batchSize, false, seed);
+      testIter = new PackedImageDataSetIterator(PackedImageCache.openOrPack(
+          new File(basePath + "/mnist_png/testing"), testPack, height, width, channels),
+          batchSize, false, seed);
+      // -Dmnist.normalization=standardize uses per-channel statistics of the training part,
+      // persisted next to the pack
+      if ("standardize".equals(System.getProperty("mnist.normalization", "scale")))
+        normalization =
+            InputNormalization.standardize(ChannelStats.forPacked(trainCache, split[0]));
+    }
+
+    trainIter.setPreProcessor(normalization);
+    validationIter.setPreProcessor(normalization);
+    testIter.setPreProcessor(normalization); // same normalization for better results
+    // prepare the next batches while the network trains on the current one
+    trainIter = new PrefetchingDataSetIterator(trainIter, 8, 2);
 
     log.info("Network configuration and training...");
-    Map<Integer, Double> lrSchedule = new HashMap<>();
-    lrSchedule.put(0, 0.06); // iteration #, learning rate
-    lrSchedule.put(200, 0.05);
-    lrSchedule.put(600, 0.028);
-    lrSchedule.put(800, 0.0060);
-    lrSchedule.put(1000, 0.001);
-
-    MultiLayerConfiguration conf =
-        new NeuralNetConfiguration.Builder()
-            .seed(seed)
-            .iterations(iterations)
-            .regularization(true)
-            .l2(0.0005)
-            .learningRate(.01)
-            .learningRateDecayPolicy(LearningRatePolicy.Schedule)
-            .learningRateSchedule(lrSchedule) // overrides the rate set in learningRate
-            .weightInit(WeightInit.XAVIER)
-            .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
-            .updater(Updater.NESTEROVS)
-            .list()
-            .layer(
-                0,
-                new ConvolutionLayer.Builder(5, 5)
-                    .nIn(channels)
-                    .stride(1, 1)
-                    .nOut(20)
-                    .activation(Activation.IDENTITY)
-                    .build())
-            .layer(
-                1,
-                new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
-                    .kernelSize(2, 2)
-                    .stride(2, 2)
-                    .build())
-            .layer(
-                2,
-                new ConvolutionLayer.Builder(5, 5)
-                    .stride(1, 1) // nIn need not specified in later layers
-                    .nOut(50)
-                    .activation(Activation.IDENTITY)
-                    .build())
-            .layer(
-                3,
-                new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
-                    .kernelSize(2, 2)
-                    .stride(2, 2)
-                    .build())
-            .layer(4, new DenseLayer.Builder().activation(Activation.RELU).nOut(500).build())
-            .layer(
-                5,
-                new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
-                    .nOut(outputNum)
-                    .activation(Activation.SOFTMAX)
-                    .build())
-            .setInputType(
-                InputType.convolutionalFlat(28, 28, 1)) // InputType.convolutional for normal image
-            .backprop(true)
-            .pretrain(false)
-            .build();
+    MultiLayerConfiguration conf = buildConfiguration(seed, iterations, channels, outputNum);
 
     MultiLayerNetwork net = new MultiLayerNetwork(conf);
     net.init();
-    net.setListeners(new ScoreIterationListener(10));
-    // Then add the StatsListener to collect this information from the network, as it trains
-    net.addListeners(new StatsListener(statsStorage));
+    // checkpoints are written in the background, a restarted run continues from the latest one
+    File checkpoints = new File(basePath + "/checkpoints");
+    AsyncCheckpointer checkpointer = new AsyncCheckpointer(checkpoints, "mnist",
+        Integer.getInteger("checkpoint.iterations", 500), Long.getLong("checkpoint.minutes", 10),
+        3);
+    AsyncCheckpointer.Checkpoint checkpoint = AsyncCheckpointer.latest(checkpoints, "mnist");
+    if (checkpoint != null && !Boolean.getBoolean("checkpoint.noResume"))
+      net = checkpointer.restore(checkpoint);
+    trainIter = checkpointer.wrap(trainIter);
+    net.setListeners(new ScoreIterationListener(10), checkpointer);
+    // Then add the StatsListener to collect this information from the network, as it trains.
+    // It collects every stats.frequency (10) iterations, parameter and update histograms only
+    // with -Dstats.histograms=true, and hands the records to a background writer which keeps
+    // every stats.keepEvery-th (1) of them.
+    boolean histograms = Boolean.getBoolean("stats.histograms");
+    StatsUpdateConfiguration statsConfig = new DefaultStatsUpdateConfiguration.Builder()
+        .reportingFrequency(Integer.getInteger("stats.frequency", 10))
+        .collectHistogramsParameters(histograms)
+        .collectHistogramsUpdates(histograms)
+        .collectHistogramsGradients(false)
+        .collectHistogramsActivations(false)
+        .collectMeanActivations(false)
+        .collectStdevActivations(false)
+        .collectMeanMagnitudesActivations(false)
+        .build();
+    AsyncStatsStorageRouter statsRouter = new AsyncStatsStorageRouter(statsStorage, 1024,
+        Integer.getInteger("stats.keepEvery", 1));
+    TimedListener statsListener = new TimedListener("StatsListener",
+        new StatsListener(statsRouter, null, statsConfig, null, null), 500);
+    net.addListeners(statsListener);
+    // throughput, time split, memory and GC per iteration and epoch (also exposed via JMX)
+    TrainingMetricsListener metrics =
+        new TrainingMetricsListener("mnist", new File(basePath + "/mnist-metrics.csv"), 10);
+    net.addListeners(metrics);
+    trainIter = metrics.wrap(trainIter);
+    // flat off-heap memory: pre-sized workspace, -Dworkspace.budgetMB fails fast when exceeded
+    // sized for the network that trains, which may come from a checkpoint
+    WorkspaceSetup.presize(net.getLayerWiseConfigurations(),
+        InputType.convolutionalFlat(height, width, channels), batchSize);
+    OffHeapBudgetListener budget =
+        new OffHeapBudgetListener(Long.getLong("workspace.budgetMB", 0) * 1024 * 1024, 500);
+    net.addListeners(budget);
 
     log.debug("Total num of params: {}", net.numParams());
 
-    // evaluation while training (the score should go down)
-    for (int i = 0; i < nEpochs; i++) {
-      net.fit(trainIter);
-      log.info("Completed epoch {}", i);
-      Evaluation eval = net.evaluate(testIter);
-      log.info(eval.stats());
-      trainIter.reset();
-      testIter.reset();
-    }
+    // validation on the held-out training images, stops once the accuracy plateaus
+    EarlyStoppingTrainer trainer = new EarlyStoppingTrainer(net, trainIter, validationIter,
+        Integer.getInteger("earlyStopping.interval", 0),
+        Integer.getInteger("earlyStopping.patience", 3),
+        Double.parseDouble(System.getProperty("earlyStopping.minDelta", "0.001")), nEpochs);
+    // the best parameters and the patience count survive a restart
+    checkpointer.track(trainer);
+    trainer.fit(checkpointer.getEpoch());
+    Evaluation eval = net.evaluate(testIter);
+    log.info(eval.stats());
+    checkpointer.close();
+    budget.report();
+    statsListener.report();
+    statsRouter.close();
+
+    ModelLocations.mnistDir().mkdirs();
+    ModelSerializer.writeModel(net, ModelLocations.mnistModel(), true);
+    // parameters only, memory mapped at startup by MnistClassifierUI and InferenceServer
+    MappedModel.write(net, ModelLocations.mnistMappedModel());
+    // inference normalizes its inputs the way the model was trained
+    normalization.save(ModelLocations.mnistModel());
+    normalization.save(ModelLocations.mnistMappedModel());
+  }
+
+  /**
+   * The LeNet configuration used for MNIST.
+   * @param seed Random seed.
+   * @param iterations Iterations per minibatch.
+   * @param channels Number of input channels.
+   * @param outputNum Number of classes.
+   * @return The network configuration.
+   */
+  public static MultiLayerConfiguration buildConfiguration(int seed, int iterations, int channels,
+                                                           int outputNum) {
+    return buildConfiguration(seed, iterations, channels, outputNum, 0.06, 0, 0.0005);
+  }
+
+  /**
+   * The LeNet configuration with tunable hyperparameters.
+   * @param learningRate Initial learning rate, the schedule decays it by the same factors as the
+   *                     default schedule starting at 0.06.
+   * @param l1 L1 regularization.
+   * @param l2 L2 regularization.
+   * @return The network configuration.
+   */
+  public static MultiLayerConfiguration buildConfiguration(int seed, int iterations, int channels,
+                                                           int outputNum, double learningRate,
+                                                           double l1, double l2) {
+    double scale = learningRate / 0.06;
+    Map<Integer, Double> lrSchedule = new HashMap<>();
+    lrSchedule.put(0, 0.06 * scale); // iteration #, learning rate
+    lrSchedule.put(200, 0.05 * scale);
+    lrSchedule.put(600, 0.028 * scale);
+    lrSchedule.put(800, 0.0060 * scale);
+    lrSchedule.put(1000, 0.001 * scale);
 
-    ModelSerializer.writeModel(net, new File(basePath + "/minist-model.zip"), true);
+    return new NeuralNetConfiguration.Builder()
+        .seed(seed)
+        .iterations(iterations)
+        .regularization(true)
+        .l1(l1)
+        .l2(l2)
+        .learningRate(.01)
+        .learningRateDecayPolicy(LearningRatePolicy.Schedule)
+        .learningRateSchedule(lrSchedule) // overrides the rate set in learningRate
+        .weightInit(WeightInit.XAVIER)
+        .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+        .updater(Updater.NESTEROVS)
+        .trainingWorkspaceMode(WorkspaceSetup.mode()) // reuse memory between iterations
+        .inferenceWorkspaceMode(WorkspaceSetup.mode())
+        .list()
+        .layer(
+            0,
+            new ConvolutionLayer.Builder(5, 5)
+                .nIn(channels)
+                .stride(1, 1)
+                .nOut(20)
+                .activation(Activation.IDENTITY)
+                .build())
+        .layer(
+            1,
+            new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
+                .kernelSize(2, 2)
+                .stride(2, 2)
+                .build())
+        .layer(
+            2,
+            new ConvolutionLayer.Builder(5, 5)
+                .stride(1, 1) // nIn need not specified in later layers
+                .nOut(50)
+                .activation(Activation.IDENTITY)
+                .build())
+        .layer(
+            3,
+            new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
+                .kernelSize(2, 2)
+                .stride(2, 2)
+                .build())
+        .layer(4, new DenseLayer.Builder().activation(Activation.RELU).nOut(500).build())
+        .layer(
+            5,
+            new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+                .nOut(outputNum)
+                .activation(Activation.SOFTMAX)
+                .build())
+        .setInputType(
+            InputType.convolutionalFlat(28, 28, 1)) // InputType.convolutional for normal image
+        .backprop(true)
+        .pretrain(false)
+        .build();
   }
 }
@@ -1,5 +1,9 @@
 package nnplayground.examples;
 
+import nnplayground.data.InputNormalization;
+import nnplayground.inference.MappedModel;
+import nnplayground.inference.PredictionCache;
+import nnplayground.util.ModelLocations;
 import javafx.application.Application;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.geometry.Pos;
@@ -18,14 +22,16 @@ import javafx.scene.shape.StrokeLineCap;
 import javafx.stage.Stage;
 import org.datavec.image.loader.NativeImageLoader;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
-import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 
 /**
  * Test UI for MNIST classifier.
@@ -37,16 +43,29 @@ import java.io.IOException;
 @SuppressWarnings("restriction")
 public class MnistClassifierUI extends Application {
 
-  private static final String basePath = System.getProperty("java.io.tmpdir") + "/mnist";
+  private static final Logger log = LoggerFactory.getLogger(MnistClassifierUI.class);
   private final int canvasWidth = 150;
   private final int canvasHeight = 150;
   private MultiLayerNetwork net; // trained model
+  private final long modelVersion;
+  private final InputNormalization normalization; // the one the model was trained with
+  private final PredictionCache cache = PredictionCache.shared();
+  private boolean firstPrediction = true;
 
   public MnistClassifierUI() throws IOException {
-    File model = new File(basePath + "/minist-model.zip");
+    // the memory mapped model starts faster, fall back to the ModelSerializer zip
+    File model = ModelLocations.mnistMappedModel();
     if (!model.exists())
-      throw new IOException("Can't find the model");
-    net = ModelSerializer.restoreMultiLayerNetwork(model);
+      model = ModelLocations.mnistModel();
+    if (!model.exists())
+      throw new IOException("Can't find the model in " + ModelLocations.mnistDir());
+    net = MappedModel.loadAny(model);
+    normalization = InputNormalization.forInference(model);
+    modelVersion = PredictionCache.version(net);
+    // -Dui.warmUp=0 to see the cold first prediction
+    int warmUp = Integer.getInteger("ui.warmUp", 20);
+    if (warmUp > 0)
+      MappedModel.warmUp(net, new int[] {1, 28 * 28}, warmUp, 1);
   }
 
   public static void main(String[] args) throws Exception {
@@ -124,12 +143,20 @@ public class MnistClassifierUI extends Application {
   }
 
   private void predictImage(BufferedImage img, Label lbl) throws IOException {
+    long start = System.nanoTime();
     NativeImageLoader loader = new NativeImageLoader(28, 28, 1, true);
     INDArray image = loader.asRowVector(img);
-    ImagePreProcessingScaler scaler = new ImagePreProcessingScaler(0, 1);
-    scaler.transform(image);
-    INDArray output = net.output(image);
-    lbl.setText("Prediction: " + net.predict(image)[0] + "\n " + output);
+    normalization.transform(image);
+    // pressing enter again on an unchanged canvas is answered from the cache
+    INDArray output = cache.output(modelVersion, image, net::output);
+    log.debug("Prediction cache: {}", cache);
+    if (firstPrediction) {
+      firstPrediction = false;
+      log.info("First prediction took {} ms, {} ms after JVM start",
+          (System.nanoTime() - start) / 1000000,
+          System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime());
+    }
+    lbl.setText("Prediction: " + Nd4j.argMax(output, 1).getInt(0) + "\n " + output);
   }
 
 }
@@ -0,0 +1,357 @@
+package nnplayground.inference;
+
+import nnplayground.data.InputNormalization;
+import org.datavec.image.loader.NativeImageLoader;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless bulk classification of all images below a directory with a model saved by
+ * Cifar.saveModel or MnistClassifier.
+ *
+ * <p>The directory tree is walked in parallel, images are decoded on a thread pool and grouped
+ * into fixed size batches, each classified with a single forward pass. Duplicate images are looked
+ * up in the shared {@link PredictionCache} and only classified once. Results are written as CSV
+ * ("path,index,label,probability") or, if the output file ends with ".bin", as compact binary
+ * records (UTF path, short index, float probability). The decoded pixels are normalized with the
+ * {@link InputNormalization} saved with the model.
+ *
+ * <pre>
+ * BulkImageClassifier --model model.zip --input dir --output result.csv
+ *     [--height 32] [--width 32] [--channels 3] [--batch 64]
+ *     [--threads n] [--labels a,b,c]
+ * </pre>
+ */
+public class BulkImageClassifier {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BulkImageClassifier.class);
+
+  private static final Path END_OF_PATHS = Paths.get("");
+  private static final Sample END_OF_SAMPLES = new Sample(null, null);
+
+  private final MultiLayerNetwork model;
+  private final int height;
+  private final int width;
+  private final int channels;
+  private final InputNormalization normalization;
+  private final int batchSize;
+  private final int threads;
+  private final List<String> labels;
+  private final long modelVersion;
+  private final PredictionCache cache = PredictionCache.shared();
+  private final Set<String> formats =
+      new HashSet<>(Arrays.asList(NativeImageLoader.ALLOWED_FORMATS));
+
+  private final AtomicLong failed = new AtomicLong();
+
+  public BulkImageClassifier(MultiLayerNetwork model, int height, int width, int channels,
+                             InputNormalization normalization, int batchSize, int threads,
+                             List<String> labels) {
+    this.model = model;
+    this.height = height;
+    this.width = width;
+    this.channels = channels;
+    this.normalization = normalization;
+    this.batchSize = batchSize;
+    this.threads = threads;
+    this.labels = labels;
+    this.modelVersion = PredictionCache.version(model);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> opts = parseArgs(args);
+    if (!opts.containsKey("model") || !opts.containsKey("input") || !opts.containsKey("output")) {
+      System.err.println("Usage: BulkImageClassifier --model <zip|nnm> --input <dir>"
+          + " --output <file> [--height 32] [--width 32] [--channels 3] [--batch 64]"
+          + " [--threads n] [--labels a,b,c]");
+      System.exit(1);
+    }
+    File modelFile = new File(opts.get("model"));
+    MultiLayerNetwork model = MappedModel.loadAny(modelFile);
+    List<String> labels = opts.containsKey("labels")
+        ? Arrays.asList(opts.get("labels").split(",")) : Collections.<String>emptyList();
+    BulkImageClassifier classifier = new BulkImageClassifier(model,
+        Integer.parseInt(opts.getOrDefault("height", "32")),
+        Integer.parseInt(opts.getOrDefault("width", "32")),
+        Integer.parseInt(opts.getOrDefault("channels", "3")),
+        InputNormalization.forInference(modelFile),
+        Integer.parseInt(opts.getOrDefault("batch", "64")),
+        Integer.parseInt(opts.getOrDefault("threads",
+            String.valueOf(Runtime.getRuntime().availableProcessors()))),
+        labels);
+    classifier.classify(Paths.get(opts.get("input")), new File(opts.get("output")));
+  }
+
+  static Map<String, String> parseArgs(String[] args) {
+    Map<String, String> opts = new HashMap<>();
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (!args[i].startsWith("--"))
+        throw new IllegalArgumentException("Unexpected argument " + args[i]);
+      opts.put(args[i].substring(2), args[i + 1]);
+    }
+    return opts;
+  }
+
+  /**
+   * Classify all images below a directory.
+   * @param root Root directory.
+   * @param output Result file, binary if it ends with ".bin", else CSV.
+   * @return Number of classified images.
+   * @throws Exception IO or execution error.
+   */
+  public long classify(Path root, File output) throws Exception {
+    BlockingQueue<Path> paths = new ArrayBlockingQueue<>(16 * batchSize);
+    BlockingQueue<Sample> samples = new ArrayBlockingQueue<>(4 * batchSize);
+    long start = System.nanoTime();
+
+    ForkJoinPool walkers = new ForkJoinPool(Math.max(2, threads / 2));
+    // decoder threads plus one to signal the end of the walk and one for the end of decoding,
+    // daemons so a failed run can't keep the JVM alive
+    ExecutorService decoders = Executors.newFixedThreadPool(threads + 2, r -> {
+      Thread thread = new Thread(r, "bulk-decoder");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ForkJoinTask<Void> walk = walkers.submit(new Walk(root, paths));
+    decoders.submit(() -> {
+      try {
+        walk.join();
+      } finally {
+        // interruptible, shutdownNow() stops this task even if the decoders are gone
+        for (int i = 0; i < threads; i++)
+          paths.put(END_OF_PATHS);
+      }
+      return null;
+    });
+    CountDownLatch decodersDone = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      decoders.submit(() -> {
+        NativeImageLoader loader = new NativeImageLoader(height, width, channels);
+        try {
+          Path path;
+          while ((path = paths.take()) != END_OF_PATHS) {
+            try {
+              float[] pixels = loader.asMatrix(path.toFile()).dup('c').data().asFloat();
+              samples.put(new Sample(path, pixels));
+            } catch (IOException | RuntimeException e) {
+              failed.incrementAndGet();
+              LOG.warn("Can't decode {}: {}", path, e.getMessage());
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          decodersDone.countDown();
+        }
+      });
+    }
+    decoders.submit(() -> {
+      try {
+        decodersDone.await();
+        samples.put(END_OF_SAMPLES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    long count = 0;
+    try (ResultWriter writer = output.getName().endsWith(".bin")
+        ? new BinaryResultWriter(output) : new CsvResultWriter(output)) {
+      int imageSize = channels * height * width;
+      float[] features = new float[batchSize * imageSize];
+      List<Path> batchPaths = new ArrayList<>(batchSize);
+      boolean done = false;
+      while (!done) {
+        Sample sample = samples.take();
+        if (sample == END_OF_SAMPLES) {
+          done = true;
+        } else {
+          System.arraycopy(sample.pixels, 0, features, batchPaths.size() * imageSize, imageSize);
+          batchPaths.add(sample.path);
+        }
+        if (batchPaths.size() == batchSize || (done && !batchPaths.isEmpty())) {
+          classifyBatch(features, batchPaths, writer);
+          count += batchPaths.size();
+          batchPaths.clear();
+        }
+      }
+    } finally {
+      walkers.shutdownNow();
+      decoders.shutdownNow();
+      // on failure wake up producers blocked on a full queue
+      paths.clear();
+      samples.clear();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    LOG.info("Classified {} images in {} s ({} images/sec), {} failed to decode", count,
+        String.format("%.1f", seconds), String.format("%.0f", count / seconds), failed.get());
+    LOG.info("Prediction cache: {}", cache);
+    return count;
+  }
+
+  private void classifyBatch(float[] features, List<Path> batchPaths, ResultWriter writer)
+      throws IOException {
+    int n = batchPaths.size();
+    int imageSize = channels * height * width;
+    // duplicate images (in this batch or seen before) are classified only once
+    int[] predicted = new int[n];
+    float[] probability = new float[n];
+    int[] missRow = new int[n];
+    Map<PredictionCache.Key, Integer> misses = new HashMap<>();
+    PredictionCache.Key[] keys = new PredictionCache.Key[n];
+    float[] missFeatures = new float[n * imageSize];
+    for (int i = 0; i < n; i++) {
+      keys[i] = PredictionCache.key(modelVersion, features, i * imageSize, imageSize);
+      Integer row = misses.get(keys[i]);
+      INDArray cached = row == null ? cache.get(keys[i]) : null;
+      if (cached != null) {
+        predicted[i] = Nd4j.argMax(cached, 1).getInt(0);
+        probability[i] = cached.getFloat(predicted[i]);
+        missRow[i] = -1;
+      } else {
+        if (row == null) {
+          row = misses.size();
+          misses.put(keys[i], row);
+          System.arraycopy(features, i * imageSize, missFeatures, row * imageSize, imageSize);
+        }
+        missRow[i] = row;
+      }
+    }
+    if (!misses.isEmpty()) {
+      int m = misses.size();
+      INDArray input = Nd4j.create(Arrays.copyOf(missFeatures, m * imageSize),
+          new int[] {m, channels, height, width}, 'c');
+      normalization.transform(input);
+      INDArray output = model.output(input, false);
+      INDArray best = Nd4j.argMax(output, 1);
+      for (Map.Entry<PredictionCache.Key, Integer> miss : misses.entrySet())
+        cache.put(miss.getKey(), output.getRow(miss.getValue()));
+      for (int i = 0; i < n; i++) {
+        if (missRow[i] >= 0) {
+          predicted[i] = best.getInt(missRow[i]);
+          probability[i] = (float) output.getDouble(missRow[i], predicted[i]);
+        }
+      }
+    }
+    for (int i = 0; i < n; i++)
+      writer.write(batchPaths.get(i), predicted[i], probability[i]);
+  }
+
+  /**
+   * Lists one directory, forks a task per sub directory and queues the image files.
+   */
+  private class Walk extends RecursiveAction {
+    private final Path dir;
+    private final BlockingQueue<Path> paths;
+
+    Walk(Path dir, BlockingQueue<Path> paths) {
+      this.dir = dir;
+      this.paths = paths;
+    }
+
+    @Override
+    protected void compute() {
+      if (!Files.isDirectory(dir)) {
+        queue(dir);
+        return;
+      }
+      List<Walk> subTasks = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+        for (Path child : stream) {
+          if (Files.isDirectory(child)) {
+            subTasks.add(new Walk(child, paths));
+          } else {
+            String name = child.getFileName().toString();
+            if (formats.contains(name.substring(name.lastIndexOf('.') + 1)))
+              queue(child);
+          }
+        }
+      } catch (IOException e) {
+        LOG.warn("Can't list {}: {}", dir, e.getMessage());
+      }
+      invokeAll(subTasks);
+    }
+
+    private void queue(Path path) {
+      try {
+        paths.put(path);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException("Walk of " + dir + " interrupted");
+      }
+    }
+  }
+
+  private static class Sample {
+    private final Path path;
+    private final float[] pixels;
+
+    Sample(Path path, float[] pixels) {
+      this.path = path;
+      this.pixels = pixels;
+    }
+  }
+
+  private interface ResultWriter extends Closeable {
+    void write(Path path, int index, float probability) throws IOException;
+  }
+
+  private class CsvResultWriter implements ResultWriter {
+    private final Writer out;
+
+    CsvResultWriter(File file) throws IOException {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+          StandardCharsets.UTF_8), 1 << 16);
+      out.write("path,index,label,probability\n");
+    }
+
+    @Override
+    public void write(Path path, int index, float probability) throws IOException {
+      String label = index < labels.size() ? labels.get(index) : String.valueOf(index);
+      out.write('"' + path.toString().replace("\"", "\"\"") + "\"," + index + ',' + label + ','
+          + probability + '\n');
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  private static class BinaryResultWriter implements ResultWriter {
+    private static final int MAGIC = 0x4E4E5052; // "NNPR"
+    private final DataOutputStream out;
+
+    BinaryResultWriter(File file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+      out.writeInt(MAGIC);
+    }
+
+    @Override
+    public void write(Path path, int index, float probability) throws IOException {
+      out.writeUTF(path.toString());
+      out.writeShort(index);
+      out.writeFloat(probability);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+}
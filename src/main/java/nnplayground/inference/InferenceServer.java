@@ -0,0 +1,246 @@
+package nnplayground.inference;
+
+import nnplayground.data.InputNormalization;
+import nnplayground.util.ModelLocations;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.datavec.image.loader.NativeImageLoader;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Long running local inference service for the MNIST and CIFAR models. Each model is loaded once
+ * and served through a {@link MicroBatcher}, so concurrent requests share forward passes.
+ *
+ * <pre>
+ * POST /predict/mnist   body: encoded image (png, jpg, ...)
+ * POST /predict/cifar   body: encoded image
+ * GET  /stats           request count, batch size, throughput and p50/p90/p99 latency per model,
+ *                       prediction cache hits, misses and evictions
+ * </pre>
+ *
+ * System properties: server.port (8090), server.replicas (cores / 2), server.maxBatch (32),
+ * server.maxDelayMicros (2000), server.maxQueued (1024 waiting requests per model, more are
+ * answered with 503), server.timeoutMillis (30000, then 504), server.mnistModel,
+ * server.cifarModel, server.warmUp (20 inference iterations per model at startup, 0 to disable),
+ * prediction.cacheMB (64).
+ */
+public class InferenceServer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(InferenceServer.class);
+
+  private final Map<String, ServedModel> models = new LinkedHashMap<>();
+  private final PredictionCache cache = PredictionCache.shared();
+  private final long timeoutMillis = Long.getLong("server.timeoutMillis", 30000L);
+  private HttpServer server;
+
+  public static void main(String[] args) throws Exception {
+    int port = Integer.getInteger("server.port", 8090);
+    int replicas = Integer.getInteger("server.replicas",
+        Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    int maxBatch = Integer.getInteger("server.maxBatch", 32);
+    long maxDelayMicros = Long.getLong("server.maxDelayMicros", 2000L);
+    int maxQueued = Integer.getInteger("server.maxQueued", 1024);
+
+    InferenceServer inferenceServer = new InferenceServer();
+    File mnist = ModelLocations.mnistMappedModel().exists() ? ModelLocations.mnistMappedModel()
+        : ModelLocations.mnistModel();
+    mnist = new File(System.getProperty("server.mnistModel", mnist.getPath()));
+    File cifar = new File(System.getProperty("server.cifarModel",
+        "./trainModelByCifarWithAlexNet_model.json"));
+    if (mnist.exists())
+      inferenceServer.addModel("mnist", MappedModel.loadAny(mnist),
+          28, 28, 1, InputNormalization.forInference(mnist), replicas, maxBatch, maxDelayMicros,
+          maxQueued);
+    if (cifar.exists())
+      inferenceServer.addModel("cifar", MappedModel.loadAny(cifar),
+          32, 32, 3, InputNormalization.forInference(cifar), replicas, maxBatch, maxDelayMicros,
+          maxQueued);
+    inferenceServer.start(port, 4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Serve a model under /predict/{name}.
+   * @param normalization Normalization of the decoded 0..255 pixels, the one the model was
+   *                      trained with.
+   * @param maxQueued Waiting requests, more are rejected with 503.
+   */
+  public void addModel(String name, MultiLayerNetwork model, int height, int width, int channels,
+                       InputNormalization normalization, int replicas, int maxBatch,
+                       long maxDelayMicros, int maxQueued) {
+    int warmUp = Integer.getInteger("server.warmUp", 20);
+    if (warmUp > 0)
+      MappedModel.warmUp(model, new int[] {1, channels, height, width}, warmUp, 1, maxBatch);
+    ServedModel previous = models.put(name, new ServedModel(new MicroBatcher(name, model,
+        replicas, maxBatch, maxDelayMicros, maxQueued), PredictionCache.version(model), height,
+        width, channels, normalization));
+    // a reloaded model must not be answered with the outputs of the one it replaces
+    if (previous != null) {
+      previous.batcher.shutdown();
+      cache.invalidate(previous.version);
+    }
+  }
+
+  /**
+   * Start listening on localhost.
+   * @param port Port.
+   * @param handlerThreads Threads decoding requests and waiting for results.
+   */
+  public void start(int port, int handlerThreads) throws IOException {
+    if (models.isEmpty())
+      throw new IOException("No models to serve");
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+    server.setExecutor(Executors.newFixedThreadPool(handlerThreads));
+    server.createContext("/predict/", this::predict);
+    server.createContext("/stats", this::stats);
+    server.start();
+    LOG.info("Serving {} on http://localhost:{}/predict/", models.keySet(), port);
+  }
+
+  public void stop() {
+    server.stop(0);
+    for (ServedModel model : models.values())
+      model.batcher.shutdown();
+  }
+
+  private void predict(HttpExchange exchange) throws IOException {
+    CompletableFuture<INDArray> result = null;
+    try {
+      String name = exchange.getRequestURI().getPath().substring("/predict/".length());
+      ServedModel model = models.get(name);
+      if (model == null) {
+        respond(exchange, 404, "{\"error\":\"unknown model " + escape(name) + "\"}");
+        return;
+      }
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "{\"error\":\"POST an encoded image\"}");
+        return;
+      }
+      INDArray input = model.decode(exchange.getRequestBody());
+      PredictionCache.Key key = PredictionCache.key(model.version, input);
+      INDArray output = cache.get(key);
+      if (output == null) {
+        result = model.batcher.submit(input, timeoutMillis);
+        output = result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        cache.put(key, output);
+      }
+      respond(exchange, 200, toJson(output));
+    } catch (IOException e) {
+      // details stay in the log, the body is fixed JSON
+      LOG.debug("Bad request to {}: {}", exchange.getRequestURI(), e.toString());
+      respond(exchange, 400, "{\"error\":\"can't decode the image\"}");
+    } catch (RejectedExecutionException e) {
+      respond(exchange, 503, "{\"error\":\"overloaded\"}");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      respond(exchange, 503, "{\"error\":\"interrupted\"}");
+    } catch (TimeoutException e) {
+      // nobody waits for it anymore, a replica skips it if it's still queued
+      result.cancel(false);
+      respond(exchange, 504, "{\"error\":\"timed out\"}");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RejectedExecutionException) {
+        respond(exchange, 503, "{\"error\":\"shutting down\"}");
+      } else if (e.getCause() instanceof TimeoutException) {
+        respond(exchange, 504, "{\"error\":\"timed out\"}");
+      } else {
+        LOG.warn("Inference for {} failed", exchange.getRequestURI(), e.getCause());
+        respond(exchange, 500, "{\"error\":\"inference failed\"}");
+      }
+    }
+  }
+
+  private void stats(HttpExchange exchange) throws IOException {
+    StringBuilder json = new StringBuilder("{");
+    for (ServedModel model : models.values()) {
+      if (json.length() > 1)
+        json.append(',');
+      json.append('"').append(model.batcher.getName()).append("\":")
+          .append(model.batcher.getStats().toJson());
+    }
+    json.append(",\"predictionCache\":").append(cache.toJson());
+    respond(exchange, 200, json.append('}').toString());
+  }
+
+  private static String toJson(INDArray output) {
+    int best = 0;
+    StringBuilder probabilities = new StringBuilder();
+    for (int i = 0; i < output.length(); i++) {
+      if (output.getDouble(i) > output.getDouble(best))
+        best = i;
+      if (i > 0)
+        probabilities.append(',');
+      probabilities.append(output.getFloat(i));
+    }
+    return "{\"label\":" + best + ",\"probabilities\":[" + probabilities + "]}";
+  }
+
+  /**
+   * @return The text escaped for a JSON string literal.
+   */
+  static String escape(String text) {
+    StringBuilder escaped = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\')
+        escaped.append('\\').append(c);
+      else if (c < 0x20)
+        escaped.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      else
+        escaped.append(c);
+    }
+    return escaped.toString();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static class ServedModel {
+    private final MicroBatcher batcher;
+    private final long version;
+    private final InputNormalization normalization;
+    private final ThreadLocal<NativeImageLoader> loaders;
+
+    ServedModel(MicroBatcher batcher, long version, int height, int width, int channels,
+                InputNormalization normalization) {
+      this.batcher = batcher;
+      this.version = version;
+      this.normalization = normalization;
+      this.loaders = ThreadLocal.withInitial(() -> new NativeImageLoader(height, width, channels));
+    }
+
+    INDArray decode(InputStream body) throws IOException {
+      byte[] bytes = IOUtils.toByteArray(body);
+      INDArray image = loaders.get().asMatrix(new ByteArrayInputStream(bytes));
+      normalization.transform(image);
+      return image;
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+package nnplayground.inference;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with logarithmic buckets (about 4% resolution from 1 microsecond
+ * to more than a minute) and request/batch counters. Memory use is constant, so it can stay
+ * enabled in a long running server.
+ */
+public class LatencyStats {
+
+  private static final int bucketsPerOctave = 16;
+  private static final int octaves = 27; // 1 us .. 2^27 us (~134 s)
+
+  private final AtomicLongArray buckets = new AtomicLongArray(bucketsPerOctave * octaves + 1);
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final long startNanos = System.nanoTime();
+
+  /**
+   * Record the latency of one request.
+   * @param nanos Latency in nanoseconds.
+   */
+  public void record(long nanos) {
+    requests.incrementAndGet();
+    buckets.incrementAndGet(bucketOf(nanos / 1000));
+  }
+
+  /**
+   * Record that one batch has been executed.
+   */
+  public void recordBatch() {
+    batches.incrementAndGet();
+  }
+
+  /**
+   * @param percentile Percentile between 0 and 100.
+   * @return Upper bound of the bucket containing the percentile, in microseconds.
+   */
+  public long percentileMicros(double percentile) {
+    long total = 0;
+    long[] counts = new long[buckets.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0)
+      return 0;
+    long rank = (long) Math.ceil(percentile / 100.0 * total);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank)
+        return upperBoundMicros(i);
+    }
+    return upperBoundMicros(counts.length - 1);
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * @return Requests per second since creation.
+   */
+  public double throughput() {
+    return requests.get() / ((System.nanoTime() - startNanos) / 1e9);
+  }
+
+  /**
+   * @return The statistics as a JSON object.
+   */
+  public String toJson() {
+    long b = batches.get();
+    return String.format(
+        "{\"requests\":%d,\"batches\":%d,\"avgBatchSize\":%.2f,\"throughput\":%.1f,"
+            + "\"p50Micros\":%d,\"p90Micros\":%d,\"p99Micros\":%d}",
+        requests.get(), b, b == 0 ? 0.0 : (double) requests.get() / b, throughput(),
+        percentileMicros(50), percentileMicros(90), percentileMicros(99));
+  }
+
+  private static int bucketOf(long micros) {
+    if (micros < 1)
+      return 0;
+    double log2 = Math.log(micros) / Math.log(2);
+    return (int) Math.min(bucketsPerOctave * octaves, Math.floor(log2 * bucketsPerOctave) + 1);
+  }
+
+  private static long upperBoundMicros(int bucket) {
+    return bucket == 0 ? 1 : (long) Math.ceil(Math.pow(2, (double) bucket / bucketsPerOctave));
+  }
+
+}
@@ -0,0 +1,178 @@
+package nnplayground.inference;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A model file for fast startup: a small header, the configuration JSON and the flattened
+ * parameters as raw floats in native byte order at a 64 byte aligned offset. Loading maps the
+ * parameter blob (copy-on-write, so the file is never modified) and hands the mapping to the
+ * network as its parameter view, there is no unzipping and no deserialization of the parameters.
+ * The returned network keeps the mapping alive for as long as it is reachable.
+ * Only the parameters are stored, not the updater state, so these files are for inference.
+ *
+ * <pre>
+ * int magic "NNMM", int version, int byte order (1 little, 2 big endian), long number of params,
+ * int configuration length, configuration (UTF-8), padding, params
+ * </pre>
+ */
+public final class MappedModel {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedModel.class);
+
+  private static final int MAGIC = 0x4E4E4D4D;
+  private static final int VERSION = 1;
+  private static final int ALIGNMENT = 64;
+
+  private MappedModel() {
+  }
+
+  /**
+   * Write the configuration and parameters of a network.
+   */
+  public static void write(MultiLayerNetwork net, File file) throws IOException {
+    byte[] configuration = net.getLayerWiseConfigurations().toJson()
+        .getBytes(StandardCharsets.UTF_8);
+    float[] params = net.params().data().asFloat();
+    long offset = paramsOffset(configuration.length);
+    File tmp = new File(file.getPath() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate((int) offset);
+      header.putInt(MAGIC).putInt(VERSION)
+          .putInt(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 2)
+          .putLong(params.length).putInt(configuration.length).put(configuration);
+      header.rewind();
+      while (header.hasRemaining())
+        channel.write(header);
+      ByteBuffer body = ByteBuffer.allocateDirect(params.length * 4).order(ByteOrder.nativeOrder());
+      body.asFloatBuffer().put(params);
+      while (body.hasRemaining())
+        channel.write(body);
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Map a model file into a new network.
+   */
+  public static MultiLayerNetwork load(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer fixed = ByteBuffer.allocate(24);
+      readFully(channel, fixed);
+      fixed.flip();
+      if (fixed.remaining() < 24 || fixed.getInt() != MAGIC)
+        throw new IOException(file + " is not a mapped model file");
+      int version = fixed.getInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported mapped model version " + version);
+      ByteOrder order = fixed.getInt() == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+      long numParams = fixed.getLong();
+      int configLength = fixed.getInt();
+      ByteBuffer configuration = ByteBuffer.allocate(configLength);
+      readFully(channel, configuration);
+      long offset = paramsOffset(configLength);
+      if (channel.size() < offset + numParams * 4)
+        throw new IOException(file + " is truncated");
+
+      MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson(
+          new String(configuration.array(), StandardCharsets.UTF_8));
+      MappedByteBuffer mapped =
+          channel.map(FileChannel.MapMode.PRIVATE, offset, numParams * 4);
+      INDArray params;
+      if (order == ByteOrder.nativeOrder()) {
+        params = Nd4j.create(Nd4j.createBuffer(mapped, DataBuffer.Type.FLOAT, (int) numParams),
+            new int[] {1, (int) numParams});
+        if (params.data().address() != new Pointer(mapped).address())
+          LOG.warn("The parameters of {} were copied instead of mapped", file);
+      } else {
+        // written on a machine with the other byte order, convert once
+        float[] values = new float[(int) numParams];
+        mapped.order(order).asFloatBuffer().get(values);
+        params = Nd4j.create(values, new int[] {1, (int) numParams});
+      }
+      MultiLayerNetwork net = new MappedNetwork(conf, mapped);
+      net.init(params, false);
+      return net;
+    }
+  }
+
+  /**
+   * Load a model in either format: the mapped format for ".nnm" files, ModelSerializer otherwise.
+   */
+  public static MultiLayerNetwork loadAny(File file) throws IOException {
+    long start = System.nanoTime();
+    MultiLayerNetwork net = file.getName().endsWith(".nnm") ? load(file)
+        : ModelSerializer.restoreMultiLayerNetwork(file);
+    LOG.info("Loaded {} in {} ms", file, (System.nanoTime() - start) / 1000000);
+    return net;
+  }
+
+  /**
+   * Run inference on zeros until JIT compilation and the native libraries are warmed up, so the
+   * first real request runs at steady-state latency.
+   * @param inputShape Shape of a single example including the batch dimension of 1.
+   * @param batchSizes Batch sizes to warm up, e.g. 1 and the serving batch size.
+   * @return Time spent in ms.
+   */
+  public static long warmUp(MultiLayerNetwork net, int[] inputShape, int iterations,
+                            int... batchSizes) {
+    long start = System.nanoTime();
+    for (int batchSize : batchSizes) {
+      int[] shape = inputShape.clone();
+      shape[0] = batchSize;
+      INDArray input = Nd4j.zeros(shape);
+      for (int i = 0; i < iterations; i++)
+        net.output(input, false);
+    }
+    long millis = (System.nanoTime() - start) / 1000000;
+    LOG.info("Warm-up with {} iterations took {} ms", iterations, millis);
+    return millis;
+  }
+
+  /**
+   * A network whose parameters live in a file mapping. The data buffer only holds the address of
+   * the mapping, so the network holds the buffer itself: the mapping is released when the buffer
+   * is garbage collected, which must not happen while the parameters are in use.
+   */
+  private static final class MappedNetwork extends MultiLayerNetwork {
+
+    private final MappedByteBuffer mapping;
+
+    MappedNetwork(MultiLayerConfiguration conf, MappedByteBuffer mapping) {
+      super(conf);
+      this.mapping = mapping;
+    }
+
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining())
+      if (channel.read(buffer) < 0)
+        break;
+  }
+
+  private static long paramsOffset(int configLength) {
+    long end = 24 + configLength;
+    return (end + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+
+}
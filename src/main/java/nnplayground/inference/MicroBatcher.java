@@ -0,0 +1,182 @@
+package nnplayground.inference;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Merges concurrent single example inference requests into micro batches. A fixed number of
+ * model replicas each run on their own thread: a replica takes the first waiting request, then
+ * collects more until either {@code maxBatchSize} requests are there or the first request has
+ * waited {@code maxDelayMicros}, and runs a single MultiLayerNetwork.output call for all of them.
+ *
+ * <p>At most {@code maxQueued} requests wait, more are rejected so an overloaded server answers
+ * quickly instead of queueing without bound. Requests that were cancelled or whose deadline
+ * passed while queued are dropped without a forward pass, and on shutdown the queued ones fail
+ * with a {@link RejectedExecutionException}.
+ */
+public class MicroBatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MicroBatcher.class);
+
+  private final String name;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+  private final BlockingQueue<Request> queue;
+  private final List<Thread> replicas = new ArrayList<>();
+  private final LatencyStats stats = new LatencyStats();
+  private volatile boolean running = true;
+
+  /**
+   * @param name Name used for threads and logging.
+   * @param model The model, cloned once per replica.
+   * @param replicas Number of model replicas.
+   * @param maxBatchSize Maximum number of requests per forward pass.
+   * @param maxDelayMicros Maximum time the first request of a batch waits for more requests.
+   * @param maxQueued Maximum number of waiting requests.
+   */
+  public MicroBatcher(String name, MultiLayerNetwork model, int replicas, int maxBatchSize,
+                      long maxDelayMicros, int maxQueued) {
+    this.name = name;
+    this.queue = new LinkedBlockingQueue<>(maxQueued);
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayNanos = maxDelayMicros * 1000;
+    for (int i = 0; i < replicas; i++) {
+      MultiLayerNetwork replica = i == 0 ? model : model.clone();
+      Thread t = new Thread(() -> serve(replica), name + "-replica-" + i);
+      t.setDaemon(true);
+      this.replicas.add(t);
+      t.start();
+    }
+    LOG.info("{}: {} replicas, max batch {}, max delay {} us, max queued {}", name, replicas,
+        maxBatchSize, maxDelayMicros, maxQueued);
+  }
+
+  /**
+   * Queue one example for inference.
+   * @param input Input of a single example, first dimension 1.
+   * @param timeoutMillis Time the request may wait, after that it fails with a TimeoutException
+   *                      instead of being run. Cancel the future to drop it earlier.
+   * @return Future output row of the example.
+   * @throws RejectedExecutionException If the queue is full or the batcher is shut down.
+   */
+  public CompletableFuture<INDArray> submit(INDArray input, long timeoutMillis) {
+    Request request = new Request(input, timeoutMillis);
+    if (!running || !queue.offer(request))
+      throw new RejectedExecutionException(name + (running ? ": queue full" : ": shut down"));
+    // shutdown() may have drained the queue between the check and the offer
+    if (!running)
+      failQueued();
+    return request.result;
+  }
+
+  public LatencyStats getStats() {
+    return stats;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Stop the replicas and fail the queued requests.
+   */
+  public void shutdown() {
+    running = false;
+    for (Thread t : replicas)
+      t.interrupt();
+    failQueued();
+  }
+
+  private void failQueued() {
+    List<Request> queued = new ArrayList<>();
+    queue.drainTo(queued);
+    fail(queued, new RejectedExecutionException(name + ": shut down"));
+  }
+
+  private static void fail(List<Request> requests, Exception e) {
+    for (Request request : requests)
+      request.result.completeExceptionally(e);
+  }
+
+  private void serve(MultiLayerNetwork model) {
+    List<Request> batch = new ArrayList<>(maxBatchSize);
+    while (running) {
+      try {
+        Request first = queue.take();
+        if (!live(first))
+          continue;
+        batch.add(first);
+        long deadline = first.enqueued + maxDelayNanos;
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null)
+            break;
+          if (live(next))
+            batch.add(next);
+        }
+        run(model, batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail(batch, new RejectedExecutionException(name + ": shut down"));
+        break;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * @return False for a request that was cancelled or expired while queued, which then fails
+   *     with a TimeoutException.
+   */
+  private boolean live(Request request) {
+    if (request.result.isDone())
+      return false;
+    if (System.nanoTime() - request.deadline < 0)
+      return true;
+    request.result.completeExceptionally(new TimeoutException(name + ": expired in the queue"));
+    return false;
+  }
+
+  private void run(MultiLayerNetwork model, List<Request> batch) {
+    try {
+      INDArray[] inputs = new INDArray[batch.size()];
+      for (int i = 0; i < inputs.length; i++)
+        inputs[i] = batch.get(i).input;
+      INDArray input = inputs.length == 1 ? inputs[0] : Nd4j.concat(0, inputs);
+      INDArray output = model.output(input, false);
+      stats.recordBatch();
+      long now = System.nanoTime();
+      for (int i = 0; i < inputs.length; i++) {
+        Request request = batch.get(i);
+        request.result.complete(output.getRow(i).dup());
+        stats.record(now - request.enqueued);
+      }
+    } catch (RuntimeException e) {
+      LOG.error("{}: batch of {} failed", name, batch.size(), e);
+      for (Request request : batch)
+        request.result.completeExceptionally(e);
+    }
+  }
+
+  private static class Request {
+    private final INDArray input;
+    private final long enqueued = System.nanoTime();
+    private final long deadline;
+    private final CompletableFuture<INDArray> result = new CompletableFuture<>();
+
+    Request(INDArray input, long timeoutMillis) {
+      this.input = input;
+      this.deadline = enqueued + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+  }
+
+}
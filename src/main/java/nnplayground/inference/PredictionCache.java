@@ -0,0 +1,261 @@
+package nnplayground.inference;
+
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of network outputs keyed by a 128 bit hash of the normalized input and a model
+ * version, so repeated inputs (an unchanged canvas, the same directory classified again,
+ * duplicate images in a batch job) skip the forward pass. Entries are evicted least recently used
+ * once their total size exceeds the byte budget. The model version is a hash of the parameters
+ * and the configuration, so a retrained or reloaded model never sees outputs of the old one;
+ * {@link #invalidate(long)} drops the entries of a replaced model right away.
+ *
+ * <p>One instance ({@link #shared()}) is used by all inference entry points of the process.
+ * System properties: prediction.cacheMB (64, 0 disables caching).
+ */
+public class PredictionCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PredictionCache.class);
+
+  private static final long entryOverhead = 96; // key, map entry and INDArray header, roughly
+  private static volatile PredictionCache shared;
+
+  private final long maxBytes;
+  private final LinkedHashMap<Key, INDArray> entries = new LinkedHashMap<>(256, 0.75f, true);
+  private long bytes = 0; // guarded by entries
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Key of one input of one model version.
+   */
+  public static final class Key {
+    private final long version;
+    private final long high;
+    private final long low;
+    private final int length;
+
+    Key(long version, long high, long low, int length) {
+      this.version = version;
+      this.high = high;
+      this.low = low;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      return version == other.version && high == other.high && low == other.low
+          && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (low ^ (low >>> 32));
+    }
+  }
+
+  public PredictionCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return The cache shared by all inference entry points.
+   */
+  public static PredictionCache shared() {
+    if (shared == null) {
+      synchronized (PredictionCache.class) {
+        if (shared == null)
+          shared = new PredictionCache(Long.getLong("prediction.cacheMB", 64) * 1024 * 1024);
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * @return A version id of the model: a hash of its configuration and parameters.
+   */
+  public static long version(MultiLayerNetwork net) {
+    long[] h = {0x243F6A8885A308D3L, 0x13198A2E03707344L};
+    byte[] conf = net.getLayerWiseConfigurations().toJson().getBytes(StandardCharsets.UTF_8);
+    for (byte b : conf)
+      update(h, b);
+    float[] params = net.params().data().asFloat();
+    for (float p : params)
+      update(h, Float.floatToRawIntBits(p));
+    return fmix(h[0] ^ fmix(h[1]));
+  }
+
+  /**
+   * @return The key of a normalized input (a single example or a whole batch).
+   */
+  public static Key key(long version, INDArray input) {
+    float[] data = Nd4j.toFlattened('c', input).data().asFloat();
+    return key(version, data, 0, data.length);
+  }
+
+  /**
+   * @return The key of {@code length} normalized input values starting at {@code offset}.
+   */
+  public static Key key(long version, float[] data, int offset, int length) {
+    long[] h = {0x452821E638D01377L ^ version, 0xBE5466CF34E90C6CL + version};
+    for (int i = offset; i < offset + length; i++)
+      update(h, Float.floatToRawIntBits(data[i]));
+    return new Key(version, fmix(h[0] + h[1]), fmix(h[1] ^ Long.rotateLeft(h[0], 29)), length);
+  }
+
+  /**
+   * The cached output of a single input, or the computed one which is then cached.
+   * @param compute Forward pass, only called on a miss.
+   */
+  public INDArray output(long version, INDArray input, Function<INDArray, INDArray> compute) {
+    if (maxBytes <= 0)
+      return compute.apply(input);
+    Key key = key(version, input);
+    INDArray output = get(key);
+    if (output == null) {
+      output = compute.apply(input);
+      put(key, output);
+    }
+    return output;
+  }
+
+  /**
+   * @return A copy of the cached output, or null. Counts a hit or a miss.
+   */
+  public INDArray get(Key key) {
+    INDArray output;
+    synchronized (entries) {
+      output = entries.get(key);
+    }
+    if (output == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return output.dup();
+  }
+
+  public void put(Key key, INDArray output) {
+    if (maxBytes <= 0)
+      return;
+    INDArray copy = output.dup();
+    long size = sizeOf(copy);
+    synchronized (entries) {
+      INDArray previous = entries.put(key, copy);
+      bytes += size - (previous == null ? 0 : sizeOf(previous));
+      Iterator<Map.Entry<Key, INDArray>> eldest = entries.entrySet().iterator();
+      while (bytes > maxBytes && eldest.hasNext()) {
+        bytes -= sizeOf(eldest.next().getValue());
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Drop all outputs of a model version, e.g. when the model is replaced.
+   * @return Number of removed entries.
+   */
+  public int invalidate(long version) {
+    int removed = 0;
+    synchronized (entries) {
+      Iterator<Map.Entry<Key, INDArray>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<Key, INDArray> entry = it.next();
+        if (entry.getKey().version == version) {
+          bytes -= sizeOf(entry.getValue());
+          it.remove();
+          removed++;
+        }
+      }
+    }
+    if (removed > 0)
+      LOG.info("Invalidated {} cached predictions of model version {}", removed,
+          Long.toHexString(version));
+    return removed;
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      bytes = 0;
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getBytes() {
+    synchronized (entries) {
+      return bytes;
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public double hitRate() {
+    long lookups = hits.get() + misses.get();
+    return lookups == 0 ? 0 : (double) hits.get() / lookups;
+  }
+
+  public String toJson() {
+    return String.format(Locale.ROOT, "{\"entries\":%d,\"bytes\":%d,\"hits\":%d,\"misses\":%d,"
+            + "\"evictions\":%d,\"hitRate\":%.4f}", size(), getBytes(), getHits(), getMisses(),
+        getEvictions(), hitRate());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d entries, %d KB, %d hits, %d misses, %d evictions, hit rate %.1f%%",
+        size(), getBytes() / 1024, getHits(), getMisses(), getEvictions(), 100 * hitRate());
+  }
+
+  private static long sizeOf(INDArray output) {
+    return entryOverhead + output.length() * (long) output.data().getElementSize();
+  }
+
+  // two multiply-rotate lanes over the values, finished with the MurmurHash3 mixer
+  private static void update(long[] h, int value) {
+    h[0] = Long.rotateLeft((h[0] ^ value) * 0x9E3779B97F4A7C15L, 31);
+    h[1] = Long.rotateLeft((h[1] + value) * 0xC2B2AE3D27D4EB4FL, 27) ^ h[0];
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xFF51AFD7ED558CCDL;
+    k ^= k >>> 33;
+    k *= 0xC4CEB9FE1A85EC53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+}
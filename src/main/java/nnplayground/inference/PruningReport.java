@@ -0,0 +1,94 @@
+package nnplayground.inference;
+
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.data.InputNormalization;
+import nnplayground.train.MagnitudePruningListener;
+import nnplayground.util.CIFAR10;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Prunes the dense layers of the trained Cifar network to increasing sparsity levels and compares
+ * non-zero parameters, serialized size, test accuracy and batch 1 / batch 64 latency of the sparse
+ * execution with the dense baseline. Levels are applied one after the other on the same network
+ * (iterative pruning); with prune.fineTuneIterations &gt; 0 the sparsity is ramped up while the
+ * network is trained further, otherwise every level is a one-shot magnitude pruning.
+ *
+ * <p>System properties: prune.model (./trainModelByCifarWithAlexNet_model.json), prune.layers
+ * (ffn1,ffn2), prune.levels (0.5,0.75,0.9,0.95), prune.fineTuneIterations (0).
+ */
+public class PruningReport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PruningReport.class);
+
+  private static final int seed = 123;
+  private static final int batchSize = 64;
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    File model = new File(System.getProperty("prune.model",
+        "./trainModelByCifarWithAlexNet_model.json"));
+    MultiLayerNetwork net = MappedModel.loadAny(model);
+    InputNormalization normalization = InputNormalization.forInference(model);
+    List<String> layers = Arrays.asList(System.getProperty("prune.layers", "ffn1,ffn2").split(","));
+    String[] levels = System.getProperty("prune.levels", "0.5,0.75,0.9,0.95").split(",");
+    int fineTuneIterations = Integer.getInteger("prune.fineTuneIterations", 0);
+
+    File batchesDir = CIFAR10.prepare();
+    DataSetIterator train =
+        new CifarBinaryDataSetIterator(batchesDir, true, batchSize, -1, true, false, seed);
+    DataSetIterator test =
+        new CifarBinaryDataSetIterator(batchesDir, false, batchSize, -1, false, false, seed);
+    train.setPreProcessor(normalization);
+    test.setPreProcessor(normalization);
+    INDArray batch = test.next().getFeatures();
+    INDArray single = batch.get(NDArrayIndex.interval(0, 1));
+
+    LOG.info(String.format("%9s %12s %11s %9s %13s %14s", "sparsity", "params", "size (KB)",
+        "accuracy", "batch 1 (ms)", "batch 64 (ms)"));
+    LOG.info(String.format("%9s %12d %11d %9.4f %13.3f %14.3f", "dense", net.numParams(),
+        net.numParams() * 4 / 1024,
+        QuantizationTool.accuracy(test, features -> net.output(features, false)),
+        QuantizationTool.latency(single, features -> net.output(features, false)),
+        QuantizationTool.latency(batch, features -> net.output(features, false))));
+
+    double previous = 0;
+    for (String level : levels) {
+      double sparsity = Double.parseDouble(level.trim());
+      if (fineTuneIterations > 0) {
+        // the schedule follows the network's iteration count, which carries over between levels
+        long first = net.getLayerWiseConfigurations().getIterationCount();
+        net.setListeners(new MagnitudePruningListener(layers, previous, sparsity, first,
+            first + fineTuneIterations / 2, Math.max(1, fineTuneIterations / 20)));
+        for (int i = 0; i < fineTuneIterations; i++) {
+          if (!train.hasNext())
+            train.reset();
+          net.fit(train.next());
+        }
+        net.setListeners();
+      } else {
+        for (String layer : layers)
+          MagnitudePruningListener.prune(net, layer, sparsity);
+      }
+      previous = sparsity;
+
+      SparseNetwork sparse = new SparseNetwork(net, layers);
+      LOG.info(String.format("%9.2f %12d %11d %9.4f %13.3f %14.3f", sparsity,
+          sparse.nonZeroParams(), sparse.sizeBytes() / 1024,
+          QuantizationTool.accuracy(test, sparse::output),
+          QuantizationTool.latency(single, sparse::output),
+          QuantizationTool.latency(batch, sparse::output)));
+    }
+  }
+
+}
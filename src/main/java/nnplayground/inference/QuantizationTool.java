@@ -0,0 +1,118 @@
+package nnplayground.inference;
+
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.data.InputNormalization;
+import nnplayground.data.PackedImageDataSetIterator;
+import nnplayground.util.CIFAR10;
+import nnplayground.util.ModelLocations;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.function.Function;
+
+/**
+ * Quantizes the trained MNIST or Cifar model to int8 and compares accuracy on the test set, size
+ * of the parameters and latency for batch sizes 1 and 64 against the float model.
+ *
+ * <p>System properties: quantize.model (mnist | cifar), quantize.cifarModel
+ * (./trainModelByCifarWithAlexNet_model.json), quantize.calibrationBatches (20).
+ */
+public class QuantizationTool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(QuantizationTool.class);
+
+  private static final int seed = 123;
+  private static final int batchSize = 64;
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    boolean cifar = "cifar".equals(System.getProperty("quantize.model", "mnist"));
+    int calibrationBatches = Integer.getInteger("quantize.calibrationBatches", 20);
+
+    File model;
+    DataSetIterator train;
+    DataSetIterator test;
+    int[] inputShape;
+    if (cifar) {
+      model = new File(System.getProperty("quantize.cifarModel",
+          "./trainModelByCifarWithAlexNet_model.json"));
+      File batchesDir = CIFAR10.prepare();
+      train = new CifarBinaryDataSetIterator(batchesDir, true, batchSize, -1, true, false, seed);
+      test = new CifarBinaryDataSetIterator(batchesDir, false, batchSize, -1, false, false, seed);
+      inputShape = new int[] {3, 32, 32};
+    } else {
+      model = ModelLocations.mnistMappedModel().exists()
+          ? ModelLocations.mnistMappedModel() : ModelLocations.mnistModel();
+      train = new PackedImageDataSetIterator(
+          new File("./var/data/mnist/mnist-training.pack"), batchSize, true, seed);
+      test = new PackedImageDataSetIterator(
+          new File("./var/data/mnist/mnist-testing.pack"), batchSize, false, seed);
+      inputShape = new int[] {1, 28, 28};
+    }
+    MultiLayerNetwork net = MappedModel.loadAny(model);
+    // calibrate and evaluate on inputs normalized the way the model was trained
+    InputNormalization normalization = InputNormalization.forInference(model);
+    train.setPreProcessor(normalization);
+    test.setPreProcessor(normalization);
+
+    long start = System.nanoTime();
+    QuantizedNetwork quantized =
+        QuantizedNetwork.quantize(net, train, calibrationBatches, inputShape);
+    LOG.info("Calibrated on {} batches and quantized in {} ms", calibrationBatches,
+        (System.nanoTime() - start) / 1000000);
+
+    double floatAccuracy = accuracy(test, features -> net.output(features, false));
+    double int8Accuracy = accuracy(test, quantized::output);
+
+    test.reset();
+    INDArray features = test.next().getFeatures();
+    INDArray single = features.get(NDArrayIndex.interval(0, 1));
+    double[] floatLatency = {latency(single, f -> net.output(f, false)),
+        latency(features, f -> net.output(f, false))};
+    double[] int8Latency = {latency(single, quantized::output),
+        latency(features, quantized::output)};
+
+    long floatBytes = net.numParams() * 4L;
+    LOG.info(String.format("%6s %10s %12s %14s %15s", "model", "accuracy", "size (KB)",
+        "batch 1 (ms)", "batch " + batchSize + " (ms)"));
+    LOG.info(String.format("%6s %10.4f %12d %14.3f %15.3f", "float", floatAccuracy,
+        floatBytes / 1024, floatLatency[0], floatLatency[1]));
+    LOG.info(String.format("%6s %10.4f %12d %14.3f %15.3f", "int8", int8Accuracy,
+        quantized.sizeBytes() / 1024, int8Latency[0], int8Latency[1]));
+    LOG.info(String.format("accuracy delta %.4f, size %.2fx smaller", int8Accuracy - floatAccuracy,
+        floatBytes / (double) quantized.sizeBytes()));
+  }
+
+  static double accuracy(DataSetIterator test, Function<INDArray, INDArray> model) {
+    Evaluation eval = new Evaluation();
+    test.reset();
+    while (test.hasNext()) {
+      DataSet ds = test.next();
+      eval.eval(ds.getLabels(), model.apply(ds.getFeatures()));
+    }
+    return eval.accuracy();
+  }
+
+  /**
+   * @return Mean latency in ms after a warm-up.
+   */
+  public static double latency(INDArray input, Function<INDArray, INDArray> model) {
+    for (int i = 0; i < 10; i++)
+      model.apply(input);
+    int runs = 50;
+    long start = System.nanoTime();
+    for (int i = 0; i < runs; i++)
+      model.apply(input);
+    return (System.nanoTime() - start) / 1e6 / runs;
+  }
+
+}
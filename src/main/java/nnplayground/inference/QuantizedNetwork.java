@@ -0,0 +1,492 @@
+package nnplayground.inference;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.ConvolutionMode;
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.DropoutLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.conf.preprocessor.FeedForwardToCnnPreProcessor;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationIdentity;
+import org.nd4j.linalg.activations.impl.ActivationReLU;
+import org.nd4j.linalg.activations.impl.ActivationSigmoid;
+import org.nd4j.linalg.activations.impl.ActivationSoftmax;
+import org.nd4j.linalg.activations.impl.ActivationTanH;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Post-training int8 version of a MultiLayerNetwork made of convolution, subsampling, dense,
+ * dropout and output layers, evaluated in plain Java without ND4J.
+ *
+ * <p>Weights are quantized symmetrically per output channel (one scale per filter or output
+ * neuron), activations symmetrically per layer with scales calibrated from the largest absolute
+ * activation of each layer on a sample of training data. Convolutions and dense layers multiply
+ * int8 by int8 into int32 accumulators which are rescaled to float, biased, activated and
+ * quantized again with the next scale; max pooling works directly on the int8 values. Only the
+ * probabilities of the output layer are float.
+ */
+public class QuantizedNetwork {
+
+  private final List<Op> ops = new ArrayList<>();
+  private final int channels;
+  private final int height;
+  private final int width;
+  private final float inputScale;
+  private int outputs;
+
+  private QuantizedNetwork(int channels, int height, int width, float inputScale) {
+    this.channels = channels;
+    this.height = height;
+    this.width = width;
+    this.inputScale = inputScale;
+  }
+
+  /**
+   * Quantize a network, calibrating the activation scales on a number of batches.
+   * @param net Trained float network.
+   * @param calibration Training data with the same preprocessing as used for inference.
+   * @param batches Number of batches used for calibration.
+   * @param inputShape Channels, height and width of an example.
+   */
+  public static QuantizedNetwork quantize(MultiLayerNetwork net, DataSetIterator calibration,
+                                          int batches, int[] inputShape) {
+    Layer[] layers = net.getLayers();
+    float[] maxAbs = new float[layers.length + 1];
+    calibration.reset();
+    for (int b = 0; b < batches && calibration.hasNext(); b++) {
+      DataSet ds = calibration.next();
+      List<INDArray> activations = net.feedForward(ds.getFeatures(), false);
+      for (int i = 0; i < activations.size(); i++)
+        maxAbs[i] = Math.max(maxAbs[i], activations.get(i).amaxNumber().floatValue());
+    }
+    calibration.reset();
+
+    int c = inputShape[0];
+    int h = inputShape[1];
+    int w = inputShape[2];
+    float inScale = scale(maxAbs[0]);
+    QuantizedNetwork quantized = new QuantizedNetwork(c, h, w, inScale);
+    for (int i = 0; i < layers.length; i++) {
+      InputPreProcessor preProcessor = net.getLayerWiseConfigurations().getInputPreProcess(i);
+      if (preProcessor instanceof FeedForwardToCnnPreProcessor) {
+        FeedForwardToCnnPreProcessor toCnn = (FeedForwardToCnnPreProcessor) preProcessor;
+        c = toCnn.getNumChannels();
+        h = toCnn.getInputHeight();
+        w = toCnn.getInputWidth();
+      }
+      org.deeplearning4j.nn.conf.layers.Layer conf = layers[i].conf().getLayer();
+      // pooling and dropout keep the scale of their input
+      float outScale = scale(maxAbs[i + 1]);
+      Op op;
+      if (conf instanceof ConvolutionLayer) {
+        op = new ConvOp((ConvolutionLayer) conf, layers[i], c, h, w, inScale, outScale);
+      } else if (conf instanceof SubsamplingLayer) {
+        op = new PoolOp((SubsamplingLayer) conf, c, h, w);
+      } else if (conf instanceof DenseLayer || conf instanceof OutputLayer) {
+        op = new DenseOp((BaseLayer) conf, layers[i], inScale, outScale,
+            i == layers.length - 1);
+      } else if (conf instanceof DropoutLayer) {
+        continue; // identity at inference
+      } else {
+        throw new UnsupportedOperationException("Layer type " + conf.getClass().getSimpleName()
+            + " can't be quantized");
+      }
+      quantized.ops.add(op);
+      if (!(op instanceof PoolOp))
+        inScale = outScale;
+      c = op.outChannels();
+      h = op.outHeight();
+      w = op.outWidth();
+    }
+    if (!(quantized.ops.get(quantized.ops.size() - 1) instanceof DenseOp))
+      throw new UnsupportedOperationException("The last layer has to be a dense or output layer");
+    quantized.outputs = c;
+    return quantized;
+  }
+
+  /**
+   * @param features Float input as for the original network, e.g. [n, 784] or [n, 3, 32, 32].
+   * @return Output probabilities [n, outputs].
+   */
+  public INDArray output(INDArray features) {
+    int n = features.size(0);
+    float[] input = Nd4j.toFlattened('c', features).data().asFloat();
+    int size = channels * height * width;
+    float[] output = new float[n * outputs];
+    IntStream.range(0, n).parallel().forEach(e -> {
+      float[] result = output(input, e * size);
+      System.arraycopy(result, 0, output, e * outputs, outputs);
+    });
+    return Nd4j.create(output, new int[] {n, outputs}, 'c');
+  }
+
+  private float[] output(float[] input, int offset) {
+    byte[] x = new byte[channels * height * width];
+    for (int i = 0; i < x.length; i++)
+      x[i] = quantize(input[offset + i], inputScale);
+    for (int i = 0; i < ops.size() - 1; i++)
+      x = ops.get(i).forward(x);
+    return ((DenseOp) ops.get(ops.size() - 1)).forwardFloat(x);
+  }
+
+  /**
+   * @return Bytes of the quantized weights, scales and biases.
+   */
+  public long sizeBytes() {
+    long bytes = 0;
+    for (Op op : ops)
+      bytes += op.sizeBytes();
+    return bytes;
+  }
+
+  private static float scale(float maxAbs) {
+    return maxAbs > 0 ? maxAbs / 127f : 1f;
+  }
+
+  private static byte quantize(float value, float scale) {
+    int q = Math.round(value / scale);
+    return (byte) Math.max(-127, Math.min(127, q));
+  }
+
+  private enum Activation {
+    IDENTITY, RELU, SIGMOID, TANH, SOFTMAX;
+
+    static Activation of(IActivation fn) {
+      if (fn instanceof ActivationIdentity)
+        return IDENTITY;
+      if (fn instanceof ActivationReLU)
+        return RELU;
+      if (fn instanceof ActivationSigmoid)
+        return SIGMOID;
+      if (fn instanceof ActivationTanH)
+        return TANH;
+      if (fn instanceof ActivationSoftmax)
+        return SOFTMAX;
+      throw new UnsupportedOperationException("Activation " + fn + " can't be quantized");
+    }
+
+    void apply(float[] values) {
+      switch (this) {
+        case RELU:
+          for (int i = 0; i < values.length; i++)
+            values[i] = Math.max(0, values[i]);
+          break;
+        case SIGMOID:
+          for (int i = 0; i < values.length; i++)
+            values[i] = (float) (1 / (1 + Math.exp(-values[i])));
+          break;
+        case TANH:
+          for (int i = 0; i < values.length; i++)
+            values[i] = (float) Math.tanh(values[i]);
+          break;
+        case SOFTMAX:
+          float max = Float.NEGATIVE_INFINITY;
+          for (float v : values)
+            max = Math.max(max, v);
+          double sum = 0;
+          for (int i = 0; i < values.length; i++) {
+            values[i] = (float) Math.exp(values[i] - max);
+            sum += values[i];
+          }
+          for (int i = 0; i < values.length; i++)
+            values[i] /= sum;
+          break;
+        default:
+      }
+    }
+  }
+
+  private interface Op {
+    byte[] forward(byte[] input);
+
+    int outChannels();
+
+    int outHeight();
+
+    int outWidth();
+
+    long sizeBytes();
+  }
+
+  /**
+   * Per output channel quantized weights in the row-major order [out][in...].
+   */
+  private abstract static class WeightedOp implements Op {
+    final byte[] weights;
+    final float[] weightScales;
+    final float[] bias;
+    final float inScale;
+    final float outScale;
+    final Activation activation;
+
+    WeightedOp(float[] w, float[] bias, int outputs, float inScale, float outScale,
+               Activation activation) {
+      int perOutput = w.length / outputs;
+      this.weights = new byte[w.length];
+      this.weightScales = new float[outputs];
+      this.bias = bias;
+      this.inScale = inScale;
+      this.outScale = outScale;
+      this.activation = activation;
+      for (int o = 0; o < outputs; o++) {
+        float max = 0;
+        for (int i = o * perOutput; i < (o + 1) * perOutput; i++)
+          max = Math.max(max, Math.abs(w[i]));
+        weightScales[o] = scale(max);
+        for (int i = o * perOutput; i < (o + 1) * perOutput; i++)
+          weights[i] = quantize(w[i], weightScales[o]);
+      }
+    }
+
+    @Override
+    public long sizeBytes() {
+      return weights.length + 4L * weightScales.length + 4L * bias.length + 8;
+    }
+  }
+
+  private static class ConvOp extends WeightedOp {
+    private final int inC, inH, inW, outC, outH, outW, kH, kW, sH, sW, padTop, padLeft;
+
+    ConvOp(ConvolutionLayer conf, Layer layer, int c, int h, int w, float inScale,
+           float outScale) {
+      super(Nd4j.toFlattened('c', layer.getParam("W")).data().asFloat(),
+          layer.getParam("b").data().asFloat(), conf.getNOut(), inScale, outScale,
+          Activation.of(conf.getActivationFn()));
+      inC = c;
+      inH = h;
+      inW = w;
+      outC = conf.getNOut();
+      kH = conf.getKernelSize()[0];
+      kW = conf.getKernelSize()[1];
+      sH = conf.getStride()[0];
+      sW = conf.getStride()[1];
+      if (conf.getConvolutionMode() == ConvolutionMode.Same) {
+        outH = (h + sH - 1) / sH;
+        outW = (w + sW - 1) / sW;
+        padTop = Math.max(0, (outH - 1) * sH + kH - h) / 2;
+        padLeft = Math.max(0, (outW - 1) * sW + kW - w) / 2;
+      } else {
+        padTop = conf.getPadding()[0];
+        padLeft = conf.getPadding()[1];
+        outH = (h + 2 * padTop - kH) / sH + 1;
+        outW = (w + 2 * padLeft - kW) / sW + 1;
+      }
+    }
+
+    @Override
+    public byte[] forward(byte[] input) {
+      float[] values = forwardFloat(input);
+      byte[] out = new byte[values.length];
+      for (int i = 0; i < values.length; i++)
+        out[i] = quantize(values[i], outScale);
+      return out;
+    }
+
+    private float[] forwardFloat(byte[] input) {
+      int plane = outH * outW;
+      float[] out = new float[outC * plane];
+      int[] acc = new int[plane];
+      float[] channel = new float[plane];
+      for (int o = 0; o < outC; o++) {
+        Arrays.fill(acc, 0);
+        for (int c = 0; c < inC; c++) {
+          int inPlane = c * inH * inW;
+          for (int ky = 0; ky < kH; ky++) {
+            for (int kx = 0; kx < kW; kx++) {
+              int w = weights[((o * inC + c) * kH + ky) * kW + kx];
+              if (w == 0)
+                continue;
+              for (int oy = 0; oy < outH; oy++) {
+                int iy = oy * sH + ky - padTop;
+                if (iy < 0 || iy >= inH)
+                  continue;
+                int row = inPlane + iy * inW;
+                int outRow = oy * outW;
+                for (int ox = 0; ox < outW; ox++) {
+                  int ix = ox * sW + kx - padLeft;
+                  if (ix >= 0 && ix < inW)
+                    acc[outRow + ox] += w * input[row + ix];
+                }
+              }
+            }
+          }
+        }
+        float rescale = inScale * weightScales[o];
+        for (int i = 0; i < plane; i++)
+          channel[i] = acc[i] * rescale + bias[o];
+        activation.apply(channel);
+        System.arraycopy(channel, 0, out, o * plane, plane);
+      }
+      return out;
+    }
+
+    @Override
+    public int outChannels() {
+      return outC;
+    }
+
+    @Override
+    public int outHeight() {
+      return outH;
+    }
+
+    @Override
+    public int outWidth() {
+      return outW;
+    }
+  }
+
+  private static class PoolOp implements Op {
+    private final boolean max;
+    private final int c, inH, inW, outH, outW, kH, kW, sH, sW, padTop, padLeft;
+
+    PoolOp(SubsamplingLayer conf, int c, int h, int w) {
+      if (conf.getPoolingType() != SubsamplingLayer.PoolingType.MAX
+          && conf.getPoolingType() != SubsamplingLayer.PoolingType.AVG)
+        throw new UnsupportedOperationException("Pooling " + conf.getPoolingType()
+            + " can't be quantized");
+      max = conf.getPoolingType() == SubsamplingLayer.PoolingType.MAX;
+      this.c = c;
+      inH = h;
+      inW = w;
+      kH = conf.getKernelSize()[0];
+      kW = conf.getKernelSize()[1];
+      sH = conf.getStride()[0];
+      sW = conf.getStride()[1];
+      if (conf.getConvolutionMode() == ConvolutionMode.Same) {
+        outH = (h + sH - 1) / sH;
+        outW = (w + sW - 1) / sW;
+        padTop = Math.max(0, (outH - 1) * sH + kH - h) / 2;
+        padLeft = Math.max(0, (outW - 1) * sW + kW - w) / 2;
+      } else {
+        padTop = conf.getPadding()[0];
+        padLeft = conf.getPadding()[1];
+        outH = (h + 2 * padTop - kH) / sH + 1;
+        outW = (w + 2 * padLeft - kW) / sW + 1;
+      }
+    }
+
+    @Override
+    public byte[] forward(byte[] input) {
+      byte[] out = new byte[c * outH * outW];
+      for (int ch = 0; ch < c; ch++) {
+        for (int oy = 0; oy < outH; oy++) {
+          for (int ox = 0; ox < outW; ox++) {
+            int best = Byte.MIN_VALUE;
+            int sum = 0;
+            int count = 0;
+            for (int ky = 0; ky < kH; ky++) {
+              int iy = oy * sH + ky - padTop;
+              if (iy < 0 || iy >= inH)
+                continue;
+              for (int kx = 0; kx < kW; kx++) {
+                int ix = ox * sW + kx - padLeft;
+                if (ix < 0 || ix >= inW)
+                  continue;
+                int v = input[(ch * inH + iy) * inW + ix];
+                best = Math.max(best, v);
+                sum += v;
+                count++;
+              }
+            }
+            out[(ch * outH + oy) * outW + ox] =
+                (byte) (max ? best : Math.round(sum / (float) Math.max(1, count)));
+          }
+        }
+      }
+      return out;
+    }
+
+    @Override
+    public int outChannels() {
+      return c;
+    }
+
+    @Override
+    public int outHeight() {
+      return outH;
+    }
+
+    @Override
+    public int outWidth() {
+      return outW;
+    }
+
+    @Override
+    public long sizeBytes() {
+      return 0;
+    }
+  }
+
+  private static class DenseOp extends WeightedOp {
+    private final int nIn;
+    private final int nOut;
+
+    DenseOp(BaseLayer conf, Layer layer, float inScale, float outScale, boolean last) {
+      super(transpose(layer.getParam("W")), layer.getParam("b").data().asFloat(),
+          layer.getParam("W").size(1), inScale, outScale, Activation.of(conf.getActivationFn()));
+      nIn = layer.getParam("W").size(0);
+      nOut = layer.getParam("W").size(1);
+      if (!last && activation == Activation.SOFTMAX)
+        throw new UnsupportedOperationException("Softmax is only supported in the last layer");
+    }
+
+    /**
+     * @return The [nIn, nOut] weights as [nOut][nIn] so every output reads a contiguous row.
+     */
+    private static float[] transpose(INDArray w) {
+      return Nd4j.toFlattened('c', w.transpose()).data().asFloat();
+    }
+
+    @Override
+    public byte[] forward(byte[] input) {
+      float[] values = forwardFloat(input);
+      byte[] out = new byte[values.length];
+      for (int i = 0; i < values.length; i++)
+        out[i] = quantize(values[i], outScale);
+      return out;
+    }
+
+    float[] forwardFloat(byte[] input) {
+      float[] out = new float[nOut];
+      for (int o = 0; o < nOut; o++) {
+        int acc = 0;
+        int row = o * nIn;
+        for (int i = 0; i < nIn; i++)
+          acc += weights[row + i] * input[i];
+        out[o] = acc * inScale * weightScales[o] + bias[o];
+      }
+      activation.apply(out);
+      return out;
+    }
+
+    @Override
+    public int outChannels() {
+      return nOut;
+    }
+
+    @Override
+    public int outHeight() {
+      return 1;
+    }
+
+    @Override
+    public int outWidth() {
+      return 1;
+    }
+  }
+
+}
@@ -0,0 +1,162 @@
+package nnplayground.inference;
+
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A pruned dense layer in compressed sparse column (CSC) format: for every output neuron the
+ * non-zero weights and the indices of their inputs. The forward pass only touches the non-zero
+ * weights, the input is transposed once so every weight multiplies a contiguous run of the batch.
+ *
+ * <p>Serialized as nIn, nOut, number of non-zeros, activation class, column pointers, row
+ * indices (2 bytes each if nIn fits, 4 otherwise), values and biases.
+ */
+public class SparseDenseLayer {
+
+  private final int nIn;
+  private final int nOut;
+  private final int[] columnPointers;
+  private final int[] rows;
+  private final float[] values;
+  private final float[] bias;
+  private final IActivation activation;
+
+  private SparseDenseLayer(int nIn, int nOut, int[] columnPointers, int[] rows, float[] values,
+                           float[] bias, IActivation activation) {
+    this.nIn = nIn;
+    this.nOut = nOut;
+    this.columnPointers = columnPointers;
+    this.rows = rows;
+    this.values = values;
+    this.bias = bias;
+    this.activation = activation;
+  }
+
+  /**
+   * @param weights Dense weights [nIn, nOut], zeros are dropped.
+   * @param bias Bias [1, nOut].
+   */
+  public static SparseDenseLayer fromDense(INDArray weights, INDArray bias,
+                                           IActivation activation) {
+    int nIn = weights.size(0);
+    int nOut = weights.size(1);
+    float[] w = Nd4j.toFlattened('c', weights).data().asFloat();
+    int nonZeros = 0;
+    for (float v : w)
+      if (v != 0)
+        nonZeros++;
+    int[] columnPointers = new int[nOut + 1];
+    int[] rows = new int[nonZeros];
+    float[] values = new float[nonZeros];
+    int k = 0;
+    for (int o = 0; o < nOut; o++) {
+      columnPointers[o] = k;
+      for (int i = 0; i < nIn; i++) {
+        float v = w[i * nOut + o];
+        if (v != 0) {
+          rows[k] = i;
+          values[k++] = v;
+        }
+      }
+    }
+    columnPointers[nOut] = k;
+    return new SparseDenseLayer(nIn, nOut, columnPointers, rows, values,
+        bias.data().asFloat(), activation);
+  }
+
+  /**
+   * @param input [n, nIn]
+   * @return Activations [n, nOut].
+   */
+  public INDArray activate(INDArray input) {
+    int n = input.size(0);
+    float[] x = Nd4j.toFlattened('c', input.transpose()).data().asFloat(); // [nIn][n]
+    float[] out = new float[n * nOut];
+    IntStream.range(0, nOut).parallel().forEach(o -> {
+      float[] acc = new float[n];
+      Arrays.fill(acc, bias[o]);
+      for (int k = columnPointers[o]; k < columnPointers[o + 1]; k++) {
+        float v = values[k];
+        int base = rows[k] * n;
+        for (int b = 0; b < n; b++)
+          acc[b] += v * x[base + b];
+      }
+      for (int b = 0; b < n; b++)
+        out[b * nOut + o] = acc[b];
+    });
+    return activation.getActivation(Nd4j.create(out, new int[] {n, nOut}, 'c'), false);
+  }
+
+  public int nonZeros() {
+    return values.length;
+  }
+
+  public int numParams() {
+    return nIn * nOut + nOut;
+  }
+
+  public int prunedWeights() {
+    return nIn * nOut - values.length;
+  }
+
+  /**
+   * @return Serialized size in bytes.
+   */
+  public long sizeBytes() {
+    int indexBytes = nIn <= 0xFFFF ? 2 : 4;
+    return 12 + 2 + activation.getClass().getName().length() + 4L * (nOut + 1)
+        + (long) indexBytes * rows.length + 4L * values.length + 4L * bias.length;
+  }
+
+  public void write(DataOutputStream out) throws IOException {
+    out.writeInt(nIn);
+    out.writeInt(nOut);
+    out.writeInt(values.length);
+    out.writeUTF(activation.getClass().getName());
+    for (int p : columnPointers)
+      out.writeInt(p);
+    for (int r : rows) {
+      if (nIn <= 0xFFFF)
+        out.writeShort(r);
+      else
+        out.writeInt(r);
+    }
+    for (float v : values)
+      out.writeFloat(v);
+    for (float b : bias)
+      out.writeFloat(b);
+  }
+
+  public static SparseDenseLayer read(DataInputStream in) throws IOException {
+    int nIn = in.readInt();
+    int nOut = in.readInt();
+    int nonZeros = in.readInt();
+    IActivation activation;
+    try {
+      activation = (IActivation) Class.forName(in.readUTF()).newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unknown activation", e);
+    }
+    int[] columnPointers = new int[nOut + 1];
+    for (int i = 0; i <= nOut; i++)
+      columnPointers[i] = in.readInt();
+    int[] rows = new int[nonZeros];
+    for (int i = 0; i < nonZeros; i++)
+      rows[i] = nIn <= 0xFFFF ? in.readUnsignedShort() : in.readInt();
+    float[] values = new float[nonZeros];
+    for (int i = 0; i < nonZeros; i++)
+      values[i] = in.readFloat();
+    float[] bias = new float[nOut];
+    for (int i = 0; i < nOut; i++)
+      bias[i] = in.readFloat();
+    return new SparseDenseLayer(nIn, nOut, columnPointers, rows, values, bias, activation);
+  }
+
+}
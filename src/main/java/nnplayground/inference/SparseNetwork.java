@@ -0,0 +1,87 @@
+package nnplayground.inference;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Inference for a network with pruned dense layers: the layers before the first pruned one run
+ * in DL4J, the pruned layers as {@link SparseDenseLayer}, the rest again with the DL4J layers.
+ */
+public class SparseNetwork {
+
+  private final MultiLayerNetwork net;
+  private final Map<Integer, SparseDenseLayer> sparse = new TreeMap<>();
+  private final int first;
+
+  /**
+   * @param net Network with pruned weights.
+   * @param layerNames Names of the dense layers to run sparse.
+   */
+  public SparseNetwork(MultiLayerNetwork net, List<String> layerNames) {
+    this.net = net;
+    Layer[] layers = net.getLayers();
+    for (int i = 0; i < layers.length; i++) {
+      org.deeplearning4j.nn.conf.layers.Layer conf = layers[i].conf().getLayer();
+      if (!layerNames.contains(conf.getLayerName()))
+        continue;
+      if (!(conf instanceof DenseLayer))
+        throw new IllegalArgumentException(conf.getLayerName() + " is not a dense layer");
+      sparse.put(i, SparseDenseLayer.fromDense(layers[i].getParam("W"),
+          layers[i].getParam("b"), ((BaseLayer) conf).getActivationFn()));
+    }
+    if (sparse.isEmpty())
+      throw new IllegalArgumentException("None of the layers " + layerNames + " found");
+    first = sparse.keySet().iterator().next();
+  }
+
+  public INDArray output(INDArray input) {
+    int n = input.size(0);
+    INDArray x = first == 0 ? input : net.feedForwardToLayer(first - 1, input, false).get(first);
+    Layer[] layers = net.getLayers();
+    for (int i = first; i < layers.length; i++) {
+      InputPreProcessor preProcessor = net.getLayerWiseConfigurations().getInputPreProcess(i);
+      if (preProcessor != null)
+        x = preProcessor.preProcess(x, n);
+      SparseDenseLayer layer = sparse.get(i);
+      x = layer != null ? layer.activate(x) : layers[i].activate(x, false);
+    }
+    return x;
+  }
+
+  /**
+   * @return Non-zero parameters of the whole network.
+   */
+  public long nonZeroParams() {
+    long params = net.numParams();
+    for (SparseDenseLayer layer : sparse.values())
+      params -= layer.prunedWeights();
+    return params;
+  }
+
+  /**
+   * @return Serialized size: the sparse layers in CSC format, all other parameters as floats.
+   */
+  public long sizeBytes() throws IOException {
+    long dense = net.numParams();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      for (SparseDenseLayer layer : sparse.values()) {
+        dense -= layer.numParams();
+        layer.write(out);
+      }
+    }
+    return dense * 4 + bytes.size();
+  }
+
+}
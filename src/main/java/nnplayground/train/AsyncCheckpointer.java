@@ -0,0 +1,490 @@
+package nnplayground.train;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Periodic checkpoints of a MultiLayerNetwork without stalling training. Every
+ * {@code everyIterations} iterations or {@code everyMinutes} minutes the parameters and the
+ * updater state are copied on the training thread (the only pause, which is measured) and written
+ * by a background thread into a zip that ModelSerializer can restore. An additional
+ * "checkpoint.properties" entry holds epoch, iteration and the position in the epoch, and for a
+ * {@link #track tracked} {@link EarlyStoppingTrainer} its best accuracy and validations without
+ * improvement; its best parameters go into "bestParams.bin". Only the last {@code keep}
+ * checkpoints are kept.
+ *
+ * <p>To resume, load the latest checkpoint with {@link #latest} and {@link #restore} and train
+ * with the iterator returned by {@link #wrap}: it replays the iterator resets of the finished
+ * epochs (so seeded shuffles produce the same order) and skips the batches already trained in the
+ * interrupted epoch. The wrapped iterator also counts the epochs, so its reset() has to be called
+ * after every epoch.
+ */
+public class AsyncCheckpointer implements TrainingListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncCheckpointer.class);
+
+  private static final String metadataEntry = "checkpoint.properties";
+  private static final String bestParamsEntry = "bestParams.bin";
+
+  private final File dir;
+  private final String name;
+  private final int everyIterations;
+  private final long everyNanos;
+  private final int keep;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+    Thread t = new Thread(r, "checkpoint-writer");
+    t.setDaemon(true);
+    return t;
+  });
+  private final AtomicBoolean writing = new AtomicBoolean();
+
+  private int epoch = 0;
+  private long iteration = 0;
+  private int batchInEpoch = 0;
+  private long lastCheckpoint = System.nanoTime();
+  private long lastCheckpointIteration = 0;
+
+  // replayed by the wrapped iterator after a restore
+  private int pendingResets = 0;
+  private int pendingSkips = 0;
+  private EarlyStoppingTrainer trainer;
+  private EarlyStoppingTrainer.State restoredState;
+
+  private long checkpoints = 0;
+  private long skipped = 0;
+  private long pauseNanos = 0;
+  private long maxPauseNanos = 0;
+
+  /**
+   * A checkpoint file with its metadata.
+   */
+  public static class Checkpoint {
+    public final File file;
+    public final int epoch;
+    public final long iteration;
+    public final int batchInEpoch;
+
+    Checkpoint(File file, int epoch, long iteration, int batchInEpoch) {
+      this.file = file;
+      this.epoch = epoch;
+      this.iteration = iteration;
+      this.batchInEpoch = batchInEpoch;
+    }
+
+    @Override
+    public String toString() {
+      return file.getName() + " (epoch " + epoch + ", iteration " + iteration + ", batch "
+          + batchInEpoch + ")";
+    }
+  }
+
+  /**
+   * @param dir Checkpoint directory.
+   * @param name Prefix of the checkpoint files.
+   * @param everyIterations Checkpoint every n iterations, 0 to disable.
+   * @param everyMinutes Checkpoint every n minutes, 0 to disable.
+   * @param keep Number of checkpoints to keep.
+   */
+  public AsyncCheckpointer(File dir, String name, int everyIterations, long everyMinutes,
+                           int keep) {
+    this.dir = dir;
+    this.name = name;
+    this.everyIterations = everyIterations;
+    this.everyNanos = TimeUnit.MINUTES.toNanos(everyMinutes);
+    this.keep = Math.max(1, keep);
+    dir.mkdirs();
+  }
+
+  /**
+   * @return The newest readable checkpoint in a directory or null.
+   */
+  public static Checkpoint latest(File dir, String name) {
+    List<File> files = list(dir, name);
+    for (int i = files.size() - 1; i >= 0; i--) {
+      try {
+        return readMetadata(files.get(i));
+      } catch (IOException e) {
+        LOG.warn("Ignoring unreadable checkpoint {}: {}", files.get(i), e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Load the network of a checkpoint including the updater state and continue counting epochs,
+   * iterations and batches from it.
+   */
+  public MultiLayerNetwork restore(Checkpoint checkpoint) throws IOException {
+    MultiLayerNetwork net = ModelSerializer.restoreMultiLayerNetwork(checkpoint.file, true);
+    net.getLayerWiseConfigurations().setIterationCount((int) checkpoint.iteration);
+    epoch = checkpoint.epoch;
+    iteration = checkpoint.iteration;
+    lastCheckpointIteration = iteration;
+    batchInEpoch = checkpoint.batchInEpoch;
+    pendingResets = checkpoint.epoch;
+    pendingSkips = checkpoint.batchInEpoch;
+    restoredState = readState(checkpoint.file);
+    LOG.info("Resuming from checkpoint {}", checkpoint);
+    return net;
+  }
+
+  /**
+   * Save the early stopping progress of a trainer with every checkpoint and, after a
+   * {@link #restore}, continue it from the checkpoint.
+   */
+  public void track(EarlyStoppingTrainer trainer) {
+    this.trainer = trainer;
+    if (restoredState != null)
+      trainer.restore(restoredState);
+    restoredState = null;
+  }
+
+  /**
+   * Wrap the training iterator (the outermost one passed to fit) to count epochs and to replay
+   * the iterator position after a restore.
+   */
+  public DataSetIterator wrap(DataSetIterator iterator) {
+    return new PositionIterator(iterator);
+  }
+
+  public int getEpoch() {
+    return epoch;
+  }
+
+  public long getIteration() {
+    return iteration;
+  }
+
+  @Override
+  public boolean invoked() {
+    return false;
+  }
+
+  @Override
+  public void invoke() {
+  }
+
+  @Override
+  public void onEpochStart(Model model) {
+  }
+
+  @Override
+  public void onEpochEnd(Model model) {
+  }
+
+  @Override
+  public void onForwardPass(Model model, List<INDArray> activations) {
+  }
+
+  @Override
+  public void onForwardPass(Model model, Map<String, INDArray> activations) {
+  }
+
+  @Override
+  public void onGradientCalculation(Model model) {
+  }
+
+  @Override
+  public void onBackwardPass(Model model) {
+  }
+
+  @Override
+  public void iterationDone(Model model, int ignored) {
+    iteration++;
+    batchInEpoch++;
+    boolean due = everyIterations > 0 && iteration - lastCheckpointIteration >= everyIterations;
+    due |= everyNanos > 0 && System.nanoTime() - lastCheckpoint >= everyNanos;
+    if (due && model instanceof MultiLayerNetwork)
+      checkpoint((MultiLayerNetwork) model);
+  }
+
+  /**
+   * Snapshot the network on the calling (training) thread and write it in the background. If the
+   * previous checkpoint is still being written this one is skipped.
+   */
+  public void checkpoint(MultiLayerNetwork net) {
+    lastCheckpoint = System.nanoTime();
+    lastCheckpointIteration = iteration;
+    if (!writing.compareAndSet(false, true)) {
+      skipped++;
+      LOG.warn("Previous checkpoint still writing, skipping iteration {}", iteration);
+      return;
+    }
+    long start = System.nanoTime();
+    String configuration = net.getLayerWiseConfigurations().toJson();
+    INDArray params = net.params().dup();
+    INDArray updaterState = net.getUpdater() == null ? null
+        : net.getUpdater().getStateViewArray();
+    if (updaterState != null)
+      updaterState = updaterState.dup();
+    Properties metadata = new Properties();
+    metadata.setProperty("epoch", String.valueOf(epoch));
+    metadata.setProperty("iteration", String.valueOf(iteration));
+    metadata.setProperty("batchInEpoch", String.valueOf(batchInEpoch));
+    metadata.setProperty("time", String.valueOf(System.currentTimeMillis()));
+    EarlyStoppingTrainer.State state = trainer != null ? trainer.state() : null;
+    INDArray bestParams = null;
+    if (state != null) {
+      metadata.setProperty("best", String.valueOf(state.best));
+      metadata.setProperty("bestEpoch", String.valueOf(state.bestEpoch));
+      metadata.setProperty("bestIteration", String.valueOf(state.bestIteration));
+      metadata.setProperty("sinceImprovement", String.valueOf(state.sinceImprovement));
+      bestParams = state.bestParams;
+    }
+    long pause = System.nanoTime() - start;
+    pauseNanos += pause;
+    maxPauseNanos = Math.max(maxPauseNanos, pause);
+    checkpoints++;
+
+    File target = new File(dir, String.format("%s-%010d.zip", name, iteration));
+    INDArray best = bestParams;
+    writer.execute(() -> {
+      long writeStart = System.nanoTime();
+      try {
+        write(target, configuration, params, updaterState, best, metadata);
+        prune();
+        LOG.info("Checkpoint {} written in {} ms, training paused {} ms", target.getName(),
+            (System.nanoTime() - writeStart) / 1000000, String.format("%.2f", pause / 1e6));
+      } catch (IOException e) {
+        LOG.error("Can't write checkpoint {}", target, e);
+      } finally {
+        writing.set(false);
+      }
+    });
+  }
+
+  /**
+   * Wait for a pending checkpoint to be written and stop the writer thread.
+   */
+  public void close() throws InterruptedException {
+    writer.shutdown();
+    writer.awaitTermination(10, TimeUnit.MINUTES);
+    if (checkpoints > 0)
+      LOG.info("{} checkpoints ({} skipped), training paused {} ms on average, {} ms max",
+          checkpoints, skipped, String.format("%.2f", pauseNanos / 1e6 / checkpoints),
+          String.format("%.2f", maxPauseNanos / 1e6));
+  }
+
+  private static void write(File target, String configuration, INDArray params,
+                            INDArray updaterState, INDArray bestParams, Properties metadata)
+      throws IOException {
+    File tmp = new File(target.getPath() + ".tmp");
+    try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)))) {
+      zip.putNextEntry(new ZipEntry("configuration.json"));
+      zip.write(configuration.getBytes(StandardCharsets.UTF_8));
+      zip.closeEntry();
+
+      zip.putNextEntry(new ZipEntry("coefficients.bin"));
+      DataOutputStream out = new DataOutputStream(zip);
+      Nd4j.write(params, out);
+      out.flush();
+      zip.closeEntry();
+
+      if (updaterState != null) {
+        zip.putNextEntry(new ZipEntry("updaterState.bin"));
+        Nd4j.write(updaterState, out);
+        out.flush();
+        zip.closeEntry();
+      }
+
+      if (bestParams != null) {
+        zip.putNextEntry(new ZipEntry(bestParamsEntry));
+        Nd4j.write(bestParams, out);
+        out.flush();
+        zip.closeEntry();
+      }
+
+      zip.putNextEntry(new ZipEntry(metadataEntry));
+      metadata.store(zip, null);
+      zip.closeEntry();
+    }
+    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void prune() {
+    List<File> files = list(dir, name);
+    for (int i = 0; i < files.size() - keep; i++)
+      if (!files.get(i).delete())
+        LOG.warn("Can't delete old checkpoint {}", files.get(i));
+  }
+
+  /**
+   * @return The checkpoint files of a run, oldest first.
+   */
+  private static List<File> list(File dir, String name) {
+    File[] files = dir.listFiles((d, n) -> n.startsWith(name + "-") && n.endsWith(".zip"));
+    if (files == null)
+      return new ArrayList<>();
+    List<File> list = new ArrayList<>(Arrays.asList(files));
+    list.sort(Comparator.comparing(File::getName));
+    return list;
+  }
+
+  private static Checkpoint readMetadata(File file) throws IOException {
+    try (ZipFile zip = new ZipFile(file)) {
+      ZipEntry entry = zip.getEntry(metadataEntry);
+      if (entry == null)
+        throw new IOException("no " + metadataEntry);
+      Properties metadata = new Properties();
+      try (InputStream in = zip.getInputStream(entry)) {
+        metadata.load(in);
+      }
+      return new Checkpoint(file, Integer.parseInt(metadata.getProperty("epoch")),
+          Long.parseLong(metadata.getProperty("iteration")),
+          Integer.parseInt(metadata.getProperty("batchInEpoch")));
+    }
+  }
+
+  /**
+   * @return The early stopping progress saved in a checkpoint, null if it has none.
+   */
+  private static EarlyStoppingTrainer.State readState(File file) throws IOException {
+    try (ZipFile zip = new ZipFile(file)) {
+      Properties metadata = new Properties();
+      try (InputStream in = zip.getInputStream(zip.getEntry(metadataEntry))) {
+        metadata.load(in);
+      }
+      if (metadata.getProperty("best") == null)
+        return null;
+      INDArray bestParams = null;
+      ZipEntry entry = zip.getEntry(bestParamsEntry);
+      if (entry != null)
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            zip.getInputStream(entry)))) {
+          bestParams = Nd4j.read(in);
+        }
+      return new EarlyStoppingTrainer.State(Double.parseDouble(metadata.getProperty("best")),
+          bestParams, Integer.parseInt(metadata.getProperty("bestEpoch")),
+          Long.parseLong(metadata.getProperty("bestIteration")),
+          Integer.parseInt(metadata.getProperty("sinceImprovement")));
+    }
+  }
+
+  /**
+   * Counts epochs on reset() and replays the position of a restored checkpoint on first use.
+   */
+  private class PositionIterator implements DataSetIterator {
+    private final DataSetIterator delegate;
+
+    PositionIterator(DataSetIterator delegate) {
+      this.delegate = delegate;
+    }
+
+    private void replay() {
+      if (pendingResets == 0 && pendingSkips == 0)
+        return;
+      for (; pendingResets > 0; pendingResets--)
+        delegate.reset();
+      for (; pendingSkips > 0 && delegate.hasNext(); pendingSkips--)
+        delegate.next();
+      pendingSkips = 0;
+    }
+
+    @Override
+    public DataSet next(int num) {
+      replay();
+      return delegate.next(num);
+    }
+
+    @Override
+    public DataSet next() {
+      replay();
+      return delegate.next();
+    }
+
+    @Override
+    public boolean hasNext() {
+      replay();
+      return delegate.hasNext();
+    }
+
+    @Override
+    public void reset() {
+      if (pendingResets == 0 && pendingSkips == 0) {
+        epoch++;
+        batchInEpoch = 0;
+      }
+      delegate.reset();
+    }
+
+    @Override
+    public int totalExamples() {
+      return delegate.totalExamples();
+    }
+
+    @Override
+    public int inputColumns() {
+      return delegate.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+      return delegate.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+      return delegate.resetSupported();
+    }
+
+    @Override
+    public boolean asyncSupported() {
+      return false;
+    }
+
+    @Override
+    public int batch() {
+      return delegate.batch();
+    }
+
+    @Override
+    public int cursor() {
+      return delegate.cursor();
+    }
+
+    @Override
+    public int numExamples() {
+      return delegate.numExamples();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+      delegate.setPreProcessor(preProcessor);
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+      return delegate.getPreProcessor();
+    }
+
+    @Override
+    public List<String> getLabels() {
+      return delegate.getLabels();
+    }
+  }
+
+}
@@ -0,0 +1,183 @@
+package nnplayground.train;
+
+import org.deeplearning4j.api.storage.Persistable;
+import org.deeplearning4j.api.storage.StatsStorageRouter;
+import org.deeplearning4j.api.storage.StorageMetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * StatsStorageRouter between a StatsListener and the real storage (e.g. a FileStatsStorage
+ * attached to the UI). The training thread only counts and enqueues: updates are downsampled to
+ * every {@code keepEvery}-th one per session and worker and put into a fixed size ring buffer,
+ * which a background thread drains into the storage. If the writer falls behind the oldest
+ * pending updates are overwritten, so memory stays constant however long training runs.
+ * Metadata and static info are rare and never dropped.
+ */
+public class AsyncStatsStorageRouter implements StatsStorageRouter, AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncStatsStorageRouter.class);
+
+  private final StatsStorageRouter storage;
+  private final int keepEvery;
+  private final Persistable[] ring;
+  private final ConcurrentLinkedQueue<Object> metadata = new ConcurrentLinkedQueue<>();
+  private final Map<String, Long> received = new HashMap<>(); // guarded by ring
+  private final Thread writer;
+  private int head = 0; // guarded by ring
+  private int size = 0; // guarded by ring
+  private long updates = 0;
+  private long skipped = 0;
+  private long dropped = 0;
+  private long written = 0;
+  private volatile boolean closed = false;
+
+  /**
+   * @param storage Storage the updates are written to.
+   * @param capacity Updates buffered at most.
+   * @param keepEvery Keep every n-th update, 1 to keep all.
+   */
+  public AsyncStatsStorageRouter(StatsStorageRouter storage, int capacity, int keepEvery) {
+    this.storage = storage;
+    this.keepEvery = Math.max(1, keepEvery);
+    this.ring = new Persistable[capacity];
+    this.writer = new Thread(this::drain, "stats-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override
+  public void putStorageMetaData(StorageMetaData storageMetaData) {
+    metadata.add(storageMetaData);
+    wakeUp();
+  }
+
+  @Override
+  public void putStorageMetaData(Collection<? extends StorageMetaData> storageMetaData) {
+    metadata.addAll(storageMetaData);
+    wakeUp();
+  }
+
+  @Override
+  public void putStaticInfo(Persistable staticInfo) {
+    metadata.add(new StaticInfo(staticInfo));
+    wakeUp();
+  }
+
+  @Override
+  public void putStaticInfo(Collection<? extends Persistable> staticInfo) {
+    for (Persistable p : staticInfo)
+      metadata.add(new StaticInfo(p));
+    wakeUp();
+  }
+
+  @Override
+  public void putUpdate(Persistable update) {
+    synchronized (ring) {
+      updates++;
+      String source = update.getSessionID() + "/" + update.getWorkerID();
+      long count = received.merge(source, 1L, Long::sum);
+      if ((count - 1) % keepEvery != 0) {
+        skipped++;
+        return;
+      }
+      if (size == ring.length) {
+        // overwrite the oldest pending update
+        head = (head + 1) % ring.length;
+        size--;
+        dropped++;
+      }
+      ring[(head + size) % ring.length] = update;
+      size++;
+      ring.notifyAll();
+    }
+  }
+
+  @Override
+  public void putUpdate(Collection<? extends Persistable> updates) {
+    for (Persistable update : updates)
+      putUpdate(update);
+  }
+
+  private void wakeUp() {
+    synchronized (ring) {
+      ring.notifyAll();
+    }
+  }
+
+  private void drain() {
+    List<Persistable> batch = new ArrayList<>(ring.length);
+    while (true) {
+      synchronized (ring) {
+        while (size == 0 && metadata.isEmpty() && !closed) {
+          try {
+            ring.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        if (size == 0 && metadata.isEmpty() && closed)
+          return;
+        for (; size > 0; size--) {
+          batch.add(ring[head]);
+          ring[head] = null;
+          head = (head + 1) % ring.length;
+        }
+      }
+      try {
+        // metadata first, the storage needs it before the updates of a session
+        Object meta;
+        while ((meta = metadata.poll()) != null) {
+          if (meta instanceof StaticInfo)
+            storage.putStaticInfo(((StaticInfo) meta).info);
+          else
+            storage.putStorageMetaData((StorageMetaData) meta);
+        }
+        if (!batch.isEmpty())
+          storage.putUpdate(batch);
+        synchronized (ring) {
+          written += batch.size();
+        }
+      } catch (RuntimeException e) {
+        LOG.warn("Writing training stats failed: {}", e.toString());
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Write the pending updates and stop the writer thread.
+   */
+  @Override
+  public void close() throws InterruptedException {
+    closed = true;
+    wakeUp();
+    writer.join();
+    LOG.info("Training stats: {}", this);
+  }
+
+  @Override
+  public String toString() {
+    synchronized (ring) {
+      return String.format("%d updates, %d skipped by downsampling, %d dropped, %d written",
+          updates, skipped, dropped, written);
+    }
+  }
+
+  private static class StaticInfo {
+    private final Persistable info;
+
+    StaticInfo(Persistable info) {
+      this.info = info;
+    }
+  }
+
+}
@@ -0,0 +1,224 @@
+package nnplayground.train;
+
+import nnplayground.data.ChannelStats;
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.data.InputNormalization;
+import nnplayground.data.SoftTargetDataSetIterator;
+import nnplayground.inference.MappedModel;
+import nnplayground.inference.QuantizationTool;
+import nnplayground.util.CIFAR10;
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ConvolutionMode;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Knowledge distillation (Hinton et al., "Distilling the Knowledge in a Neural Network", 2015)
+ * of a trained Cifar network into a small student with two convolution layers and one dense
+ * layer. The teacher's log probabilities for the training set are computed once and cached next
+ * to the teacher model, keyed by its content and the content of the training batches, so later
+ * runs (other temperatures, other students) skip the teacher's forward pass. The student trains
+ * on the teacher's softened distribution and the hard label ({@link SoftTargetDataSetIterator})
+ * with its own logits softened at the same temperature ({@link DistillationLoss}); at the end
+ * accuracy, size and latency of teacher and student are compared.
+ *
+ * <p>System properties: distill.teacher (./trainModelByCifarWithAlexNet_model.json),
+ * distill.student (./cifarStudent_model.json), distill.temperature (4), distill.alpha (0.7),
+ * distill.epochs (10), distill.batchSize (100). Teacher and student see the inputs normalized
+ * the way the teacher was trained (its {@link InputNormalization}), which is saved with the
+ * student.
+ */
+public class Distillation {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Distillation.class);
+
+  private static final int seed = 123;
+  private static final int MAGIC = 0x4e4e544c; // "NNTL"
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    File teacherFile = new File(System.getProperty("distill.teacher",
+        "./trainModelByCifarWithAlexNet_model.json"));
+    File studentFile = new File(System.getProperty("distill.student",
+        "./cifarStudent_model.json"));
+    double temperature = Double.parseDouble(System.getProperty("distill.temperature", "4"));
+    double alpha = Double.parseDouble(System.getProperty("distill.alpha", "0.7"));
+    int epochs = Integer.getInteger("distill.epochs", 10);
+    int batchSize = Integer.getInteger("distill.batchSize", 100);
+
+    File batchesDir = CIFAR10.prepare();
+    MultiLayerNetwork teacher = MappedModel.loadAny(teacherFile);
+    InputNormalization normalization = InputNormalization.forInference(teacherFile);
+    // not shuffled: the cached teacher outputs are in example order
+    CifarBinaryDataSetIterator train = new CifarBinaryDataSetIterator(batchesDir, true,
+        batchSize, -1, false, false, seed);
+    CifarBinaryDataSetIterator test = new CifarBinaryDataSetIterator(batchesDir, false,
+        batchSize, -1, false, false, seed);
+    train.setPreProcessor(normalization);
+    test.setPreProcessor(normalization);
+
+    File cache = new File(teacherFile.getAbsoluteFile().getParentFile(), teacherFile.getName()
+        + ".logprobs-" + ChannelStats.contentKey(teacherFile, InputNormalization.file(teacherFile))
+        + "-" + ChannelStats.contentKey(CifarBinaryDataSetIterator.dataFiles(batchesDir, true))
+        + ".bin");
+    float[] logProbs = teacherLogProbs(teacher, train, cache);
+
+    SoftTargetDataSetIterator distilled = new SoftTargetDataSetIterator(train, logProbs,
+        temperature, batchSize, true, false, seed);
+    distilled.setPreProcessor(normalization);
+    MultiLayerNetwork student = new MultiLayerNetwork(studentConfiguration(seed,
+        CifarBinaryDataSetIterator.NUM_LABELS, new DistillationLoss(temperature, alpha)));
+    student.init();
+    student.setListeners(new ScoreIterationListener(100));
+    for (int epoch = 0; epoch < epochs; epoch++) {
+      long start = System.nanoTime();
+      student.fit(distilled);
+      distilled.reset();
+      LOG.info("Epoch {} in {} s, student accuracy {}", epoch,
+          (System.nanoTime() - start) / 1000000000,
+          String.format("%.4f", ParallelCifarTrainer.evaluate(student, test)));
+    }
+    ModelSerializer.writeModel(student, studentFile, false);
+    normalization.save(studentFile);
+
+    double teacherAccuracy = ParallelCifarTrainer.evaluate(teacher, test);
+    double studentAccuracy = ParallelCifarTrainer.evaluate(student, test);
+    INDArray features = test.next().getFeatures();
+    test.reset();
+    INDArray single = features.get(NDArrayIndex.interval(0, 1));
+    double[] teacherLatency = {latency(teacher, single), latency(teacher, features)};
+    double[] studentLatency = {latency(student, single), latency(student, features)};
+
+    LOG.info(String.format("%8s %10s %12s %14s %15s", "model", "accuracy", "size (KB)",
+        "batch 1 (ms)", "batch " + batchSize + " (ms)"));
+    LOG.info(String.format("%8s %10.4f %12d %14.3f %15.3f", "teacher", teacherAccuracy,
+        teacher.numParams() * 4L / 1024, teacherLatency[0], teacherLatency[1]));
+    LOG.info(String.format("%8s %10.4f %12d %14.3f %15.3f", "student", studentAccuracy,
+        student.numParams() * 4L / 1024, studentLatency[0], studentLatency[1]));
+    LOG.info(String.format("T=%.1f alpha=%.2f: accuracy gap %.4f, %.1fx smaller, %.1fx faster"
+            + " at batch 1, %.1fx faster at batch %d", temperature, alpha,
+        teacherAccuracy - studentAccuracy, teacher.numParams() / (double) student.numParams(),
+        teacherLatency[0] / studentLatency[0], teacherLatency[1] / studentLatency[1],
+        batchSize));
+  }
+
+  /**
+   * The student: two 3x3 convolutions with 32 and 64 filters, each followed by max pooling, and
+   * a dense layer of 256 units.
+   * @param loss Loss of the softmax output layer, e.g. a {@link DistillationLoss}.
+   */
+  public static MultiLayerConfiguration studentConfiguration(int seed, int numLabels,
+                                                             ILossFunction loss) {
+    return new NeuralNetConfiguration.Builder()
+        .seed(seed)
+        .trainingWorkspaceMode(WorkspaceSetup.mode())
+        .inferenceWorkspaceMode(WorkspaceSetup.mode())
+        .updater(Updater.ADAM)
+        .learningRate(1e-3)
+        .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+        .regularization(true)
+        .l2(5e-4)
+        .weightInit(WeightInit.XAVIER_UNIFORM)
+        .list()
+        .layer(0, new ConvolutionLayer.Builder(3, 3).name("cnn1").nIn(3).nOut(32)
+            .convolutionMode(ConvolutionMode.Same).activation(Activation.RELU).build())
+        .layer(1, new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
+            .name("maxpool1").kernelSize(2, 2).stride(2, 2).build())
+        .layer(2, new ConvolutionLayer.Builder(3, 3).name("cnn2").nOut(64)
+            .convolutionMode(ConvolutionMode.Same).activation(Activation.RELU).build())
+        .layer(3, new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
+            .name("maxpool2").kernelSize(2, 2).stride(2, 2).build())
+        .layer(4, new DenseLayer.Builder().name("ffn1").nOut(256).activation(Activation.RELU)
+            .build())
+        .layer(5, new OutputLayer.Builder(loss)
+            .name("output").nOut(numLabels).activation(Activation.SOFTMAX).build())
+        .setInputType(InputType.convolutional(CifarBinaryDataSetIterator.HEIGHT,
+            CifarBinaryDataSetIterator.WIDTH, CifarBinaryDataSetIterator.CHANNELS))
+        .backprop(true)
+        .pretrain(false)
+        .build();
+  }
+
+  /**
+   * Log probabilities of the teacher for every example of the (not shuffled) iterator, read from
+   * the cache file or computed and written to it.
+   * @return [numExamples * numLabels] in example order.
+   */
+  static float[] teacherLogProbs(MultiLayerNetwork teacher, CifarBinaryDataSetIterator data,
+                                 File cache) throws IOException {
+    int numLabels = data.totalOutcomes();
+    float[] logProbs = new float[data.numExamples() * numLabels];
+    if (cache.exists()) {
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(cache)))) {
+        if (in.readInt() == MAGIC && in.readInt() == data.numExamples()
+            && in.readInt() == numLabels) {
+          for (int i = 0; i < logProbs.length; i++)
+            logProbs[i] = in.readFloat();
+          LOG.info("Read teacher outputs from {}", cache);
+          return logProbs;
+        }
+      }
+      LOG.warn("Ignoring teacher outputs in {}, written for other data", cache);
+    }
+
+    long start = System.nanoTime();
+    data.reset();
+    int offset = 0;
+    while (data.hasNext()) {
+      DataSet ds = data.next();
+      // the teacher ends in a softmax, its log is the logits up to a constant per example
+      INDArray output = Transforms.log(teacher.output(ds.getFeatures(), false), false);
+      float[] values = Nd4j.toFlattened('c', output).data().asFloat();
+      for (float value : values)
+        logProbs[offset++] = Math.max(value, -100f);
+    }
+    data.reset();
+    File tmp = new File(cache.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(data.numExamples());
+      out.writeInt(numLabels);
+      for (float value : logProbs)
+        out.writeFloat(value);
+    }
+    Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("Computed teacher outputs for {} examples in {} ms, cached in {}",
+        data.numExamples(), (System.nanoTime() - start) / 1000000, cache);
+    return logProbs;
+  }
+
+  /**
+   * @return Mean latency in ms, see {@link QuantizationTool#latency}.
+   */
+  private static double latency(MultiLayerNetwork net, INDArray input) {
+    return QuantizationTool.latency(input, features -> net.output(features, false));
+  }
+
+}
@@ -0,0 +1,115 @@
+package nnplayground.train;
+
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.nd4j.linalg.primitives.Pair;
+
+/**
+ * Knowledge distillation loss of Hinton et al., "Distilling the Knowledge in a Neural Network"
+ * (2015), on the logits z of the student:
+ * {@code alpha * T^2 * CE(q, softmax(z / T)) + (1 - alpha) * CE(y, softmax(z))}, where q is the
+ * teacher's distribution at temperature T and y the one-hot label. The T^2 keeps the gradient of
+ * the soft part, {@code alpha * T * (softmax(z / T) - q)}, on the scale of the hard part when the
+ * temperature changes.
+ *
+ * <p>The labels are {@code [q | y]}, twice as many columns as the output layer, see
+ * {@link nnplayground.data.SoftTargetDataSetIterator}. The gradient is taken with respect to the
+ * logits directly, so the output layer keeps its SOFTMAX activation and the trained network
+ * outputs plain probabilities.
+ */
+public class DistillationLoss implements ILossFunction {
+
+  private double temperature;
+  private double alpha;
+
+  /**
+   * @param temperature Softmax temperature of the soft targets and the student.
+   * @param alpha Weight of the soft targets, 0 trains on the hard labels only.
+   */
+  public DistillationLoss(double temperature, double alpha) {
+    this.temperature = temperature;
+    this.alpha = alpha;
+  }
+
+  // for JSON deserialization of the network configuration
+  private DistillationLoss() {
+  }
+
+  @Override
+  public double computeScore(INDArray labels, INDArray preOutput, IActivation activationFn,
+                             INDArray mask, boolean average) {
+    double score = computeScoreArray(labels, preOutput, activationFn, mask).sumNumber()
+        .doubleValue();
+    return average ? score / preOutput.size(0) : score;
+  }
+
+  @Override
+  public INDArray computeScoreArray(INDArray labels, INDArray preOutput, IActivation activationFn,
+                                    INDArray mask) {
+    int k = preOutput.columns();
+    INDArray scores = soft(labels, k).mul(logSoftmax(preOutput.div(temperature))).sum(1)
+        .muli(-alpha * temperature * temperature);
+    scores.subi(hard(labels, k).mul(logSoftmax(preOutput.dup())).sum(1).muli(1 - alpha));
+    if (mask != null)
+      scores.muli(mask);
+    return scores;
+  }
+
+  @Override
+  public INDArray computeGradient(INDArray labels, INDArray preOutput, IActivation activationFn,
+                                  INDArray mask) {
+    int k = preOutput.columns();
+    INDArray gradient = Transforms.exp(logSoftmax(preOutput.div(temperature)), false)
+        .subi(soft(labels, k)).muli(alpha * temperature);
+    gradient.addi(Transforms.exp(logSoftmax(preOutput.dup()), false).subi(hard(labels, k))
+        .muli(1 - alpha));
+    if (mask != null)
+      gradient.muliColumnVector(mask);
+    return gradient;
+  }
+
+  @Override
+  public Pair<Double, INDArray> computeGradientAndScore(INDArray labels, INDArray preOutput,
+                                                        IActivation activationFn, INDArray mask,
+                                                        boolean average) {
+    return new Pair<>(computeScore(labels, preOutput, activationFn, mask, average),
+        computeGradient(labels, preOutput, activationFn, mask));
+  }
+
+  public String name() {
+    return toString();
+  }
+
+  public double getTemperature() {
+    return temperature;
+  }
+
+  public double getAlpha() {
+    return alpha;
+  }
+
+  /**
+   * @return log(softmax(z)) per row, computed in place.
+   */
+  private static INDArray logSoftmax(INDArray z) {
+    z.subiColumnVector(z.max(1));
+    return z.subiColumnVector(Transforms.log(Transforms.exp(z, true).sum(1), false));
+  }
+
+  private static INDArray soft(INDArray labels, int k) {
+    return labels.get(NDArrayIndex.all(), NDArrayIndex.interval(0, k));
+  }
+
+  private static INDArray hard(INDArray labels, int k) {
+    return labels.get(NDArrayIndex.all(), NDArrayIndex.interval(k, 2 * k));
+  }
+
+  @Override
+  public String toString() {
+    return "DistillationLoss(T=" + temperature + ", alpha=" + alpha + ")";
+  }
+
+}
@@ -0,0 +1,224 @@
+package nnplayground.train;
+
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trains until the validation accuracy stops improving. Validation runs on a set held out from
+ * the training data (see {@link nnplayground.data.StratifiedSplit}), never on the test set, every
+ * {@code interval} iterations, by default once per epoch. Training stops when
+ * the accuracy did not improve by more than {@code minDelta} for {@code patience} validations or
+ * after {@code maxEpochs}; the network is left with the best parameters seen.
+ *
+ * <p>While a {@link MagnitudePruningListener} of the network is still raising the sparsity,
+ * validations are logged but neither count as best nor against the patience: the best
+ * parameters are always ones at the final sparsity.
+ *
+ * <p>With {@link AsyncCheckpointer#track} the best parameters, the best accuracy and the
+ * validations without improvement are saved with every checkpoint, so a resumed run still ends
+ * with the best parameters of the whole run and keeps its patience count.
+ *
+ * <p>The wall clock time saved is estimated against the fixed schedule: the measured time per
+ * iteration times the iterations of the remaining epochs.
+ */
+public class EarlyStoppingTrainer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EarlyStoppingTrainer.class);
+
+  private final MultiLayerNetwork net;
+  private final DataSetIterator train;
+  private final DataSetIterator validation;
+  private final int interval;
+  private final int patience;
+  private final double minDelta;
+  private final int maxEpochs;
+
+  private double best = Double.NEGATIVE_INFINITY;
+  private INDArray bestParams = null;
+  private int bestEpoch = 0;
+  private long bestIteration = 0;
+  private int sinceImprovement = 0;
+
+  /**
+   * The early stopping progress saved with a checkpoint.
+   */
+  public static class State {
+    public final double best;
+    /** A copy that is never modified, null before the first improvement. */
+    public final INDArray bestParams;
+    public final int bestEpoch;
+    public final long bestIteration;
+    public final int sinceImprovement;
+
+    State(double best, INDArray bestParams, int bestEpoch, long bestIteration,
+          int sinceImprovement) {
+      this.best = best;
+      this.bestParams = bestParams;
+      this.bestEpoch = bestEpoch;
+      this.bestIteration = bestIteration;
+      this.sinceImprovement = sinceImprovement;
+    }
+  }
+
+  /**
+   * Outcome of {@link #fit}.
+   */
+  public static class Result {
+    public final double bestAccuracy;
+    public final int bestEpoch;
+    public final long bestIteration;
+    public final int epochs;
+    public final boolean stoppedEarly;
+    public final long elapsedMillis;
+    public final long savedMillis;
+
+    Result(double bestAccuracy, int bestEpoch, long bestIteration, int epochs,
+           boolean stoppedEarly, long elapsedMillis, long savedMillis) {
+      this.bestAccuracy = bestAccuracy;
+      this.bestEpoch = bestEpoch;
+      this.bestIteration = bestIteration;
+      this.epochs = epochs;
+      this.stoppedEarly = stoppedEarly;
+      this.elapsedMillis = elapsedMillis;
+      this.savedMillis = savedMillis;
+    }
+  }
+
+  /**
+   * @param net Network to train.
+   * @param train Training data, reset after every epoch.
+   * @param validation Validation data held out from the training data.
+   * @param interval Validate every n iterations, 0 for once per epoch.
+   * @param patience Validations without improvement before stopping.
+   * @param minDelta Minimum accuracy gain counted as improvement.
+   * @param maxEpochs Epochs of the fixed schedule.
+   */
+  public EarlyStoppingTrainer(MultiLayerNetwork net, DataSetIterator train,
+                              DataSetIterator validation, int interval, int patience,
+                              double minDelta, int maxEpochs) {
+    this.net = net;
+    this.train = train;
+    this.interval = interval;
+    this.patience = patience;
+    this.minDelta = minDelta;
+    this.maxEpochs = maxEpochs;
+    this.validation = validation;
+  }
+
+  /**
+   * @return Accuracy of the network on the validation set.
+   */
+  public double validate() {
+    Evaluation eval = new Evaluation();
+    validation.reset();
+    while (validation.hasNext()) {
+      DataSet ds = validation.next();
+      eval.eval(ds.getLabels(), net.output(ds.getFeatures(), false));
+    }
+    validation.reset();
+    return eval.accuracy();
+  }
+
+  /**
+   * @return The current progress, the best parameters are shared, not copied.
+   */
+  public State state() {
+    return new State(best, bestParams, bestEpoch, bestIteration, sinceImprovement);
+  }
+
+  /**
+   * Continue from the progress of a resumed run.
+   */
+  public void restore(State state) {
+    best = state.best;
+    bestParams = state.bestParams;
+    bestEpoch = state.bestEpoch;
+    bestIteration = state.bestIteration;
+    sinceImprovement = state.sinceImprovement;
+  }
+
+  /**
+   * Train from epoch 0.
+   */
+  public Result fit() {
+    return fit(0);
+  }
+
+  /**
+   * Train from an epoch (e.g. after resuming from a checkpoint) up to maxEpochs.
+   */
+  public Result fit(int startEpoch) {
+    long candidatesFrom = 0;
+    for (IterationListener listener : net.getListeners())
+      if (listener instanceof MagnitudePruningListener)
+        candidatesFrom = Math.max(candidatesFrom,
+            ((MagnitudePruningListener) listener).endIteration());
+    long start = System.nanoTime();
+    long validationNanos = 0;
+    if (bestParams == null)
+      bestEpoch = startEpoch;
+    long iteration = 0;
+    int iterationsPerEpoch = 0;
+    boolean stop = sinceImprovement >= patience;
+
+    int epoch = startEpoch;
+    for (; epoch < maxEpochs && !stop; epoch++) {
+      int epochIterations = 0;
+      while (train.hasNext() && !stop) {
+        net.fit(train.next());
+        iteration++;
+        epochIterations++;
+        boolean endOfEpoch = !train.hasNext();
+        if (interval > 0 ? iteration % interval != 0 : !endOfEpoch)
+          continue;
+
+        long validationStart = System.nanoTime();
+        double accuracy = validate();
+        validationNanos += System.nanoTime() - validationStart;
+        if (net.getLayerWiseConfigurations().getIterationCount() < candidatesFrom) {
+          LOG.info("Epoch {}, iteration {}: validation accuracy {} (pruning until iteration {})",
+              epoch, iteration, String.format("%.4f", accuracy), candidatesFrom);
+          continue;
+        }
+        if (accuracy > best + minDelta) {
+          best = accuracy;
+          bestParams = net.params().dup();
+          bestEpoch = epoch;
+          bestIteration = net.getLayerWiseConfigurations().getIterationCount();
+          sinceImprovement = 0;
+        } else {
+          sinceImprovement++;
+        }
+        LOG.info("Epoch {}, iteration {}: validation accuracy {} (best {}, {} without improvement)",
+            epoch, iteration, String.format("%.4f", accuracy), String.format("%.4f", best),
+            sinceImprovement);
+        stop = sinceImprovement >= patience;
+      }
+      iterationsPerEpoch = Math.max(iterationsPerEpoch, epochIterations);
+      train.reset();
+    }
+
+    if (bestParams != null)
+      net.setParams(bestParams);
+    long elapsed = System.nanoTime() - start;
+    long saved = 0;
+    if (stop && iteration > 0) {
+      double nanosPerIteration = (elapsed - validationNanos) / (double) iteration;
+      long remaining = (long) (maxEpochs - startEpoch) * iterationsPerEpoch - iteration;
+      saved = (long) (remaining * nanosPerIteration / 1e6);
+    }
+    int epochs = epoch - startEpoch;
+    LOG.info("{} after {} epochs in {} s ({} s validating), best accuracy {} at epoch {}, "
+            + "estimated {} s saved against {} epochs", stop ? "Stopped early" : "Finished",
+        epochs, elapsed / 1000000000, validationNanos / 1000000000,
+        String.format("%.4f", best), bestEpoch, saved / 1000, maxEpochs - startEpoch);
+    return new Result(best, bestEpoch, bestIteration, epochs, stop, elapsed / 1000000, saved);
+  }
+
+}
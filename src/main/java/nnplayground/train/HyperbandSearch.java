@@ -0,0 +1,263 @@
+package nnplayground.train;
+
+import nnplayground.data.PackedImageCache;
+import nnplayground.data.PackedImageDataSetIterator;
+import nnplayground.data.StratifiedSplit;
+import nnplayground.examples.MnistClassifier;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Hyperparameter search for the MNIST LeNet with Hyperband (Li et al., "Hyperband: A Novel
+ * Bandit-Based Approach to Hyperparameter Optimization", 2018). Every bracket samples a number of
+ * random configurations and runs successive halving on them: all trials train for a few epochs,
+ * only the best 1/eta continue with eta times the epochs, up to {@code maxEpochs}. Brackets
+ * differ in how aggressively they stop trials early.
+ *
+ * <p>The space covers the initial learning rate of the schedule (log-uniform), l1, l2
+ * (log-uniform) and the batch size. Trials of a rung train concurrently; the number of
+ * concurrent trials is limited by the cores (search.threadsPerTrial cores each, set
+ * OMP_NUM_THREADS to the same value) and by the memory budget divided by the estimated memory of
+ * a trial. Trials are ranked on a stratified validation part held out from the training images.
+ * Every evaluation is written to a leaderboard CSV with the validation accuracy and the training
+ * time of the trial so far.
+ *
+ * <p>System properties: search.maxEpochs (9), search.eta (3), search.cores (all),
+ * search.threadsPerTrial (2), search.memoryMB (4096), search.validationFraction (0.1),
+ * search.output (./var/data/mnist/hyperband-leaderboard.csv).
+ */
+public class HyperbandSearch {
+
+  private static final Logger LOG = LoggerFactory.getLogger(HyperbandSearch.class);
+
+  private static final int seed = 1234;
+  private static final int[] batchSizes = {32, 54, 64, 128};
+
+  private final PackedImageCache trainData;
+  private final int[] trainExamples;
+  private final List<DataSet> validation;
+  private final ExecutorService executor;
+  private final Random random = new Random(seed);
+  private final List<String> leaderboard = new ArrayList<>();
+  private int trials = 0;
+  private long epochsTrained = 0;
+
+  /**
+   * A sampled configuration and its training state.
+   */
+  static class Trial {
+    final int id;
+    final int bracket;
+    final double learningRate;
+    final double l1;
+    final double l2;
+    final int batchSize;
+    MultiLayerNetwork net;
+    DataSetIterator train;
+    int epochs = 0;
+    double accuracy = 0;
+    long trainNanos = 0;
+
+    Trial(int id, int bracket, double learningRate, double l1, double l2, int batchSize) {
+      this.id = id;
+      this.bracket = bracket;
+      this.learningRate = learningRate;
+      this.l1 = l1;
+      this.l2 = l2;
+      this.batchSize = batchSize;
+    }
+  }
+
+  /**
+   * @param trainData Training images.
+   * @param trainExamples Indices of the images the trials train on.
+   * @param validation Held-out images the trials are ranked on, disjoint from trainExamples.
+   */
+  public HyperbandSearch(PackedImageCache trainData, int[] trainExamples,
+                         List<DataSet> validation, int parallelism) {
+    this.trainData = trainData;
+    this.trainExamples = trainExamples;
+    this.validation = validation;
+    this.executor = Executors.newFixedThreadPool(parallelism);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    int maxEpochs = Integer.getInteger("search.maxEpochs", 9);
+    int eta = Integer.getInteger("search.eta", 3);
+    int cores = Integer.getInteger("search.cores", Runtime.getRuntime().availableProcessors());
+    int threadsPerTrial = Integer.getInteger("search.threadsPerTrial", 2);
+    long memoryBytes = Long.getLong("search.memoryMB", 4096) * 1024 * 1024;
+    File output = new File(System.getProperty("search.output",
+        "./var/data/mnist/hyperband-leaderboard.csv"));
+    double validationFraction =
+        Double.parseDouble(System.getProperty("search.validationFraction", "0.1"));
+
+    String basePath = "./var/data/mnist";
+    PackedImageCache train = PackedImageCache.openOrPack(new File(basePath + "/mnist_png/training"),
+        new File(basePath + "/mnist-training.pack"), 28, 28, 1);
+    // trials are ranked on a stratified part of the training images that no trial trains on,
+    // the test set is not used for model selection
+    int[][] split = StratifiedSplit.split(train, validationFraction, seed);
+    DataSetIterator validationIter =
+        new PackedImageDataSetIterator(train, split[1], 256, false, seed);
+    validationIter.setPreProcessor(new ImagePreProcessingScaler(0, 1));
+    List<DataSet> validation = new ArrayList<>();
+    while (validationIter.hasNext())
+      validation.add(validationIter.next());
+
+    // memory of a trial: activations and errors of the largest batch, params, gradients, updater
+    MultiLayerConfiguration conf = MnistClassifier.buildConfiguration(seed, 1, 1, 10);
+    MultiLayerNetwork sample = new MultiLayerNetwork(conf);
+    sample.init();
+    long trialBytes = WorkspaceSetup.estimateIterationBytes(conf,
+        InputType.convolutionalFlat(28, 28, 1), batchSizes[batchSizes.length - 1])
+        + 4L * 4 * sample.numParams();
+    int parallelism = (int) Math.max(1, Math.min(cores / Math.max(1, threadsPerTrial),
+        memoryBytes / trialBytes));
+    LOG.info("Running {} trials concurrently ({} MB estimated per trial)", parallelism,
+        trialBytes / (1024 * 1024));
+
+    HyperbandSearch search = new HyperbandSearch(train, split[0], validation, parallelism);
+    try {
+      search.run(maxEpochs, eta);
+      search.writeLeaderboard(output);
+    } finally {
+      search.shutdown();
+    }
+  }
+
+  /**
+   * Run all brackets.
+   * @param maxEpochs Most epochs a single trial is trained.
+   * @param eta Fraction kept (1/eta) and epoch growth per rung.
+   */
+  public void run(int maxEpochs, int eta) throws InterruptedException, ExecutionException {
+    long start = System.nanoTime();
+    int sMax = (int) Math.floor(Math.log(maxEpochs) / Math.log(eta) + 1e-9);
+    Trial best = null;
+    for (int s = sMax; s >= 0; s--) {
+      int n = (int) Math.ceil((sMax + 1.0) / (s + 1) * Math.pow(eta, s));
+      double r = maxEpochs * Math.pow(eta, -s);
+      List<Trial> rung = new ArrayList<>();
+      for (int i = 0; i < n; i++)
+        rung.add(sample(s));
+      LOG.info("Bracket {}: {} trials starting with {} epochs", s, n,
+          String.format("%.2f", r));
+      for (int i = 0; i <= s; i++) {
+        int epochs = (int) Math.max(1, Math.round(r * Math.pow(eta, i)));
+        train(rung, epochs, i);
+        rung.sort(Comparator.comparingDouble((Trial t) -> t.accuracy).reversed());
+        if (best == null || rung.get(0).accuracy > best.accuracy)
+          best = rung.get(0);
+        int keep = Math.max(1, rung.size() / eta);
+        for (Trial dropped : rung.subList(i < s ? keep : 0, rung.size()))
+          release(dropped);
+        if (i < s)
+          rung = new ArrayList<>(rung.subList(0, keep));
+      }
+    }
+    LOG.info("Best: trial {} with accuracy {} (lr {}, l1 {}, l2 {}, batch {})", best.id,
+        String.format("%.4f", best.accuracy), best.learningRate, best.l1, best.l2,
+        best.batchSize);
+    LOG.info("{} trials in {} s, {} epochs trained, a grid search over the same trials with {} "
+            + "epochs each needs {}", trials, (System.nanoTime() - start) / 1000000000,
+        epochsTrained, maxEpochs, (long) trials * maxEpochs);
+  }
+
+  private Trial sample(int bracket) {
+    double learningRate = Math.pow(10, -3 + 2 * random.nextDouble()); // 0.001 .. 0.1
+    double l1 = random.nextBoolean() ? 0 : Math.pow(10, -6 + 2 * random.nextDouble());
+    double l2 = Math.pow(10, -5 + 3 * random.nextDouble()); // 1e-5 .. 1e-2
+    int batchSize = batchSizes[random.nextInt(batchSizes.length)];
+    return new Trial(trials++, bracket, learningRate, l1, l2, batchSize);
+  }
+
+  /**
+   * Train all trials of a rung concurrently up to a number of epochs and evaluate them.
+   */
+  private void train(List<Trial> rung, int epochs, int rungIndex)
+      throws InterruptedException, ExecutionException {
+    List<Future<?>> futures = new ArrayList<>();
+    for (Trial trial : rung)
+      futures.add(executor.submit(() -> {
+        trainTo(trial, epochs);
+        return null;
+      }));
+    for (Future<?> future : futures)
+      future.get();
+    for (Trial trial : rung) {
+      leaderboard.add(String.format(Locale.ROOT, "%d,%d,%d,%d,%g,%g,%g,%d,%.4f,%.1f", trial.id,
+          trial.bracket, rungIndex, trial.epochs, trial.learningRate, trial.l1, trial.l2,
+          trial.batchSize, trial.accuracy, trial.trainNanos / 1e9));
+    }
+  }
+
+  private void trainTo(Trial trial, int epochs) {
+    if (trial.net == null) {
+      trial.net = new MultiLayerNetwork(MnistClassifier.buildConfiguration(seed, 1, 1, 10,
+          trial.learningRate, trial.l1, trial.l2));
+      trial.net.init();
+      trial.train = new PackedImageDataSetIterator(trainData, trainExamples, trial.batchSize,
+          true, seed + trial.id);
+      trial.train.setPreProcessor(new ImagePreProcessingScaler(0, 1));
+    }
+    long start = System.nanoTime();
+    int trained = 0;
+    for (; trial.epochs < epochs; trial.epochs++, trained++) {
+      trial.net.fit(trial.train);
+      trial.train.reset();
+    }
+    trial.trainNanos += System.nanoTime() - start;
+    synchronized (this) {
+      epochsTrained += trained;
+    }
+    Evaluation eval = new Evaluation();
+    for (DataSet ds : validation)
+      eval.eval(ds.getLabels(), trial.net.output(ds.getFeatures(), false));
+    trial.accuracy = eval.accuracy();
+    LOG.info("Trial {} after {} epochs: accuracy {}", trial.id, trial.epochs,
+        String.format("%.4f", trial.accuracy));
+  }
+
+  private static void release(Trial trial) {
+    trial.net = null;
+    trial.train = null;
+  }
+
+  /**
+   * Write all evaluations, best accuracy first.
+   */
+  public void writeLeaderboard(File file) throws IOException {
+    List<String> rows = new ArrayList<>(leaderboard);
+    rows.sort(Comparator.comparingDouble((String row) -> -Double.parseDouble(row.split(",")[8]))
+        .thenComparingDouble(row -> Double.parseDouble(row.split(",")[9])));
+    file.getAbsoluteFile().getParentFile().mkdirs();
+    try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+      out.println("trial,bracket,rung,epochs,learningRate,l1,l2,batchSize,accuracy,trainSeconds");
+      for (String row : rows)
+        out.println(row);
+    }
+    LOG.info("Leaderboard written to {}", file);
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+}
@@ -0,0 +1,332 @@
+package nnplayground.train;
+
+import nnplayground.examples.Cifar;
+import nnplayground.examples.MnistClassifier;
+import org.deeplearning4j.berkeley.Pair;
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.layers.IOutputLayer;
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Per-layer profile of a MultiLayerNetwork. For a profiled training iteration the layers are run
+ * one by one with {@code activate} and {@code backpropGradient}, timing each layer's forward and
+ * backward pass and recording the size of its activations and gradients; then the batch is fitted
+ * as usual. DL4J applies the updater to the flattened parameters of all layers at once, so the
+ * update time is the rest of the fit time after forward and backward pass, split between the
+ * layers by parameter count. FLOPs are counted from the runtime shapes (multiply-adds as 2 FLOPs;
+ * pooling, dropout and activations as one per element and window).
+ *
+ * <p>Input preprocessors are timed as part of the layer they feed. The report is the mean over the
+ * profiled iterations, as a table and as collapsed stacks for flamegraph.pl / speedscope.
+ *
+ * <p>The main method profiles the Cifar or LeNet network on random data. System properties:
+ * profile.model (cifar | mnist), profile.batchSize (100), profile.iterations (20),
+ * profile.warmup (5), profile.out (./var/profile).
+ */
+public class LayerProfiler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LayerProfiler.class);
+
+  private static final WorkspaceConfiguration WORKSPACE = WorkspaceConfiguration.builder()
+      .policyAllocation(AllocationPolicy.STRICT)
+      .policyLearning(LearningPolicy.FIRST_LOOP)
+      .policySpill(SpillPolicy.REALLOCATE)
+      .build();
+
+  private final MultiLayerNetwork model;
+  private final Layer[] layers;
+  private final String[] names;
+  private final int bytesPerElement;
+  private final long[] forwardNanos;
+  private final long[] backwardNanos;
+  private final long[] inferenceNanos;
+  private final long[] activationBytes;
+  private final long[] gradientBytes;
+  private final long[] forwardFlops;
+  private final long[] backwardFlops;
+  private long updateNanos = 0;
+  private long fitNanos = 0;
+  private int trainIterations = 0;
+  private int inferenceIterations = 0;
+
+  public LayerProfiler(MultiLayerNetwork model) {
+    this.model = model;
+    this.layers = model.getLayers();
+    int n = layers.length;
+    this.names = new String[n];
+    for (int i = 0; i < n; i++) {
+      String name = layers[i].conf().getLayer().getLayerName();
+      names[i] = name != null ? name : "layer" + i;
+    }
+    this.bytesPerElement = Nd4j.dataType() == DataBuffer.Type.DOUBLE ? 8 : 4;
+    this.forwardNanos = new long[n];
+    this.backwardNanos = new long[n];
+    this.inferenceNanos = new long[n];
+    this.activationBytes = new long[n];
+    this.gradientBytes = new long[n];
+    this.forwardFlops = new long[n];
+    this.backwardFlops = new long[n];
+  }
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    String name = System.getProperty("profile.model", "cifar");
+    int batchSize = Integer.getInteger("profile.batchSize", 100);
+    int iterations = Integer.getInteger("profile.iterations", 20);
+    int warmup = Integer.getInteger("profile.warmup", 5);
+    File out = new File(System.getProperty("profile.out", "./var/profile"));
+
+    MultiLayerNetwork model;
+    int[] inputShape;
+    if ("mnist".equals(name)) {
+      model = new MultiLayerNetwork(MnistClassifier.buildConfiguration(123, 1, 1, 10));
+      model.init();
+      inputShape = new int[] {batchSize, 28 * 28};
+    } else {
+      model = new Cifar().trainModelByCifarWithNet();
+      inputShape = new int[] {batchSize, 3, 32, 32};
+    }
+    int outputs = ((FeedForwardLayer) model.getLayer(model.getnLayers() - 1).conf().getLayer())
+        .getNOut();
+    Nd4j.getRandom().setSeed(123);
+    INDArray labels = Nd4j.zeros(batchSize, outputs);
+    for (int i = 0; i < batchSize; i++)
+      labels.putScalar(i, i % outputs, 1.0);
+    DataSet batch = new DataSet(Nd4j.rand(inputShape), labels);
+
+    LayerProfiler warm = new LayerProfiler(model);
+    for (int i = 0; i < warmup; i++) {
+      warm.profileTraining(batch);
+      warm.profileInference(batch.getFeatures());
+    }
+    LayerProfiler profiler = new LayerProfiler(model);
+    for (int i = 0; i < iterations; i++)
+      profiler.profileTraining(batch);
+    for (int i = 0; i < iterations; i++)
+      profiler.profileInference(batch.getFeatures());
+
+    String table = profiler.table();
+    LOG.info("Per-layer profile of {}, batch size {}, {} iterations:\n{}", name, batchSize,
+        iterations, table);
+    out.mkdirs();
+    File tableFile = new File(out, name + "-layers.txt");
+    File stacksFile = new File(out, name + "-layers.collapsed");
+    try (PrintWriter writer = new PrintWriter(tableFile, StandardCharsets.UTF_8.name())) {
+      writer.print(table);
+    }
+    profiler.writeCollapsedStacks(stacksFile);
+    LOG.info("Wrote {} and {}", tableFile, stacksFile);
+  }
+
+  /**
+   * Profile one training iteration: a timed layer by layer forward and backward pass, then a
+   * regular fit of the batch.
+   */
+  public void profileTraining(DataSet batch) {
+    int n = batch.numExamples();
+    long forward = 0;
+    long backward = 0;
+    model.initGradientsView();
+    try (MemoryWorkspace ignored = openWorkspace(model.getLayerWiseConfigurations()
+        .getTrainingWorkspaceMode())) {
+      INDArray x = batch.getFeatures();
+      for (int i = 0; i < layers.length; i++) {
+        long start = System.nanoTime();
+        InputPreProcessor preProcessor = preProcessor(i);
+        if (preProcessor != null)
+          x = preProcessor.preProcess(x, n);
+        layers[i].setInputMiniBatchSize(n);
+        INDArray input = x;
+        x = layers[i].activate(x, true);
+        long elapsed = System.nanoTime() - start;
+        forwardNanos[i] += elapsed;
+        forward += elapsed;
+        activationBytes[i] = (long) x.length() * bytesPerElement;
+        forwardFlops[i] = forwardFlops(i, input, x);
+        backwardFlops[i] = backwardFlops(i, input, x);
+      }
+
+      ((IOutputLayer) layers[layers.length - 1]).setLabels(batch.getLabels());
+      INDArray epsilon = null;
+      for (int i = layers.length - 1; i >= 0; i--) {
+        long start = System.nanoTime();
+        Pair<Gradient, INDArray> result = layers[i].backpropGradient(epsilon);
+        epsilon = result.getSecond();
+        InputPreProcessor preProcessor = preProcessor(i);
+        if (preProcessor != null && epsilon != null)
+          epsilon = preProcessor.backprop(epsilon, n);
+        long elapsed = System.nanoTime() - start;
+        backwardNanos[i] += elapsed;
+        backward += elapsed;
+        gradientBytes[i] = ((long) (epsilon != null ? epsilon.length() : 0) + layers[i].numParams())
+            * bytesPerElement;
+      }
+    }
+
+    long start = System.nanoTime();
+    model.fit(batch);
+    long fit = System.nanoTime() - start;
+    fitNanos += fit;
+    updateNanos += Math.max(0, fit - forward - backward);
+    trainIterations++;
+  }
+
+  /**
+   * Profile one inference pass, layer by layer.
+   */
+  public void profileInference(INDArray features) {
+    int n = features.size(0);
+    try (MemoryWorkspace ignored = openWorkspace(model.getLayerWiseConfigurations()
+        .getInferenceWorkspaceMode())) {
+      INDArray x = features;
+      for (int i = 0; i < layers.length; i++) {
+        long start = System.nanoTime();
+        InputPreProcessor preProcessor = preProcessor(i);
+        if (preProcessor != null)
+          x = preProcessor.preProcess(x, n);
+        layers[i].setInputMiniBatchSize(n);
+        x = layers[i].activate(x, false);
+        inferenceNanos[i] += System.nanoTime() - start;
+      }
+    }
+    inferenceIterations++;
+  }
+
+  private InputPreProcessor preProcessor(int i) {
+    return model.getLayerWiseConfigurations().getInputPreProcess(i);
+  }
+
+  /**
+   * Open the workspace MultiLayerNetwork uses around fit/output, the layers borrow it.
+   */
+  private static MemoryWorkspace openWorkspace(WorkspaceMode mode) {
+    if (mode == WorkspaceMode.NONE)
+      return null;
+    return Nd4j.getWorkspaceManager()
+        .getAndActivateWorkspace(WORKSPACE, WorkspaceSetup.EXTERNAL_WORKSPACE);
+  }
+
+  private long forwardFlops(int i, INDArray input, INDArray output) {
+    org.deeplearning4j.nn.conf.layers.Layer conf = layers[i].conf().getLayer();
+    if (conf instanceof ConvolutionLayer) {
+      int[] kernel = ((ConvolutionLayer) conf).getKernelSize();
+      long nIn = ((ConvolutionLayer) conf).getNIn();
+      // one multiply-add per input channel and kernel position for every output element
+      return (long) output.length() * (2 * nIn * kernel[0] * kernel[1] + 1);
+    }
+    if (conf instanceof SubsamplingLayer) {
+      int[] kernel = ((SubsamplingLayer) conf).getKernelSize();
+      return (long) output.length() * kernel[0] * kernel[1];
+    }
+    if (conf instanceof FeedForwardLayer && layers[i].numParams() > 0) {
+      FeedForwardLayer ff = (FeedForwardLayer) conf;
+      return (long) input.size(0) * (2L * ff.getNIn() * ff.getNOut() + ff.getNOut());
+    }
+    return output.length();
+  }
+
+  private long backwardFlops(int i, INDArray input, INDArray output) {
+    // gradients for the input and for the weights each cost as much as the forward pass
+    if (layers[i].numParams() > 0)
+      return 2 * forwardFlops(i, input, output);
+    return forwardFlops(i, input, output);
+  }
+
+  /**
+   * @return Mean milliseconds of the (estimated) parameter update of layer i per iteration.
+   */
+  private double updateMillis(int i) {
+    long params = model.numParams();
+    if (trainIterations == 0 || params == 0)
+      return 0;
+    return updateNanos / 1e6 / trainIterations * layers[i].numParams() / params;
+  }
+
+  private double mean(long nanos, int iterations) {
+    return iterations == 0 ? 0 : nanos / 1e6 / iterations;
+  }
+
+  /**
+   * @return The profile as a text table, one row per layer, times in ms per iteration.
+   */
+  public String table() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%-12s %-18s %9s %9s %9s %7s %9s %10s %10s %10s %10s"
+            + " %10s %8s%n", "layer", "type", "fwd ms", "bwd ms", "upd ms", "train%", "infer ms",
+        "act KB", "grad KB", "params", "fwd MFLOP", "bwd MFLOP", "GFLOP/s"));
+    double total = mean(fitNanos, trainIterations);
+    double[] sums = new double[5];
+    for (int i = 0; i < layers.length; i++) {
+      double fwd = mean(forwardNanos[i], trainIterations);
+      double bwd = mean(backwardNanos[i], trainIterations);
+      double upd = updateMillis(i);
+      double infer = mean(inferenceNanos[i], inferenceIterations);
+      double layerMillis = fwd + bwd + upd;
+      double gflops = fwd + bwd > 0 ? (forwardFlops[i] + backwardFlops[i]) / ((fwd + bwd) * 1e6)
+          : 0;
+      sb.append(String.format(Locale.ROOT, "%-12s %-18s %9.3f %9.3f %9.3f %6.1f%% %9.3f %10d"
+              + " %10d %10d %10.1f %10.1f %8.2f%n", names[i],
+          layers[i].conf().getLayer().getClass().getSimpleName(), fwd, bwd, upd,
+          total > 0 ? 100 * layerMillis / total : 0, infer, activationBytes[i] / 1024,
+          gradientBytes[i] / 1024, layers[i].numParams(), forwardFlops[i] / 1e6,
+          backwardFlops[i] / 1e6, gflops));
+      sums[0] += fwd;
+      sums[1] += bwd;
+      sums[2] += upd;
+      sums[3] += infer;
+      sums[4] += layerMillis;
+    }
+    sb.append(String.format(Locale.ROOT, "%-12s %-18s %9.3f %9.3f %9.3f %6.1f%% %9.3f%n",
+        "total", "", sums[0], sums[1], sums[2], total > 0 ? 100 * sums[4] / total : 0, sums[3]));
+    sb.append(String.format(Locale.ROOT, "fit %.3f ms per iteration; the timed layer by layer "
+        + "pass runs in addition to it%n", total));
+    return sb.toString();
+  }
+
+  /**
+   * Write the profile as collapsed stacks ("train;cnn1;forward 1234", microseconds summed over
+   * all profiled iterations), the input format of flamegraph.pl and speedscope.
+   */
+  public void writeCollapsedStacks(File file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+      for (int i = 0; i < layers.length; i++) {
+        stack(writer, "train;" + names[i] + ";forward", forwardNanos[i]);
+        stack(writer, "train;" + names[i] + ";backward", backwardNanos[i]);
+        stack(writer, "train;" + names[i] + ";update",
+            (long) (updateMillis(i) * 1e6 * trainIterations));
+      }
+      for (int i = 0; i < layers.length; i++)
+        stack(writer, "inference;" + names[i] + ";forward", inferenceNanos[i]);
+    }
+  }
+
+  private static void stack(PrintWriter writer, String stack, long nanos) {
+    long micros = nanos / 1000;
+    if (micros > 0)
+      writer.println(stack + " " + micros);
+  }
+
+}
@@ -0,0 +1,135 @@
+package nnplayground.train;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gradual magnitude pruning of the weights of named layers. Between {@code startIteration} and
+ * {@code endIteration} the target sparsity grows from {@code initialSparsity} to
+ * {@code finalSparsity} along the cubic schedule of Zhu and Gupta, "To prune, or not to prune"
+ * (2017): s(t) = s_f + (s_i - s_f) * (1 - (t - t_0) / (t_1 - t_0))^3. Every {@code frequency}
+ * iterations the weights with the smallest magnitude are masked; after every iteration the masks
+ * are applied again so the updater can't grow pruned weights back. The schedule follows the
+ * network's iteration count, so a run resumed from a checkpoint continues where it stopped.
+ *
+ * <p>The static {@link #prune} does the same in one shot after training.
+ */
+public class MagnitudePruningListener implements IterationListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MagnitudePruningListener.class);
+
+  private final List<String> layerNames;
+  private final double initialSparsity;
+  private final double finalSparsity;
+  private final long startIteration;
+  private final long endIteration;
+  private final int frequency;
+  private final Map<String, INDArray> masks = new LinkedHashMap<>();
+
+  /**
+   * @param layerNames Names of the dense layers to prune.
+   * @param initialSparsity Sparsity at the start iteration.
+   * @param finalSparsity Sparsity reached at the end iteration, e.g. 0.9 for 90% zeros.
+   * @param startIteration First iteration pruning.
+   * @param endIteration Iteration the final sparsity is reached.
+   * @param frequency Update the masks every n iterations.
+   */
+  public MagnitudePruningListener(List<String> layerNames, double initialSparsity,
+                                  double finalSparsity, long startIteration, long endIteration,
+                                  int frequency) {
+    this.layerNames = layerNames;
+    this.initialSparsity = initialSparsity;
+    this.finalSparsity = finalSparsity;
+    this.startIteration = startIteration;
+    this.endIteration = Math.max(startIteration, endIteration);
+    this.frequency = Math.max(1, frequency);
+  }
+
+  /**
+   * @return The target sparsity at an iteration.
+   */
+  public double sparsityAt(long t) {
+    if (t < startIteration)
+      return 0;
+    if (t >= endIteration)
+      return finalSparsity;
+    double progress = (t - startIteration) / (double) (endIteration - startIteration);
+    return finalSparsity + (initialSparsity - finalSparsity) * Math.pow(1 - progress, 3);
+  }
+
+  /**
+   * @return The iteration the final sparsity is reached, earlier parameters are less sparse.
+   */
+  public long endIteration() {
+    return endIteration;
+  }
+
+  @Override
+  public boolean invoked() {
+    return false;
+  }
+
+  @Override
+  public void invoke() {
+  }
+
+  @Override
+  public void iterationDone(Model model, int ignored) {
+    if (!(model instanceof MultiLayerNetwork))
+      return;
+    MultiLayerNetwork net = (MultiLayerNetwork) model;
+    // DL4J counts the iteration after the listeners ran, restored from checkpoints on resume
+    long t = net.getLayerWiseConfigurations().getIterationCount() + 1L;
+    if (t < startIteration)
+      return;
+    boolean update = masks.isEmpty() || t <= endIteration
+        && ((t - startIteration) % frequency == 0 || t == endIteration);
+    for (String name : layerNames) {
+      INDArray weights = net.getLayer(name).getParam("W");
+      if (update) {
+        double sparsity = sparsityAt(t);
+        masks.put(name, mask(weights, sparsity));
+        LOG.info("Iteration {}: pruned {} to {}% zeros", t, name,
+            String.format("%.1f", 100 * sparsity));
+      }
+      weights.muli(masks.get(name));
+    }
+  }
+
+  /**
+   * One-shot pruning of a layer after training.
+   * @return The number of remaining non-zero weights.
+   */
+  public static long prune(MultiLayerNetwork net, String layerName, double sparsity) {
+    Layer layer = net.getLayer(layerName);
+    INDArray weights = layer.getParam("W");
+    INDArray mask = mask(weights, sparsity);
+    weights.muli(mask);
+    return mask.sumNumber().longValue();
+  }
+
+  /**
+   * @return A 0/1 mask keeping the largest magnitude weights.
+   */
+  static INDArray mask(INDArray weights, double sparsity) {
+    float[] magnitudes = Transforms.abs(weights, true).data().asFloat();
+    int prune = (int) Math.min(magnitudes.length, Math.round(sparsity * magnitudes.length));
+    if (prune == 0)
+      return Nd4j.onesLike(weights);
+    Arrays.sort(magnitudes);
+    return Transforms.abs(weights, true).gt(magnitudes[prune - 1]);
+  }
+
+}
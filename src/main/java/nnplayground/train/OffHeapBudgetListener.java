@@ -0,0 +1,130 @@
+package nnplayground.train;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.MemoryWorkspaceManager;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.memory.abstracts.Nd4jWorkspace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the off-heap memory (all native allocations tracked by javacpp, which includes every
+ * ND4J buffer) after every iteration. It reports the peak, how much it grew per iteration and
+ * in how many iterations it grew at all; with working workspaces the memory is flat after the
+ * first iterations.
+ *
+ * <p>A flat total can still hide allocations that are freed again within the iteration, so the
+ * allocations are counted as well: the bytes the external workspace of the training thread
+ * ({@link WorkspaceSetup#presize}) had to spill or pin outside its memory, per iteration. With a
+ * workspace of the right size that is 0 in every iteration.
+ *
+ * <p>When the usage exceeds the budget a GC is triggered first (off-heap buffers are freed when
+ * their Java objects are collected); if it is still over budget training fails with an
+ * IllegalStateException instead of the process being killed later. For a hard native limit set
+ * -Dorg.bytedeco.javacpp.maxbytes as well.
+ */
+public class OffHeapBudgetListener implements IterationListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(OffHeapBudgetListener.class);
+
+  private final long budgetBytes;
+  private final int reportEvery;
+  private long iteration = 0;
+  private long last = -1;
+  private long peak = 0;
+  private long growth = 0;
+  private long growingIterations = 0;
+  private long gcs = 0;
+  private long lastOutside = 0;
+  private long outsideBytes = 0;
+  private long outsideIterations = 0;
+
+  /**
+   * @param budgetBytes Off-heap budget, 0 for no limit.
+   * @param reportEvery Log the statistics every n iterations.
+   */
+  public OffHeapBudgetListener(long budgetBytes, int reportEvery) {
+    this.budgetBytes = budgetBytes;
+    this.reportEvery = reportEvery;
+  }
+
+  @Override
+  public boolean invoked() {
+    return false;
+  }
+
+  @Override
+  public void invoke() {
+  }
+
+  @Override
+  public void iterationDone(Model model, int ignored) {
+    iteration++;
+    long bytes = Pointer.totalBytes();
+    if (budgetBytes > 0 && bytes > budgetBytes) {
+      System.gc();
+      gcs++;
+      bytes = Pointer.totalBytes();
+      if (bytes > budgetBytes)
+        throw new IllegalStateException(String.format(
+            "Off-heap memory %d MB exceeds the budget of %d MB in iteration %d",
+            bytes / (1024 * 1024), budgetBytes / (1024 * 1024), iteration));
+    }
+    if (last >= 0 && bytes > last) {
+      growth += bytes - last;
+      growingIterations++;
+    }
+    last = bytes;
+    peak = Math.max(peak, bytes);
+    // the workspace may sum the outside allocations over its cycles or clear them per cycle
+    long outside = outsideWorkspaceBytes();
+    long allocated = outside >= lastOutside ? outside - lastOutside : outside;
+    lastOutside = outside;
+    if (allocated > 0) {
+      outsideBytes += allocated;
+      outsideIterations++;
+    }
+    if (reportEvery > 0 && iteration % reportEvery == 0)
+      report();
+  }
+
+  /**
+   * @return Bytes spilled or pinned outside the external workspace of the calling thread, 0
+   *     without one.
+   */
+  private static long outsideWorkspaceBytes() {
+    MemoryWorkspaceManager manager = Nd4j.getWorkspaceManager();
+    if (!manager.checkIfWorkspaceExists(WorkspaceSetup.EXTERNAL_WORKSPACE))
+      return 0;
+    MemoryWorkspace workspace =
+        manager.getWorkspaceForCurrentThread(WorkspaceSetup.EXTERNAL_WORKSPACE);
+    if (!(workspace instanceof Nd4jWorkspace))
+      return 0;
+    return ((Nd4jWorkspace) workspace).getSpilledSize()
+        + ((Nd4jWorkspace) workspace).getPinnedSize();
+  }
+
+  public long getPeakBytes() {
+    return peak;
+  }
+
+  /**
+   * @return Bytes allocated outside the workspace over all iterations.
+   */
+  public long getOutsideWorkspaceBytes() {
+    return outsideBytes;
+  }
+
+  public void report() {
+    LOG.info("Off-heap after {} iterations: current {} MB, peak {} MB, grew {} KB per iteration "
+            + "on average, in {} iterations, {} budget GCs; allocated {} KB per iteration outside "
+            + "the workspace, in {} iterations", iteration, last / (1024 * 1024),
+        peak / (1024 * 1024), iteration > 1 ? growth / 1024 / (iteration - 1) : 0,
+        growingIterations, gcs, iteration > 0 ? outsideBytes / 1024 / iteration : 0,
+        outsideIterations);
+  }
+
+}
@@ -0,0 +1,129 @@
+package nnplayground.train;
+
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.examples.Cifar;
+import nnplayground.util.CIFAR10;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data-parallel training of the Cifar network on a single machine with DL4J's ParallelWrapper.
+ * N worker replicas take their batches from a shared prefetch queue. Parameters and updater state
+ * are either averaged every {@code averagingFrequency} iterations or kept in sync by shared
+ * (threshold encoded) gradient accumulation.
+ *
+ * <p>For every configured worker count the network is trained for a number of epochs from the
+ * same initialization; samples/sec and test accuracy are logged per epoch and a scaling table
+ * (speedup and efficiency against the first worker count) at the end.
+ *
+ * <p>System properties: parallel.workers ("1,2,4"), parallel.averagingFrequency (5),
+ * parallel.mode (averaging | shared), parallel.prefetch (16), parallel.epochs (1),
+ * parallel.batchSize (100).
+ */
+public class ParallelCifarTrainer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ParallelCifarTrainer.class);
+
+  private static final int seed = 123;
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    String[] workerCounts = System.getProperty("parallel.workers", "1,2,4").split(",");
+    int averagingFrequency = Integer.getInteger("parallel.averagingFrequency", 5);
+    boolean sharedGradients = "shared".equals(System.getProperty("parallel.mode", "averaging"));
+    int prefetch = Integer.getInteger("parallel.prefetch", 16);
+    int epochs = Integer.getInteger("parallel.epochs", 1);
+    int batchSize = Integer.getInteger("parallel.batchSize", 100);
+
+    File batchesDir = CIFAR10.prepare();
+    List<double[]> results = new ArrayList<>();
+    for (String count : workerCounts) {
+      int workers = Integer.parseInt(count.trim());
+      results.add(train(batchesDir, workers, averagingFrequency, sharedGradients, prefetch,
+          epochs, batchSize));
+    }
+
+    LOG.info("Scaling ({} mode, averaging frequency {}):",
+        sharedGradients ? "shared gradients" : "averaging", averagingFrequency);
+    LOG.info(String.format("%8s %14s %8s %11s %9s", "workers", "samples/sec", "speedup",
+        "efficiency", "accuracy"));
+    double[] base = results.get(0);
+    for (double[] r : results) {
+      double speedup = r[1] / base[1];
+      LOG.info(String.format("%8d %14.1f %8.2f %10.1f%% %9.4f", (int) r[0], r[1], speedup,
+          100 * speedup * base[0] / r[0], r[2]));
+    }
+  }
+
+  /**
+   * Train a fresh Cifar network with a number of workers.
+   * @return worker count, samples/sec over all epochs and final test accuracy.
+   */
+  public static double[] train(File batchesDir, int workers, int averagingFrequency,
+                               boolean sharedGradients, int prefetch, int epochs, int batchSize)
+      throws IOException {
+    MultiLayerNetwork model = new Cifar().trainModelByCifarWithNet();
+    model.setListeners(new ScoreIterationListener(50));
+    DataSetIterator train =
+        new CifarBinaryDataSetIterator(batchesDir, true, batchSize, -1, true, true, seed);
+    DataSetIterator test =
+        new CifarBinaryDataSetIterator(batchesDir, false, batchSize, -1, false, true, seed);
+
+    ParallelWrapper wrapper = new ParallelWrapper.Builder<>(model)
+        .workers(workers)
+        .prefetchBuffer(prefetch)
+        .averagingFrequency(averagingFrequency)
+        .averageUpdaters(true)
+        .reportScoreAfterAveraging(true)
+        .trainingMode(sharedGradients ? ParallelWrapper.TrainingMode.SHARED_GRADIENTS
+            : ParallelWrapper.TrainingMode.AVERAGING)
+        .build();
+
+    long samples = 0;
+    long nanos = 0;
+    double accuracy = 0;
+    try {
+      for (int epoch = 0; epoch < epochs; epoch++) {
+        long start = System.nanoTime();
+        wrapper.fit(train);
+        long epochNanos = System.nanoTime() - start;
+        nanos += epochNanos;
+        samples += train.numExamples();
+        train.reset();
+
+        accuracy = evaluate(model, test);
+        LOG.info("{} workers, epoch {}: {} samples/sec, accuracy {}", workers, epoch,
+            String.format("%.1f", train.numExamples() / (epochNanos / 1e9)),
+            String.format("%.4f", accuracy));
+      }
+    } finally {
+      wrapper.shutdown();
+    }
+    return new double[] {workers, samples / (nanos / 1e9), accuracy};
+  }
+
+  static double evaluate(MultiLayerNetwork model, DataSetIterator test) {
+    Evaluation eval = new Evaluation(test.getLabels());
+    test.reset();
+    while (test.hasNext()) {
+      DataSet ds = test.next();
+      eval.eval(ds.getLabels(), model.output(ds.getFeatures(), false));
+    }
+    test.reset();
+    return eval.accuracy();
+  }
+
+}
@@ -0,0 +1,364 @@
+package nnplayground.train;
+
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.examples.Cifar;
+import nnplayground.util.CIFAR10;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Data-parallel training of the Cifar network with several worker JVMs and a parameter server,
+ * all on localhost. The coordinator holds the master parameters and starts the workers
+ * ({@link ParameterServerWorker}) with ProcessBuilder; every worker trains on its own shard of
+ * the training set and exchanges threshold encoded updates over TCP (Strom, "Scalable Distributed
+ * DNN Training Using Commodity GPU Cloud Computing", 2015): after each batch a worker sends only
+ * the parameter changes larger than the threshold, as +-threshold, and keeps the rest as residual
+ * for later batches. The coordinator applies them to the master parameters and answers with the
+ * updates of the other workers since the last exchange; a worker that fell too far behind
+ * (more than ps.maxPendingMB of updates queued for it) gets the full parameters instead.
+ *
+ * <p>A worker process that dies is started again (up to ps.maxRestarts times); it reconnects,
+ * receives the current master parameters with the number of epochs it completed and continues
+ * training on its shard from that epoch. At the end the
+ * master parameters are evaluated on the test set and samples/sec, bytes exchanged per
+ * iteration and accuracy are logged.
+ *
+ * <p>System properties: ps.workers (2), ps.epochs (1), ps.batchSize (100), ps.threshold (1e-3),
+ * ps.threadsPerWorker (cores / workers), ps.workerHeap (2g), ps.maxRestarts (3),
+ * ps.maxPendingMB (64), ps.failWorker and ps.failAfter (make one worker exit after n iterations
+ * on its first start, to try the recovery).
+ */
+public class ParameterServerTrainer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ParameterServerTrainer.class);
+
+  static final int HELLO = 1;
+  static final int PARAMS = 2;
+  static final int UPDATE = 3;
+  static final int UPDATES = 4;
+  static final int DONE = 5;
+  static final int EPOCH = 6;
+
+  private static final int seed = 123;
+  // how long a worker that exited cleanly may take to have its DONE read
+  private static final long doneTimeoutSeconds = 60;
+
+  private final MultiLayerNetwork model;
+  private final INDArray master;
+  private final Worker[] workers;
+  private final long maxPendingBytes;
+  private final AtomicLong samples = new AtomicLong();
+  private final AtomicLong iterations = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong resyncs = new AtomicLong();
+  private ServerSocket server;
+
+  /**
+   * State of one worker on the coordinator side.
+   */
+  private static class Worker {
+    final int id;
+    Process process;
+    int restarts = 0;
+    boolean done = false; // guarded by the trainer
+    boolean failed = false;
+    int epochs = 0; // completed epochs, guarded by the trainer
+    List<byte[]> pending = new ArrayList<>(); // guarded by the trainer
+    long pendingBytes = 0; // guarded by the trainer
+    boolean resync = false; // pending was dropped, guarded by the trainer
+
+    Worker(int id) {
+      this.id = id;
+    }
+  }
+
+  public ParameterServerTrainer(MultiLayerNetwork model, int numWorkers, long maxPendingBytes) {
+    this.model = model;
+    this.master = model.params();
+    this.workers = new Worker[numWorkers];
+    for (int i = 0; i < numWorkers; i++)
+      workers[i] = new Worker(i);
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    int numWorkers = Integer.getInteger("ps.workers", 2);
+    int epochs = Integer.getInteger("ps.epochs", 1);
+    int batchSize = Integer.getInteger("ps.batchSize", 100);
+    double threshold = Double.parseDouble(System.getProperty("ps.threshold", "1e-3"));
+    int threadsPerWorker = Integer.getInteger("ps.threadsPerWorker",
+        Math.max(1, Runtime.getRuntime().availableProcessors() / numWorkers));
+    String heap = System.getProperty("ps.workerHeap", "2g");
+    int maxRestarts = Integer.getInteger("ps.maxRestarts", 3);
+    long maxPendingBytes = Long.getLong("ps.maxPendingMB", 64) * 1024 * 1024;
+    File batchesDir = CIFAR10.prepare();
+
+    ParameterServerTrainer trainer = new ParameterServerTrainer(
+        new Cifar().trainModelByCifarWithNet(), numWorkers, maxPendingBytes);
+    int port = trainer.listen();
+    long start = System.nanoTime();
+    for (Worker worker : trainer.workers) {
+      List<String> workerArgs = new ArrayList<>();
+      workerArgs.add("-Xmx" + heap);
+      workerArgs.add("-Dps.threshold=" + threshold);
+      if (Integer.getInteger("ps.failWorker", -1) == worker.id)
+        workerArgs.add("-Dps.failAfter=" + Integer.getInteger("ps.failAfter", 50));
+      worker.process = trainer.launch(worker, workerArgs, port, epochs, batchSize,
+          batchesDir, threadsPerWorker);
+      // restarted workers must not fail again
+      workerArgs.removeIf(arg -> arg.startsWith("-Dps.failAfter"));
+      trainer.watch(worker, workerArgs, port, epochs, batchSize, batchesDir, threadsPerWorker,
+          maxRestarts);
+    }
+    trainer.awaitWorkers(start);
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    CifarBinaryDataSetIterator test =
+        new CifarBinaryDataSetIterator(batchesDir, false, batchSize, -1, false, true, seed);
+    double accuracy = ParallelCifarTrainer.evaluate(trainer.model, test);
+    long its = Math.max(1, trainer.iterations.get());
+    LOG.info("{} workers: {} samples/sec, {} KB sent and {} KB received per iteration "
+            + "(dense parameters: {} KB), {} resyncs, accuracy {}", numWorkers,
+        String.format("%.1f", trainer.samples.get() / seconds),
+        String.format("%.1f", trainer.bytesIn.get() / 1024.0 / its),
+        String.format("%.1f", trainer.bytesOut.get() / 1024.0 / its),
+        trainer.master.length() * 4 / 1024, trainer.resyncs.get(),
+        String.format("%.4f", accuracy));
+    trainer.server.close();
+  }
+
+  /**
+   * Listen on a free localhost port and serve the workers.
+   * @return The port.
+   */
+  public int listen() throws IOException {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(() -> {
+      while (!server.isClosed()) {
+        try {
+          Socket socket = server.accept();
+          socket.setTcpNoDelay(true);
+          Thread handler = new Thread(() -> serve(socket), "ps-connection");
+          handler.setDaemon(true);
+          handler.start();
+        } catch (IOException e) {
+          if (!server.isClosed())
+            LOG.warn("Accept failed: {}", e.toString());
+        }
+      }
+    }, "ps-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    LOG.info("Parameter server listening on localhost:{}", server.getLocalPort());
+    return server.getLocalPort();
+  }
+
+  private Process launch(Worker worker, List<String> jvmArgs, int port, int epochs,
+                          int batchSize, File batchesDir, int threads) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.addAll(jvmArgs);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(ParameterServerWorker.class.getName());
+    command.add(String.valueOf(port));
+    command.add(String.valueOf(worker.id));
+    command.add(String.valueOf(workers.length));
+    command.add(String.valueOf(epochs));
+    command.add(String.valueOf(batchSize));
+    command.add(batchesDir.getPath());
+    ProcessBuilder builder = new ProcessBuilder(command).inheritIO();
+    builder.environment().put("OMP_NUM_THREADS", String.valueOf(threads));
+    LOG.info("Starting worker {}", worker.id);
+    return builder.start();
+  }
+
+  /**
+   * Restart the worker process whenever it exits before it is done.
+   */
+  private void watch(Worker worker, List<String> jvmArgs, int port, int epochs, int batchSize,
+                     File batchesDir, int threads, int maxRestarts) {
+    Thread watcher = new Thread(() -> {
+      try {
+        while (true) {
+          int exit = worker.process.waitFor();
+          synchronized (this) {
+            // DONE is read on the connection thread, possibly after the process is gone: a clean
+            // exit waits for the handshake instead of racing it into a restart
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(doneTimeoutSeconds);
+            for (long left = deadline - System.nanoTime(); exit == 0 && !worker.done && left > 0;
+                 left = deadline - System.nanoTime())
+              TimeUnit.NANOSECONDS.timedWait(this, left);
+            if (worker.done)
+              return;
+          }
+          if (worker.restarts >= maxRestarts) {
+            LOG.error("Worker {} exited with {}, giving up after {} restarts", worker.id, exit,
+                worker.restarts);
+            synchronized (this) {
+              worker.failed = true;
+              notifyAll();
+            }
+            return;
+          }
+          worker.restarts++;
+          LOG.warn("Worker {} exited with {}, restarting ({} of {})", worker.id, exit,
+              worker.restarts, maxRestarts);
+          worker.process = launch(worker, jvmArgs, port, epochs, batchSize, batchesDir, threads);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        LOG.error("Can't restart worker {}", worker.id, e);
+        synchronized (this) {
+          worker.failed = true;
+          notifyAll();
+        }
+      }
+    }, "ps-watch-" + worker.id);
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  private synchronized void awaitWorkers(long start) throws InterruptedException {
+    while (true) {
+      boolean finished = true;
+      for (Worker worker : workers)
+        finished &= worker.done || worker.failed;
+      if (finished)
+        return;
+      wait(30000);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOG.info("{} iterations, {} samples/sec, {} KB per iteration", iterations.get(),
+          String.format("%.1f", samples.get() / seconds), String.format("%.1f",
+              (bytesIn.get() + bytesOut.get()) / 1024.0 / Math.max(1, iterations.get())));
+    }
+  }
+
+  private void serve(Socket socket) {
+    Worker worker = null;
+    try (Socket s = socket;
+         DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+         DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+      if (in.readInt() != HELLO)
+        throw new IOException("Expected HELLO");
+      worker = workers[in.readInt()];
+      LOG.info("Worker {} connected", worker.id);
+      sendParams(worker, out);
+      while (true) {
+        int type = in.readInt();
+        if (type == DONE) {
+          synchronized (this) {
+            worker.done = true;
+            notifyAll();
+          }
+          LOG.info("Worker {} done", worker.id);
+          return;
+        }
+        if (type == EPOCH) {
+          int completed = in.readInt();
+          synchronized (this) {
+            worker.epochs = completed;
+          }
+          continue;
+        }
+        if (type != UPDATE)
+          throw new IOException("Unexpected message " + type);
+        int batchSamples = in.readInt();
+        byte[] update = new byte[in.readInt()];
+        in.readFully(update);
+        bytesIn.addAndGet(12 + update.length);
+        samples.addAndGet(batchSamples);
+        iterations.incrementAndGet();
+
+        List<byte[]> reply;
+        synchronized (this) {
+          if (update.length > 0) {
+            INDArray encoded = Nd4j.read(new DataInputStream(new ByteArrayInputStream(update)));
+            Nd4j.getExecutioner().thresholdDecode(encoded, master);
+            for (Worker other : workers)
+              queue(other, worker, update);
+          }
+          reply = worker.resync ? null : worker.pending;
+          worker.pending = new ArrayList<>();
+          worker.pendingBytes = 0;
+        }
+        if (reply == null) {
+          resyncs.incrementAndGet();
+          sendParams(worker, out);
+        } else {
+          long sent = 8;
+          out.writeInt(UPDATES);
+          out.writeInt(reply.size());
+          for (byte[] other : reply) {
+            out.writeInt(other.length);
+            out.write(other);
+            sent += 4 + other.length;
+          }
+          out.flush();
+          bytesOut.addAndGet(sent);
+        }
+      }
+    } catch (EOFException | SocketException e) {
+      if (worker != null)
+        LOG.warn("Worker {} disconnected", worker.id);
+    } catch (IOException | RuntimeException e) {
+      LOG.error("Worker connection failed", e);
+    }
+  }
+
+  /**
+   * Queue an update for another worker. Finished workers get nothing, and a worker whose queue
+   * would exceed the budget drops it and gets the full parameters on its next exchange, so the
+   * coordinator's memory stays bounded however slow or absent a worker is.
+   */
+  private void queue(Worker other, Worker sender, byte[] update) {
+    if (other == sender || other.done || other.failed || other.resync)
+      return;
+    if (other.pendingBytes + update.length > maxPendingBytes) {
+      other.pending = new ArrayList<>();
+      other.pendingBytes = 0;
+      other.resync = true;
+      return;
+    }
+    other.pending.add(update);
+    other.pendingBytes += update.length;
+  }
+
+  private void sendParams(Worker worker, DataOutputStream out) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int epochs;
+    synchronized (this) {
+      Nd4j.write(master, new DataOutputStream(bytes));
+      // the full parameters include everything pending for this worker
+      worker.pending = new ArrayList<>();
+      worker.pendingBytes = 0;
+      worker.resync = false;
+      epochs = worker.epochs;
+    }
+    out.writeInt(PARAMS);
+    out.writeInt(epochs);
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+    out.flush();
+    bytesOut.addAndGet(12 + bytes.size());
+  }
+
+}
@@ -0,0 +1,139 @@
+package nnplayground.train;
+
+import nnplayground.data.CifarBinaryDataSetIterator;
+import nnplayground.examples.Cifar;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static nnplayground.train.ParameterServerTrainer.DONE;
+import static nnplayground.train.ParameterServerTrainer.EPOCH;
+import static nnplayground.train.ParameterServerTrainer.HELLO;
+import static nnplayground.train.ParameterServerTrainer.PARAMS;
+import static nnplayground.train.ParameterServerTrainer.UPDATE;
+import static nnplayground.train.ParameterServerTrainer.UPDATES;
+
+/**
+ * Worker process of the {@link ParameterServerTrainer}. Trains the Cifar network on its shard of
+ * the training set and after every batch sends the threshold encoded parameter change to the
+ * parameter server; changes below the threshold stay in a local residual and are applied locally
+ * only once they are sent, like on the server. The updates of the other workers it gets back are
+ * applied to the local parameters. A restarted worker resumes at the epoch the server reports it
+ * completed last.
+ *
+ * <p>Arguments: port, worker id, number of workers, epochs, batch size, CIFAR batches directory.
+ * System properties: ps.threshold (1e-3), ps.failAfter (exit with status 1 after n iterations).
+ */
+public class ParameterServerWorker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ParameterServerWorker.class);
+
+  private static final int seed = 123;
+
+  public static void main(String[] args) throws Exception {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    int port = Integer.parseInt(args[0]);
+    int id = Integer.parseInt(args[1]);
+    int numWorkers = Integer.parseInt(args[2]);
+    int epochs = Integer.parseInt(args[3]);
+    int batchSize = Integer.parseInt(args[4]);
+    File batchesDir = new File(args[5]);
+    double threshold = Double.parseDouble(System.getProperty("ps.threshold", "1e-3"));
+    int failAfter = Integer.getInteger("ps.failAfter", -1);
+
+    MultiLayerNetwork model = new Cifar().trainModelByCifarWithNet();
+    CifarBinaryDataSetIterator train = new CifarBinaryDataSetIterator(batchesDir, true,
+        batchSize, -1, true, true, seed + id, id, numWorkers);
+    INDArray residual = Nd4j.zeros(1, model.numParams());
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+         DataInputStream in =
+             new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out =
+             new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      socket.setTcpNoDelay(true);
+      out.writeInt(HELLO);
+      out.writeInt(id);
+      out.flush();
+      int completed = receive(in, model);
+      LOG.info("Worker {}: {} examples in shard {} of {}, starting at epoch {}", id,
+          train.numExamples(), id, numWorkers, completed);
+      // replay the shuffles of the completed epochs, for the same order as without a restart
+      for (int epoch = 0; epoch < completed; epoch++)
+        train.reset();
+
+      int iteration = 0;
+      for (int epoch = completed; epoch < epochs; epoch++) {
+        while (train.hasNext()) {
+          DataSet batch = train.next();
+          INDArray before = model.params().dup();
+          model.fit(batch);
+          residual.addi(model.params().sub(before));
+          INDArray encoded = Nd4j.getExecutioner().thresholdEncode(residual, threshold);
+          // apply locally only what the others get, the rest stays in the residual, so the local
+          // parameters don't drift away from the server's
+          model.params().assign(before);
+          if (encoded != null)
+            Nd4j.getExecutioner().thresholdDecode(encoded, model.params());
+          // a zero length update still picks up the updates of the others
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          if (encoded != null)
+            Nd4j.write(encoded, new DataOutputStream(bytes));
+          out.writeInt(UPDATE);
+          out.writeInt(batch.numExamples());
+          out.writeInt(bytes.size());
+          bytes.writeTo(out);
+          out.flush();
+          receive(in, model);
+
+          if (++iteration == failAfter) {
+            LOG.warn("Worker {}: simulating a failure after {} iterations", id, iteration);
+            System.exit(1);
+          }
+        }
+        train.reset();
+        out.writeInt(EPOCH);
+        out.writeInt(epoch + 1);
+        out.flush();
+        LOG.info("Worker {}: epoch {} done", id, epoch);
+      }
+      out.writeInt(DONE);
+      out.flush();
+    }
+  }
+
+  /**
+   * Apply the full parameters or the updates of the other workers sent by the server.
+   * @return The epochs this worker completed according to the server, -1 for updates.
+   */
+  private static int receive(DataInputStream in, MultiLayerNetwork model) throws IOException {
+    int type = in.readInt();
+    if (type == PARAMS) {
+      int completed = in.readInt();
+      byte[] params = new byte[in.readInt()];
+      in.readFully(params);
+      model.setParams(Nd4j.read(new DataInputStream(new ByteArrayInputStream(params))));
+      return completed;
+    } else if (type == UPDATES) {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        byte[] update = new byte[in.readInt()];
+        in.readFully(update);
+        INDArray encoded = Nd4j.read(new DataInputStream(new ByteArrayInputStream(update)));
+        Nd4j.getExecutioner().thresholdDecode(encoded, model.params());
+      }
+      return -1;
+    } else {
+      throw new IOException("Unexpected message " + type);
+    }
+  }
+
+}
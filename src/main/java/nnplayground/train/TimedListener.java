@@ -0,0 +1,136 @@
+package nnplayground.train;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps a listener and measures the time it takes on the training thread, summed over all its
+ * callbacks, so the overhead of e.g. a StatsListener per iteration can be compared to the
+ * iteration time.
+ */
+public class TimedListener implements TrainingListener {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TimedListener.class);
+
+  private final String name;
+  private final IterationListener listener;
+  private final TrainingListener trainingListener;
+  private final int reportEvery;
+  private long nanos = 0;
+  private long maxIterationNanos = 0;
+  private long iterationNanos = 0;
+  private long iterations = 0;
+
+  /**
+   * @param reportEvery Log the mean overhead every n iterations, 0 to only log on report().
+   */
+  public TimedListener(String name, IterationListener listener, int reportEvery) {
+    this.name = name;
+    this.listener = listener;
+    this.trainingListener =
+        listener instanceof TrainingListener ? (TrainingListener) listener : null;
+    this.reportEvery = reportEvery;
+  }
+
+  @Override
+  public boolean invoked() {
+    return listener.invoked();
+  }
+
+  @Override
+  public void invoke() {
+    listener.invoke();
+  }
+
+  @Override
+  public void onEpochStart(Model model) {
+    if (trainingListener == null)
+      return;
+    long start = System.nanoTime();
+    trainingListener.onEpochStart(model);
+    add(System.nanoTime() - start);
+  }
+
+  @Override
+  public void onEpochEnd(Model model) {
+    if (trainingListener == null)
+      return;
+    long start = System.nanoTime();
+    trainingListener.onEpochEnd(model);
+    add(System.nanoTime() - start);
+  }
+
+  @Override
+  public void onForwardPass(Model model, List<INDArray> activations) {
+    if (trainingListener == null)
+      return;
+    long start = System.nanoTime();
+    trainingListener.onForwardPass(model, activations);
+    add(System.nanoTime() - start);
+  }
+
+  @Override
+  public void onForwardPass(Model model, Map<String, INDArray> activations) {
+    if (trainingListener == null)
+      return;
+    long start = System.nanoTime();
+    trainingListener.onForwardPass(model, activations);
+    add(System.nanoTime() - start);
+  }
+
+  @Override
+  public void onGradientCalculation(Model model) {
+    if (trainingListener == null)
+      return;
+    long start = System.nanoTime();
+    trainingListener.onGradientCalculation(model);
+    add(System.nanoTime() - start);
+  }
+
+  @Override
+  public void onBackwardPass(Model model) {
+    if (trainingListener == null)
+      return;
+    long start = System.nanoTime();
+    trainingListener.onBackwardPass(model);
+    add(System.nanoTime() - start);
+  }
+
+  @Override
+  public void iterationDone(Model model, int iteration) {
+    long start = System.nanoTime();
+    listener.iterationDone(model, iteration);
+    add(System.nanoTime() - start);
+    maxIterationNanos = Math.max(maxIterationNanos, iterationNanos);
+    iterationNanos = 0;
+    iterations++;
+    if (reportEvery > 0 && iterations % reportEvery == 0)
+      report();
+  }
+
+  private void add(long elapsed) {
+    nanos += elapsed;
+    iterationNanos += elapsed;
+  }
+
+  /**
+   * @return Mean time spent in the listener per iteration in milliseconds.
+   */
+  public double getMillisPerIteration() {
+    return iterations == 0 ? 0 : nanos / 1e6 / iterations;
+  }
+
+  public void report() {
+    LOG.info("{}: {} ms per iteration on the training thread (max {} ms) over {} iterations",
+        name, String.format("%.3f", getMillisPerIteration()),
+        String.format("%.3f", maxIterationNanos / 1e6), iterations);
+  }
+
+}
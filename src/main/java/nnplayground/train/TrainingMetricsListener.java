@@ -0,0 +1,448 @@
+package nnplayground.train;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.optimize.api.TrainingListener;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lightweight training instrumentation. Per iteration only a few System.nanoTime() calls are
+ * added to primitive counters; memory and GC numbers are sampled every {@code sampleEvery}
+ * iterations. The iteration time is split into:
+ * <ul>
+ * <li>data: time spent in next() of the iterator passed through {@link #wrap}</li>
+ * <li>forward: end of the previous iteration until the forward pass is done, minus data</li>
+ * <li>backward: forward pass done until the gradients are calculated</li>
+ * <li>update: gradients calculated until the iteration is done (updater and parameter step)</li>
+ * </ul>
+ *
+ * <p>Sampled iterations and epoch summaries are appended to a rolling file, CSV or JSON lines
+ * depending on the file extension (".csv" or ".json"), and the latest values are exposed as the
+ * JMX bean "nnplayground:type=TrainingMetrics,name=&lt;name&gt;".
+ */
+public class TrainingMetricsListener implements TrainingListener, TrainingMetricsMXBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TrainingMetricsListener.class);
+
+  private static final String[] columns = {"type", "epoch", "iteration", "samplesPerSec",
+      "dataMs", "forwardMs", "backwardMs", "updateMs", "heapUsedMB", "offHeapMB", "gcCount",
+      "gcMs"};
+
+  private final String name;
+  private final File file;
+  private final boolean json;
+  private final int sampleEvery;
+  private final long maxFileBytes;
+  private final int keepFiles;
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private final List<GarbageCollectorMXBean> collectors =
+      ManagementFactory.getGarbageCollectorMXBeans();
+  private transient Writer out;
+
+  // current iteration
+  private long iterationEnd = 0;
+  private long forwardDone = 0;
+  private long gradientDone = 0;
+  private long dataNanos = 0;
+  private int batchSize = 0;
+
+  // sampling window and epoch accumulators
+  private final long[] window = new long[5]; // data, forward, backward, update, samples
+  private final long[] epochTotals = new long[6]; // + wall time
+  private int windowIterations = 0;
+  private int epochIterations = 0;
+  private long windowStart = 0;
+
+  private volatile int epoch = 0;
+  private volatile long iteration = 0;
+  private volatile double lastSamplesPerSecond;
+  private volatile double lastEpochSamplesPerSecond;
+  private volatile double[] lastMillis = new double[4];
+  private volatile long heapUsed;
+  private volatile long offHeap;
+  private volatile long gcCount;
+  private volatile long gcMillis;
+
+  /**
+   * @param name Name of the run, used for the JMX bean.
+   * @param file Rolling metrics file, ".csv" or ".json".
+   * @param sampleEvery Write a sampled row every n iterations.
+   */
+  public TrainingMetricsListener(String name, File file, int sampleEvery) {
+    this(name, file, sampleEvery, 64L * 1024 * 1024, 3);
+  }
+
+  /**
+   * @param maxFileBytes Roll the file over when it gets larger.
+   * @param keepFiles Number of rolled over files to keep.
+   */
+  public TrainingMetricsListener(String name, File file, int sampleEvery, long maxFileBytes,
+                                 int keepFiles) {
+    this.name = name;
+    this.file = file;
+    this.json = file.getName().endsWith(".json");
+    this.sampleEvery = sampleEvery;
+    this.maxFileBytes = maxFileBytes;
+    this.keepFiles = keepFiles;
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("nnplayground:type=TrainingMetrics,name=" + ObjectName.quote(name)));
+    } catch (Exception e) {
+      LOG.warn("Can't register JMX bean for {}: {}", name, e.getMessage());
+    }
+  }
+
+  /**
+   * Wrap the training iterator so time spent fetching data can be separated from the forward
+   * pass. Wrap the outermost iterator (e.g. the prefetching stage) passed to fit().
+   */
+  public DataSetIterator wrap(DataSetIterator iterator) {
+    return new TimedIterator(iterator);
+  }
+
+  @Override
+  public boolean invoked() {
+    return false;
+  }
+
+  @Override
+  public void invoke() {
+  }
+
+  @Override
+  public void onEpochStart(Model model) {
+  }
+
+  @Override
+  public void onEpochEnd(Model model) {
+    endEpoch();
+  }
+
+  @Override
+  public void onForwardPass(Model model, List<INDArray> activations) {
+    forwardDone = System.nanoTime();
+    batchSize = activations.get(0).size(0);
+  }
+
+  @Override
+  public void onForwardPass(Model model, Map<String, INDArray> activations) {
+    forwardDone = System.nanoTime();
+  }
+
+  @Override
+  public void onGradientCalculation(Model model) {
+    gradientDone = System.nanoTime();
+  }
+
+  @Override
+  public void onBackwardPass(Model model) {
+    if (gradientDone < forwardDone)
+      gradientDone = System.nanoTime();
+  }
+
+  @Override
+  public void iterationDone(Model model, int iteration) {
+    long now = System.nanoTime();
+    if (iterationEnd != 0 && forwardDone > iterationEnd) {
+      window[0] += dataNanos;
+      window[1] += Math.max(0, forwardDone - iterationEnd - dataNanos);
+      window[2] += Math.max(0, gradientDone - forwardDone);
+      window[3] += Math.max(0, now - Math.max(gradientDone, forwardDone));
+      window[4] += batchSize;
+      windowIterations++;
+    }
+    if (windowStart == 0)
+      windowStart = now;
+    dataNanos = 0;
+    iterationEnd = now;
+    this.iteration++;
+    if (windowIterations >= sampleEvery) {
+      long wall = now - windowStart;
+      lastSamplesPerSecond = window[4] / (wall / 1e9);
+      lastMillis = new double[] {ms(window[0], windowIterations), ms(window[1], windowIterations),
+          ms(window[2], windowIterations), ms(window[3], windowIterations)};
+      sampleMemory();
+      write("iteration", lastSamplesPerSecond, lastMillis);
+      for (int i = 0; i < window.length; i++) {
+        epochTotals[i] += window[i];
+        window[i] = 0;
+      }
+      epochTotals[5] += wall;
+      epochIterations += windowIterations;
+      windowIterations = 0;
+      windowStart = now;
+    }
+  }
+
+  /**
+   * Close the current epoch: write an epoch summary row. Called on onEpochEnd or when the wrapped
+   * iterator is reset, whichever comes first.
+   */
+  public void endEpoch() {
+    long now = System.nanoTime();
+    for (int i = 0; i < window.length; i++) {
+      epochTotals[i] += window[i];
+      window[i] = 0;
+    }
+    if (windowStart != 0)
+      epochTotals[5] += now - windowStart;
+    epochIterations += windowIterations;
+    if (epochIterations > 0) {
+      lastEpochSamplesPerSecond = epochTotals[4] / (epochTotals[5] / 1e9);
+      sampleMemory();
+      double[] millis = {ms(epochTotals[0], epochIterations), ms(epochTotals[1], epochIterations),
+          ms(epochTotals[2], epochIterations), ms(epochTotals[3], epochIterations)};
+      write("epoch", lastEpochSamplesPerSecond, millis);
+      LOG.info("{} epoch {}: {} samples/sec, per iteration data {} ms, forward {} ms, "
+              + "backward {} ms, update {} ms", name, epoch,
+          String.format("%.1f", lastEpochSamplesPerSecond), String.format("%.2f", millis[0]),
+          String.format("%.2f", millis[1]), String.format("%.2f", millis[2]),
+          String.format("%.2f", millis[3]));
+      epoch++;
+    }
+    Arrays.fill(epochTotals, 0);
+    epochIterations = 0;
+    windowIterations = 0;
+    windowStart = 0;
+    iterationEnd = 0;
+  }
+
+  private static double ms(long nanos, int iterations) {
+    return nanos / 1e6 / iterations;
+  }
+
+  private void sampleMemory() {
+    heapUsed = memory.getHeapMemoryUsage().getUsed();
+    offHeap = Pointer.totalBytes();
+    long count = 0;
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : collectors) {
+      count += Math.max(0, gc.getCollectionCount());
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    gcCount = count;
+    gcMillis = millis;
+  }
+
+  private void write(String type, double samplesPerSecond, double[] millis) {
+    Object[] values = {type, epoch, iteration, samplesPerSecond, millis[0], millis[1], millis[2],
+        millis[3], heapUsed / (1024.0 * 1024), offHeap / (1024.0 * 1024), gcCount, gcMillis};
+    StringBuilder line = new StringBuilder(json ? "{" : "");
+    for (int i = 0; i < values.length; i++) {
+      Object v = values[i] instanceof Double
+          ? String.format(Locale.ROOT, "%.3f", (Double) values[i]) : values[i];
+      if (json) {
+        line.append(i > 0 ? "," : "").append('"').append(columns[i]).append("\":");
+        line.append(i == 0 ? "\"" + v + "\"" : v);
+      } else {
+        line.append(i > 0 ? "," : "").append(v);
+      }
+    }
+    line.append(json ? "}\n" : "\n");
+    try {
+      if (out == null || file.length() > maxFileBytes)
+        openFile();
+      out.write(line.toString());
+      out.flush();
+    } catch (IOException e) {
+      LOG.warn("Can't write training metrics to {}: {}", file, e.getMessage());
+    }
+  }
+
+  private void openFile() throws IOException {
+    if (out != null)
+      out.close();
+    if (file.exists() && file.length() > maxFileBytes) {
+      for (int i = keepFiles - 1; i >= 1; i--) {
+        File from = new File(file.getPath() + "." + i);
+        if (from.exists())
+          from.renameTo(new File(file.getPath() + "." + (i + 1)));
+      }
+      file.renameTo(new File(file.getPath() + ".1"));
+      new File(file.getPath() + "." + (keepFiles + 1)).delete();
+    }
+    if (file.getAbsoluteFile().getParentFile() != null)
+      file.getAbsoluteFile().getParentFile().mkdirs();
+    boolean header = !json && !file.exists();
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+        StandardCharsets.UTF_8));
+    if (header)
+      out.write(String.join(",", columns) + "\n");
+  }
+
+  @Override
+  public int getEpoch() {
+    return epoch;
+  }
+
+  @Override
+  public long getIteration() {
+    return iteration;
+  }
+
+  @Override
+  public double getLastSamplesPerSecond() {
+    return lastSamplesPerSecond;
+  }
+
+  @Override
+  public double getLastEpochSamplesPerSecond() {
+    return lastEpochSamplesPerSecond;
+  }
+
+  @Override
+  public double getDataMillisPerIteration() {
+    return lastMillis[0];
+  }
+
+  @Override
+  public double getForwardMillisPerIteration() {
+    return lastMillis[1];
+  }
+
+  @Override
+  public double getBackwardMillisPerIteration() {
+    return lastMillis[2];
+  }
+
+  @Override
+  public double getUpdateMillisPerIteration() {
+    return lastMillis[3];
+  }
+
+  @Override
+  public long getHeapUsedBytes() {
+    return heapUsed;
+  }
+
+  @Override
+  public long getOffHeapBytes() {
+    return offHeap;
+  }
+
+  @Override
+  public long getGcCount() {
+    return gcCount;
+  }
+
+  @Override
+  public long getGcMillis() {
+    return gcMillis;
+  }
+
+  /**
+   * Measures the time spent in next() and closes the epoch on reset().
+   */
+  private class TimedIterator implements DataSetIterator {
+    private final DataSetIterator delegate;
+
+    TimedIterator(DataSetIterator delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public DataSet next(int num) {
+      long start = System.nanoTime();
+      DataSet ds = delegate.next(num);
+      dataNanos += System.nanoTime() - start;
+      return ds;
+    }
+
+    @Override
+    public DataSet next() {
+      long start = System.nanoTime();
+      DataSet ds = delegate.next();
+      dataNanos += System.nanoTime() - start;
+      return ds;
+    }
+
+    @Override
+    public boolean hasNext() {
+      long start = System.nanoTime();
+      boolean hasNext = delegate.hasNext();
+      dataNanos += System.nanoTime() - start;
+      return hasNext;
+    }
+
+    @Override
+    public void reset() {
+      endEpoch();
+      delegate.reset();
+    }
+
+    @Override
+    public int totalExamples() {
+      return delegate.totalExamples();
+    }
+
+    @Override
+    public int inputColumns() {
+      return delegate.inputColumns();
+    }
+
+    @Override
+    public int totalOutcomes() {
+      return delegate.totalOutcomes();
+    }
+
+    @Override
+    public boolean resetSupported() {
+      return delegate.resetSupported();
+    }
+
+    /**
+     * next() must be called on the training thread for the data time to be meaningful.
+     */
+    @Override
+    public boolean asyncSupported() {
+      return false;
+    }
+
+    @Override
+    public int batch() {
+      return delegate.batch();
+    }
+
+    @Override
+    public int cursor() {
+      return delegate.cursor();
+    }
+
+    @Override
+    public int numExamples() {
+      return delegate.numExamples();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+      delegate.setPreProcessor(preProcessor);
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+      return delegate.getPreProcessor();
+    }
+
+    @Override
+    public List<String> getLabels() {
+      return delegate.getLabels();
+    }
+  }
+
+}
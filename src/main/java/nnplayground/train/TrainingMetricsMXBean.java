@@ -0,0 +1,32 @@
+package nnplayground.train;
+
+/**
+ * JMX view of the metrics collected by {@link TrainingMetricsListener}.
+ */
+public interface TrainingMetricsMXBean {
+
+  int getEpoch();
+
+  long getIteration();
+
+  double getLastSamplesPerSecond();
+
+  double getLastEpochSamplesPerSecond();
+
+  double getDataMillisPerIteration();
+
+  double getForwardMillisPerIteration();
+
+  double getBackwardMillisPerIteration();
+
+  double getUpdateMillisPerIteration();
+
+  long getHeapUsedBytes();
+
+  long getOffHeapBytes();
+
+  long getGcCount();
+
+  long getGcMillis();
+
+}
@@ -0,0 +1,114 @@
+package nnplayground.train;
+
+import org.deeplearning4j.nn.conf.InputPreProcessor;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.memory.enums.SpillPolicy;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Workspace configuration for the examples. With workspaces the activations and gradients of an
+ * iteration are allocated in memory that is reused for the next iteration instead of being
+ * allocated and freed off-heap every time.
+ *
+ * <p>System properties: workspace.mode (SEPARATE | SINGLE | NONE, default SEPARATE).
+ */
+public final class WorkspaceSetup {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WorkspaceSetup.class);
+
+  /**
+   * Id of the workspace MultiLayerNetwork opens around every fit/output call.
+   */
+  static final String EXTERNAL_WORKSPACE = "LOOP_EXTERNAL";
+
+  private WorkspaceSetup() {
+  }
+
+  /**
+   * @return The configured workspace mode for training and inference.
+   */
+  public static WorkspaceMode mode() {
+    return WorkspaceMode.valueOf(System.getProperty("workspace.mode", "SEPARATE").toUpperCase());
+  }
+
+  /**
+   * Estimate the bytes of one iteration: the activations of every layer for a batch plus the
+   * same again for the errors of the backward pass, and for every convolution layer the im2col
+   * buffer of the forward pass ([batch, outHeight, outWidth, inDepth * kernelHeight *
+   * kernelWidth]) plus the one of the backward pass. Other temporary buffers (e.g. of pooling
+   * layers and the updater) are not counted, a spilling workspace grows for them on demand.
+   * @param inputType Declared input type of the network.
+   */
+  public static long estimateIterationBytes(MultiLayerConfiguration conf, InputType inputType,
+                                            int batchSize) {
+    long elements = elements(inputType);
+    InputType type = inputType;
+    for (int i = 0; i < conf.getConfs().size(); i++) {
+      InputPreProcessor preProcessor = conf.getInputPreProcess(i);
+      if (preProcessor != null)
+        type = preProcessor.getOutputType(type);
+      Layer layer = conf.getConf(i).getLayer();
+      InputType in = type;
+      type = layer.getOutputType(i, type);
+      elements += elements(type);
+      if (layer instanceof ConvolutionLayer && in instanceof InputType.InputTypeConvolutional
+          && type instanceof InputType.InputTypeConvolutional) {
+        int[] kernel = ((ConvolutionLayer) layer).getKernelSize();
+        InputType.InputTypeConvolutional out = (InputType.InputTypeConvolutional) type;
+        elements += 2L * out.getHeight() * out.getWidth()
+            * ((InputType.InputTypeConvolutional) in).getDepth() * kernel[0] * kernel[1];
+      }
+    }
+    int bytes = Nd4j.dataType() == DataBuffer.Type.DOUBLE ? 8 : 4;
+    return 2 * elements * batchSize * bytes;
+  }
+
+  /**
+   * Create the external workspace of the calling (training) thread with the estimated size, so
+   * it neither has to learn its size during the first iterations nor grow later. Has to be called
+   * on the thread calling fit, before the first call.
+   * @return The workspace size in bytes.
+   */
+  public static long presize(MultiLayerConfiguration conf, InputType inputType, int batchSize) {
+    if (conf.getTrainingWorkspaceMode() == WorkspaceMode.NONE)
+      return 0;
+    long bytes = estimateIterationBytes(conf, inputType, batchSize);
+    WorkspaceConfiguration workspaceConfiguration = WorkspaceConfiguration.builder()
+        .initialSize(bytes)
+        .policyAllocation(AllocationPolicy.STRICT)
+        .policyLearning(LearningPolicy.NONE)
+        .policySpill(SpillPolicy.REALLOCATE)
+        .build();
+    MemoryWorkspace workspace = Nd4j.getWorkspaceManager()
+        .getWorkspaceForCurrentThread(workspaceConfiguration, EXTERNAL_WORKSPACE);
+    LOG.info("Workspace {} pre-sized to {} MB for batch size {}", EXTERNAL_WORKSPACE,
+        bytes / (1024 * 1024), batchSize);
+    return workspace.getCurrentSize() > 0 ? workspace.getCurrentSize() : bytes;
+  }
+
+  private static long elements(InputType type) {
+    if (type instanceof InputType.InputTypeConvolutional) {
+      InputType.InputTypeConvolutional c = (InputType.InputTypeConvolutional) type;
+      return (long) c.getHeight() * c.getWidth() * c.getDepth();
+    }
+    if (type instanceof InputType.InputTypeConvolutionalFlat)
+      return ((InputType.InputTypeConvolutionalFlat) type).getFlattenedSize();
+    if (type instanceof InputType.InputTypeFeedForward)
+      return ((InputType.InputTypeFeedForward) type).getSize();
+    if (type instanceof InputType.InputTypeRecurrent)
+      return ((InputType.InputTypeRecurrent) type).getSize();
+    return 0;
+  }
+
+}
@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * CIFAR10
@@ -15,21 +16,39 @@ public class CIFAR10 {
   private static final String basePath = "./var/data" + "/cifar10";
   //private static final String dataUrl =  "http://www.cs.toronto.edu/~kriz/cifar-10-python.tar.gz";
   private static final String dataUrl =  "http://www.cs.toronto.edu/~kriz/cifar-10-binary.tar.gz";
+  // SHA-256 of cifar-10-binary.tar.gz (170052171 bytes), -Dcifar.sha256 overrides it for a mirror
+  private static final String dataSha256 = System.getProperty("cifar.sha256",
+      "c4a38c50a1bc5f3a1c5537f2155ab9d68f9f25eb1ed8d9ddda3db29a59bca1dd");
 
   public static void main(String[] args) throws Exception {
+    prepare();
+    LOG.info("Data extracted. Finished", basePath);
+  }
 
+  /**
+   * Download and extract the binary version of CIFAR-10 if not done already.
+   * @return The extracted cifar-10-batches-bin directory.
+   * @throws IOException IO error.
+   */
+  public static File prepare() throws IOException {
     LOG.info("Data load and vectorization using path {}", basePath);
     String localFilePath = basePath + "/cifar-10-binary.tar.gz";
+    File batchesDir = batchesDir();
 
-    if (DataUtilities.downloadFile(dataUrl, localFilePath)) {
-      LOG.info("Data downloaded from {}", dataUrl);
-    }
-
-    if (!new File(basePath + "/cifar-10-binary").exists()) {
+    if (!batchesDir.exists()) {
+      if (new SegmentedDownloader().download(dataUrl, new File(localFilePath), dataSha256)) {
+        LOG.info("Data downloaded from {}", dataUrl);
+      }
       DataUtilities.extractTarGz(localFilePath, basePath);
     }
+    return batchesDir;
+  }
 
-    LOG.info("Data extracted. Finished", basePath);
+  /**
+   * @return The directory the binary batches are extracted to.
+   */
+  public static File batchesDir() {
+    return new File(basePath + "/cifar-10-batches-bin");
   }
 
 }
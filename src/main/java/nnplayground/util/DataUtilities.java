@@ -3,11 +3,6 @@ package nnplayground.util;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 
 import java.io.*;
 
@@ -19,36 +14,19 @@ import java.io.*;
 public class DataUtilities {
 
   /**
-   * Download a remote file if it doesn't exist.
+   * Download a remote file if it doesn't exist. Uses a {@link SegmentedDownloader}, so an
+   * interrupted download is resumed and never mistaken for a complete file.
    * @param remoteUrl URL of the remote file.
    * @param localPath Where to download the file.
+   * @param expectedSha256 Expected SHA-256 as hex string, checked for new and existing copies.
    * @return True if and only if the file has been downloaded.
-   * @throws Exception IO error.
+   * @throws Exception IO error or checksum mismatch.
    */
-  public static boolean downloadFile(String remoteUrl, String localPath) throws IOException {
-    boolean downloaded = false;
+  public static boolean downloadFile(String remoteUrl, String localPath, String expectedSha256)
+      throws IOException {
     if (remoteUrl == null || localPath == null)
-      return downloaded;
-    File file = new File(localPath);
-    if (!file.exists()) {
-      file.getParentFile().mkdirs();
-      HttpClientBuilder builder = HttpClientBuilder.create();
-      CloseableHttpClient client = builder.build();
-      try (CloseableHttpResponse response = client.execute(new HttpGet(remoteUrl))) {
-        HttpEntity entity = response.getEntity();
-        if (entity != null) {
-          try (FileOutputStream outstream = new FileOutputStream(file)) {
-            entity.writeTo(outstream);
-            outstream.flush();
-            outstream.close();
-          }
-        }
-      }
-      downloaded = true;
-    }
-    if (!file.exists())
-      throw new IOException("File doesn't exist: " + localPath);
-    return downloaded;
+      return false;
+    return new SegmentedDownloader().download(remoteUrl, new File(localPath), expectedSha256);
   }
 
   /**
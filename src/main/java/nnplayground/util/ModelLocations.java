@@ -0,0 +1,35 @@
+package nnplayground.util;
+
+import java.io.File;
+
+/**
+ * Where trained models are written and read. The MNIST model directory defaults to
+ * ./var/data/mnist and can be changed with -Dmnist.modelDir.
+ */
+public final class ModelLocations {
+
+  private ModelLocations() {
+  }
+
+  /**
+   * @return The directory of the MNIST models.
+   */
+  public static File mnistDir() {
+    return new File(System.getProperty("mnist.modelDir", "./var/data/mnist"));
+  }
+
+  /**
+   * @return The MNIST model in ModelSerializer format.
+   */
+  public static File mnistModel() {
+    return new File(mnistDir(), "minist-model.zip");
+  }
+
+  /**
+   * @return The MNIST model in the memory mapped format.
+   */
+  public static File mnistMappedModel() {
+    return new File(mnistDir(), "mnist-model.nnm");
+  }
+
+}
@@ -0,0 +1,301 @@
+package nnplayground.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resumable, segmented file downloader.
+ *
+ * <p>The file is fetched as byte ranges over several parallel connections into a "*.part" file.
+ * Finished segments are recorded in a "*.part.state" file, so an interrupted download continues
+ * where it stopped. When all segments are there the SHA-256 is verified and the file is moved to
+ * its final name atomically; the checksum is kept in a "*.sha256" file next to it. An existing file
+ * is only trusted if it matches the expected or the recorded checksum, anything else (e.g. left
+ * over by an interrupted plain download) is downloaded again.
+ *
+ * <p>Servers without range support are downloaded with a single connection.
+ */
+public class SegmentedDownloader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentedDownloader.class);
+
+  private static final int bufferSize = 64 * 1024;
+  private static final int maxRetries = 3;
+
+  private final int connections;
+  private final long segmentSize;
+
+  public SegmentedDownloader() {
+    this(4, 4L * 1024 * 1024);
+  }
+
+  /**
+   * @param connections Number of parallel connections.
+   * @param segmentSize Size of a byte range fetched by one request.
+   */
+  public SegmentedDownloader(int connections, long segmentSize) {
+    this.connections = connections;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Download a remote file unless a verified copy already exists.
+   * @param remoteUrl URL of the remote file.
+   * @param target Where to download the file.
+   * @param expectedSha256 Expected SHA-256 as hex string, or null to only record it (a copy
+   *                       without a recorded checksum is then downloaded again).
+   * @return True if and only if the file has been downloaded.
+   * @throws IOException IO error or checksum mismatch.
+   */
+  public boolean download(String remoteUrl, File target, String expectedSha256)
+      throws IOException {
+    File checksumFile = new File(target.getPath() + ".sha256");
+    PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+    cm.setMaxTotal(connections);
+    cm.setDefaultMaxPerRoute(connections);
+    try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(cm).build()) {
+      long[] remote = head(client, remoteUrl);
+      long length = remote[0];
+      boolean ranges = remote[1] == 1;
+
+      if (target.exists()) {
+        if (isComplete(target, checksumFile, expectedSha256))
+          return false;
+        LOG.warn("Discarding incomplete or corrupt file {}", target);
+        Files.delete(target.toPath());
+      }
+      if (target.getAbsoluteFile().getParentFile() != null)
+        target.getAbsoluteFile().getParentFile().mkdirs();
+
+      File part = new File(target.getPath() + ".part");
+      File state = new File(target.getPath() + ".part.state");
+      long start = System.nanoTime();
+      AtomicLong transferred = new AtomicLong();
+      if (ranges && length > 0) {
+        downloadSegments(client, remoteUrl, part, state, length, transferred);
+      } else {
+        downloadSingle(client, remoteUrl, part, ranges, transferred);
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOG.info("Downloaded {} bytes from {} in {} s ({} MB/s)", transferred.get(), remoteUrl,
+          String.format("%.1f", seconds),
+          String.format("%.2f", transferred.get() / seconds / (1024 * 1024)));
+
+      if (length > 0 && part.length() != length)
+        throw new IOException("Size mismatch for " + part + ": " + part.length() + " != " + length);
+      String sha256 = sha256(part);
+      if (expectedSha256 != null && !expectedSha256.equalsIgnoreCase(sha256)) {
+        Files.delete(part.toPath());
+        Files.deleteIfExists(state.toPath());
+        throw new IOException("Checksum mismatch for " + remoteUrl + ": " + sha256);
+      }
+      Files.write(checksumFile.toPath(), sha256.getBytes(StandardCharsets.US_ASCII));
+      Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      Files.deleteIfExists(state.toPath());
+      return true;
+    }
+  }
+
+  /**
+   * @return Content length (or -1) and 1 if byte ranges are supported.
+   */
+  private long[] head(CloseableHttpClient client, String remoteUrl) {
+    try (CloseableHttpResponse response = client.execute(new HttpHead(remoteUrl))) {
+      if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+        return new long[] {-1, 0};
+      Header lengthHeader = response.getFirstHeader("Content-Length");
+      Header rangesHeader = response.getFirstHeader("Accept-Ranges");
+      long length = lengthHeader != null ? Long.parseLong(lengthHeader.getValue()) : -1;
+      boolean ranges = rangesHeader != null && rangesHeader.getValue().contains("bytes");
+      return new long[] {length, ranges ? 1 : 0};
+    } catch (IOException | NumberFormatException e) {
+      LOG.warn("HEAD request for {} failed: {}", remoteUrl, e.getMessage());
+      return new long[] {-1, 0};
+    }
+  }
+
+  private boolean isComplete(File target, File checksumFile, String expectedSha256)
+      throws IOException {
+    if (expectedSha256 != null)
+      return expectedSha256.equalsIgnoreCase(sha256(target));
+    if (checksumFile.exists()) {
+      String recorded = new String(Files.readAllBytes(checksumFile.toPath()),
+          StandardCharsets.US_ASCII).trim();
+      return recorded.equalsIgnoreCase(sha256(target));
+    }
+    // unverified leftover, a matching size doesn't mean matching content
+    return false;
+  }
+
+  private void downloadSegments(CloseableHttpClient client, String remoteUrl, File part,
+                                File state, long length, AtomicLong transferred)
+      throws IOException {
+    int numSegments = (int) ((length + segmentSize - 1) / segmentSize);
+    BitSet done = readState(state, length, numSegments);
+    if (!part.exists() || part.length() != length)
+      done.clear();
+    if (!done.isEmpty())
+      LOG.info("Resuming download of {}: {} of {} segments present", remoteUrl,
+          done.cardinality(), numSegments);
+
+    ExecutorService pool = Executors.newFixedThreadPool(connections);
+    try (RandomAccessFile raf = new RandomAccessFile(part, "rw");
+         FileChannel channel = raf.getChannel()) {
+      raf.setLength(length);
+      List<Future<?>> tasks = new ArrayList<>();
+      for (int i = done.nextClearBit(0); i < numSegments; i = done.nextClearBit(i + 1)) {
+        final int segment = i;
+        tasks.add(pool.submit(() -> {
+          long from = segment * segmentSize;
+          long to = Math.min(length, from + segmentSize) - 1;
+          fetchRange(client, remoteUrl, channel, from, to, transferred);
+          synchronized (done) {
+            done.set(segment);
+            writeState(state, length, done);
+          }
+          return null;
+        }));
+      }
+      for (Future<?> task : tasks)
+        task.get();
+      channel.force(true);
+    } catch (Exception e) {
+      throw e instanceof IOException ? (IOException) e
+          : new IOException("Download of " + remoteUrl + " failed", e);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void fetchRange(CloseableHttpClient client, String remoteUrl, FileChannel channel,
+                          long from, long to, AtomicLong transferred) throws IOException {
+    IOException last = null;
+    for (int attempt = 0; attempt < maxRetries; attempt++) {
+      HttpGet get = new HttpGet(remoteUrl);
+      get.setHeader("Range", "bytes=" + from + "-" + to);
+      long position = from;
+      try (CloseableHttpResponse response = client.execute(get)) {
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT)
+          throw new IOException("Range request not honoured: " + response.getStatusLine());
+        try (InputStream in = response.getEntity().getContent()) {
+          byte[] data = new byte[bufferSize];
+          int count;
+          while ((count = in.read(data)) != -1) {
+            channel.write(ByteBuffer.wrap(data, 0, count), position);
+            position += count;
+            transferred.addAndGet(count);
+          }
+        }
+        if (position != to + 1)
+          throw new IOException("Short read for range " + from + "-" + to);
+        return;
+      } catch (IOException e) {
+        last = e;
+        LOG.warn("Segment {}-{} of {} failed (attempt {}): {}", from, to, remoteUrl,
+            attempt + 1, e.getMessage());
+      }
+    }
+    throw last;
+  }
+
+  private void downloadSingle(CloseableHttpClient client, String remoteUrl, File part,
+                              boolean ranges, AtomicLong transferred) throws IOException {
+    long offset = ranges && part.exists() ? part.length() : 0;
+    HttpGet get = new HttpGet(remoteUrl);
+    if (offset > 0)
+      get.setHeader("Range", "bytes=" + offset + "-");
+    try (CloseableHttpResponse response = client.execute(get)) {
+      int status = response.getStatusLine().getStatusCode();
+      boolean append = offset > 0 && status == HttpStatus.SC_PARTIAL_CONTENT;
+      if (!append && status != HttpStatus.SC_OK)
+        throw new IOException("Download of " + remoteUrl + " failed: " + response.getStatusLine());
+      HttpEntity entity = response.getEntity();
+      if (entity == null)
+        throw new IOException("Empty response for " + remoteUrl);
+      try (InputStream in = entity.getContent();
+           OutputStream out = new BufferedOutputStream(new FileOutputStream(part, append),
+               bufferSize)) {
+        byte[] data = new byte[bufferSize];
+        int count;
+        while ((count = in.read(data)) != -1) {
+          out.write(data, 0, count);
+          transferred.addAndGet(count);
+        }
+      }
+    }
+  }
+
+  private static BitSet readState(File state, long length, int numSegments) {
+    if (!state.exists())
+      return new BitSet(numSegments);
+    try (DataInputStream in = new DataInputStream(new FileInputStream(state))) {
+      if (in.readLong() != length)
+        return new BitSet(numSegments);
+      byte[] bits = new byte[in.readInt()];
+      in.readFully(bits);
+      return BitSet.valueOf(bits);
+    } catch (IOException e) {
+      return new BitSet(numSegments);
+    }
+  }
+
+  private static void writeState(File state, long length, BitSet done) throws IOException {
+    File tmp = new File(state.getPath() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+      byte[] bits = done.toByteArray();
+      out.writeLong(length);
+      out.writeInt(bits.length);
+      out.write(bits);
+    }
+    Files.move(tmp.toPath(), state.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return The SHA-256 of a file as lower case hex string.
+   */
+  public static String sha256(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file), bufferSize)) {
+      byte[] data = new byte[bufferSize];
+      int count;
+      while ((count = in.read(data)) != -1)
+        digest.update(data, 0, count);
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest())
+      hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+}
@@ -0,0 +1,100 @@
+package nnplayground.data;
+
+import org.datavec.image.loader.NativeImageLoader;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static nnplayground.data.CifarBinaryDataSetIterator.HEIGHT;
+import static nnplayground.data.CifarBinaryDataSetIterator.IMAGE_SIZE;
+import static nnplayground.data.CifarBinaryDataSetIterator.RECORD_SIZE;
+import static nnplayground.data.CifarBinaryDataSetIterator.WIDTH;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The iterator delivers the channels in the order NativeImageLoader decodes an image file to, so
+ * a network trained on the binary batches is served the same inputs: one image written both as a
+ * CIFAR-10 record (R, G, B planes) and as a PNG.
+ */
+public class CifarBinaryDataSetIteratorTest {
+
+  private Path dir;
+
+  @BeforeEach
+  public void setUp() {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    if (dir == null)
+      return;
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  // a different gradient per channel, so swapped planes can't match
+  private static int red(int y, int x) {
+    return x * 8;
+  }
+
+  private static int green(int y, int x) {
+    return y * 8;
+  }
+
+  private static int blue(int y, int x) {
+    return 255 - x * 4 - y * 3;
+  }
+
+  @Test
+  public void channelOrderMatchesNativeImageLoader() throws IOException {
+    dir = Files.createTempDirectory("cifar");
+    int plane = HEIGHT * WIDTH;
+    byte[] record = new byte[RECORD_SIZE];
+    record[0] = 6;
+    BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int p = y * WIDTH + x;
+        record[1 + p] = (byte) red(y, x);
+        record[1 + plane + p] = (byte) green(y, x);
+        record[1 + 2 * plane + p] = (byte) blue(y, x);
+        image.setRGB(x, y, red(y, x) << 16 | green(y, x) << 8 | blue(y, x));
+      }
+    }
+    Files.write(CifarBinaryDataSetIterator.dataFiles(dir.toFile(), false)[0].toPath(), record);
+    File png = dir.resolve("image.png").toFile();
+    assertTrue(ImageIO.write(image, "png", png));
+
+    CifarBinaryDataSetIterator iterator =
+        new CifarBinaryDataSetIterator(dir.toFile(), false, 1, -1, false, false, 42);
+    DataSet batch = iterator.next();
+    INDArray decoded = new NativeImageLoader(HEIGHT, WIDTH, 3).asMatrix(png);
+    assertArrayEquals(decoded.shape(), batch.getFeatures().shape());
+    assertEquals(decoded, batch.getFeatures());
+    assertEquals(6, iterator.label(0));
+    assertEquals(1f, batch.getLabels().getFloat(6), 0f);
+
+    // the raw pixels have the same order
+    byte[] raw = new byte[IMAGE_SIZE];
+    iterator.readImage(0, raw, 0);
+    float[] expected = decoded.data().asFloat();
+    for (int i = 0; i < IMAGE_SIZE; i++)
+      assertEquals(expected[i], raw[i] & 0xFF, 0f, "pixel " + i);
+  }
+
+}
@@ -0,0 +1,150 @@
+package nnplayground.data;
+
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Augmentation results depend on the seed, the epoch and the example only, not on the number of
+ * threads augmenting a batch.
+ */
+public class ImageAugmenterTest {
+
+  private static final int CHANNELS = 3;
+  private static final int SIZE = 16;
+  private static final int IMAGE = CHANNELS * SIZE * SIZE;
+
+  /**
+   * Random images with labels 0..4.
+   */
+  private static class Images implements RawImageSource {
+    private final byte[] pixels;
+
+    Images(int count) {
+      pixels = new byte[count * IMAGE];
+      new Random(42).nextBytes(pixels);
+    }
+
+    @Override
+    public int numExamples() {
+      return pixels.length / IMAGE;
+    }
+
+    @Override
+    public int channels() {
+      return CHANNELS;
+    }
+
+    @Override
+    public int height() {
+      return SIZE;
+    }
+
+    @Override
+    public int width() {
+      return SIZE;
+    }
+
+    @Override
+    public List<String> getLabels() {
+      return Arrays.asList("0", "1", "2", "3", "4");
+    }
+
+    @Override
+    public int label(int index) {
+      return index % 5;
+    }
+
+    @Override
+    public void readImage(int index, byte[] dst, int dstOffset) {
+      System.arraycopy(pixels, index * IMAGE, dst, dstOffset, IMAGE);
+    }
+  }
+
+  /**
+   * @return The features of every batch of two epochs.
+   */
+  private static List<float[]> augmentedEpochs(int threads) {
+    AugmentingDataSetIterator iterator = new AugmentingDataSetIterator(new Images(100),
+        ImageAugmenter.cifar(), 16, true, true, threads, 7);
+    List<float[]> batches = new ArrayList<>();
+    try {
+      for (int epoch = 0; epoch < 2; epoch++) {
+        while (iterator.hasNext()) {
+          DataSet batch = iterator.next();
+          batches.add(batch.getFeatures().dup().data().asFloat());
+        }
+        iterator.reset();
+      }
+    } finally {
+      iterator.shutdown();
+    }
+    return batches;
+  }
+
+  @Test
+  public void sameOutputForAnyNumberOfThreads() {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    List<float[]> single = augmentedEpochs(1);
+    for (int threads : new int[] {2, 3, 8}) {
+      List<float[]> parallel = augmentedEpochs(threads);
+      assertEquals(single.size(), parallel.size());
+      for (int b = 0; b < single.size(); b++)
+        assertArrayEquals(single.get(b), parallel.get(b), threads + " threads, batch " + b);
+    }
+  }
+
+  @Test
+  public void epochsAugmentDifferently() {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    List<float[]> batches = augmentedEpochs(2);
+    int perEpoch = batches.size() / 2;
+    // the shuffled order differs as well, so compare the sorted values of a whole epoch
+    float[] first = concat(batches.subList(0, perEpoch));
+    float[] second = concat(batches.subList(perEpoch, batches.size()));
+    Arrays.sort(first);
+    Arrays.sort(second);
+    assertFalse(Arrays.equals(first, second));
+  }
+
+  @Test
+  public void seedDeterminesTheImage() {
+    byte[] src = new byte[IMAGE];
+    new Random(1).nextBytes(src);
+    ImageAugmenter augmenter = ImageAugmenter.cifar();
+    float[] a = new float[IMAGE];
+    float[] b = new float[IMAGE];
+    float[] c = new float[IMAGE];
+    long seed = ImageAugmenter.sampleSeed(7, 0, 3);
+    augmenter.augment(src, 0, CHANNELS, SIZE, SIZE, a, 0, 1f, seed,
+        ImageAugmenter.scratch(CHANNELS));
+    augmenter.augment(src, 0, CHANNELS, SIZE, SIZE, b, 0, 1f, seed,
+        ImageAugmenter.scratch(CHANNELS));
+    augmenter.augment(src, 0, CHANNELS, SIZE, SIZE, c, 0, 1f,
+        ImageAugmenter.sampleSeed(7, 1, 3), ImageAugmenter.scratch(CHANNELS));
+    assertArrayEquals(a, b);
+    assertFalse(Arrays.equals(a, c));
+  }
+
+  private static float[] concat(List<float[]> arrays) {
+    int length = 0;
+    for (float[] array : arrays)
+      length += array.length;
+    float[] all = new float[length];
+    int offset = 0;
+    for (float[] array : arrays) {
+      System.arraycopy(array, 0, all, offset, array.length);
+      offset += array.length;
+    }
+    return all;
+  }
+
+}
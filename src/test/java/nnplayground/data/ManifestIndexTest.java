@@ -0,0 +1,137 @@
+package nnplayground.data;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Building and incrementally refreshing the index of a labeled directory tree, and sharding it.
+ */
+public class ManifestIndexTest {
+
+  private static final long MODIFIED = 1500000000000L;
+
+  private Path dir;
+  private File root;
+  private File indexFile;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("manifest");
+    root = dir.resolve("images").toFile();
+    indexFile = dir.resolve("images.index").toFile();
+    for (String label : new String[] {"cat", "dog", "fish"})
+      for (int i = 0; i < 7; i++)
+        image(label + "/" + i + ".png", i);
+    for (int i = 0; i < 3; i++)
+      image("nested/bird/" + i + ".jpg", i);
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  private File image(String path, int content) throws IOException {
+    File file = new File(root, path);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), new byte[] {(byte) content, 1, 2, 3});
+    file.setLastModified(MODIFIED);
+    file.getParentFile().setLastModified(MODIFIED);
+    return file;
+  }
+
+  private static Set<String> paths(ManifestIndex index) {
+    return index.getEntries().stream().map(ManifestIndex.Entry::getPath)
+        .collect(Collectors.toSet());
+  }
+
+  @Test
+  public void indexesLabeledImages() throws IOException {
+    ManifestIndex index = ManifestIndex.open(root, indexFile, true, false);
+    assertEquals(24, index.size());
+    assertEquals(Arrays.asList("bird", "cat", "dog", "fish"), index.getLabels());
+    for (ManifestIndex.Entry entry : index.getEntries()) {
+      assertTrue(entry.getPath().contains(index.getLabels().get(entry.getLabel()) + "/"));
+      assertNotEquals(0L, entry.getHash());
+    }
+    assertTrue(indexFile.exists());
+    ManifestIndex read = ManifestIndex.read(indexFile);
+    assertEquals(paths(index), paths(read));
+  }
+
+  @Test
+  public void refreshListsOnlyChangedDirectories() throws IOException {
+    ManifestIndex first = ManifestIndex.open(root, indexFile, true, false);
+
+    // a file in a directory with an unchanged modification time is not seen without a listing
+    File hidden = image("cat/hidden.png", 9);
+    File added = image("dog/added.png", 9);
+    new File(root, "dog").setLastModified(MODIFIED + 60000);
+    ManifestIndex refreshed = ManifestIndex.open(root, indexFile, true, false);
+    Set<String> paths = paths(refreshed);
+    assertTrue(paths.contains("dog/added.png"));
+    assertFalse(paths.contains("cat/hidden.png"));
+    assertEquals(first.size() + 1, refreshed.size());
+
+    // removals are found the same way
+    assertTrue(added.delete());
+    new File(root, "dog").setLastModified(MODIFIED + 120000);
+    assertTrue(hidden.delete());
+    assertEquals(first.size(), ManifestIndex.open(root, indexFile, true, false).size());
+  }
+
+  @Test
+  public void verifyFindsFilesRewrittenInPlace() throws IOException {
+    ManifestIndex first = ManifestIndex.open(root, indexFile, true, false);
+    File file = new File(root, "fish/3.png");
+    Files.write(file.toPath(), new byte[] {42, 42, 42, 42, 42});
+    file.setLastModified(MODIFIED + 60000);
+    new File(root, "fish").setLastModified(MODIFIED);
+
+    long hashBefore = hash(first, "fish/3.png");
+    assertEquals(hashBefore,
+        hash(ManifestIndex.open(root, indexFile, true, false), "fish/3.png"));
+    assertNotEquals(hashBefore,
+        hash(ManifestIndex.open(root, indexFile, true, true), "fish/3.png"));
+  }
+
+  private static long hash(ManifestIndex index, String path) {
+    for (ManifestIndex.Entry entry : index.getEntries())
+      if (entry.getPath().equals(path))
+        return entry.getHash();
+    throw new AssertionError(path + " not indexed");
+  }
+
+  @Test
+  public void shardsAreDisjointAndCoverTheIndex() throws IOException {
+    ManifestIndex index = ManifestIndex.open(root, indexFile, false, false);
+    for (int n : new int[] {1, 3, 5, 24, 30}) {
+      Set<String> covered = new HashSet<>();
+      int total = 0;
+      for (int k = 0; k < n; k++) {
+        ManifestIndex shard = index.shard(k, n);
+        assertEquals(index.getLabels(), shard.getLabels());
+        total += shard.size();
+        for (String path : paths(shard))
+          assertTrue(covered.add(path), path + " in two of " + n + " shards");
+      }
+      assertEquals(index.size(), total);
+      assertEquals(paths(index), covered);
+    }
+    assertThrows(IllegalArgumentException.class, () -> index.shard(3, 3));
+  }
+
+}
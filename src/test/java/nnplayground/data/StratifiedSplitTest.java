@@ -0,0 +1,55 @@
+package nnplayground.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntUnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Class proportions of the held-out part and disjointness of the two parts.
+ */
+public class StratifiedSplitTest {
+
+  private static final int NUM_EXAMPLES = 1000;
+  // 500, 300 and 200 examples of the classes 0, 1 and 2
+  private static final IntUnaryOperator LABEL = i -> i < 500 ? 0 : i < 800 ? 1 : 2;
+
+  @Test
+  public void holdsOutTheFractionOfEveryClass() {
+    int[][] split = StratifiedSplit.split(NUM_EXAMPLES, LABEL, 0.1, 42);
+    int[] heldOut = new int[3];
+    for (int i : split[1])
+      heldOut[LABEL.applyAsInt(i)]++;
+    assertArrayEquals(new int[] {50, 30, 20}, heldOut);
+    assertEquals(NUM_EXAMPLES - 100, split[0].length);
+  }
+
+  @Test
+  public void partsAreDisjointAndCoverAllExamples() {
+    int[][] split = StratifiedSplit.split(NUM_EXAMPLES, LABEL, 0.25, 7);
+    BitSet seen = new BitSet(NUM_EXAMPLES);
+    for (int[] part : split) {
+      for (int i : part) {
+        assertFalse(seen.get(i), "example " + i + " in both parts");
+        seen.set(i);
+      }
+      int[] sorted = part.clone();
+      Arrays.sort(sorted);
+      assertArrayEquals(sorted, part);
+    }
+    assertEquals(NUM_EXAMPLES, seen.cardinality());
+  }
+
+  @Test
+  public void sameSeedGivesSameSplit() {
+    int[][] a = StratifiedSplit.split(NUM_EXAMPLES, LABEL, 0.1, 42);
+    int[][] b = StratifiedSplit.split(NUM_EXAMPLES, LABEL, 0.1, 42);
+    int[][] c = StratifiedSplit.split(NUM_EXAMPLES, LABEL, 0.1, 43);
+    assertArrayEquals(a[1], b[1]);
+    assertFalse(Arrays.equals(a[1], c[1]));
+  }
+
+}
@@ -0,0 +1,106 @@
+package nnplayground.inference;
+
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Eviction of the least recently used entries by size, invalidation of a model version and
+ * isolation of the cached outputs from the arrays of the callers.
+ */
+public class PredictionCacheTest {
+
+  private static INDArray output(int value) {
+    return Nd4j.valueArrayOf(new int[] {1, 10}, value);
+  }
+
+  private static PredictionCache.Key key(long version, int input) {
+    return PredictionCache.key(version, new float[] {input, input + 1}, 0, 2);
+  }
+
+  /**
+   * @return Bytes the cache accounts for one output.
+   */
+  private static long entryBytes() {
+    PredictionCache probe = new PredictionCache(1 << 20);
+    probe.put(key(0, 0), output(0));
+    return probe.getBytes();
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedBySize() {
+    long entry = entryBytes();
+    PredictionCache cache = new PredictionCache(3 * entry);
+    for (int i = 1; i <= 3; i++)
+      cache.put(key(1, i), output(i));
+    assertEquals(3, cache.size());
+    // touch 1, so 2 is the least recently used
+    assertNotNull(cache.get(key(1, 1)));
+    cache.put(key(1, 4), output(4));
+
+    assertEquals(3, cache.size());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(3 * entry, cache.getBytes());
+    assertNull(cache.get(key(1, 2)));
+    assertEquals(output(1), cache.get(key(1, 1)));
+    assertEquals(output(3), cache.get(key(1, 3)));
+    assertEquals(output(4), cache.get(key(1, 4)));
+  }
+
+  @Test
+  public void replacingAnEntryKeepsTheSize() {
+    long entry = entryBytes();
+    PredictionCache cache = new PredictionCache(10 * entry);
+    cache.put(key(1, 1), output(1));
+    cache.put(key(1, 1), output(2));
+    assertEquals(1, cache.size());
+    assertEquals(entry, cache.getBytes());
+    assertEquals(output(2), cache.get(key(1, 1)));
+  }
+
+  @Test
+  public void invalidatesOnlyOneVersion() {
+    long entry = entryBytes();
+    PredictionCache cache = new PredictionCache(10 * entry);
+    cache.put(key(1, 1), output(1));
+    cache.put(key(1, 2), output(2));
+    cache.put(key(2, 1), output(3));
+
+    assertEquals(2, cache.invalidate(1));
+    assertEquals(1, cache.size());
+    assertEquals(entry, cache.getBytes());
+    assertNull(cache.get(key(1, 1)));
+    assertEquals(output(3), cache.get(key(2, 1)));
+    assertEquals(0, cache.invalidate(1));
+  }
+
+  @Test
+  public void keysDependOnVersionAndInput() {
+    INDArray input = Nd4j.create(new float[] {1, 2, 3}, new int[] {1, 3});
+    assertEquals(PredictionCache.key(1, input), PredictionCache.key(1, input.dup()));
+    assertNotEquals(PredictionCache.key(1, input), PredictionCache.key(2, input));
+    assertNotEquals(PredictionCache.key(1, input), PredictionCache.key(1, input.add(1)));
+  }
+
+  @Test
+  public void cachedOutputsAreIsolatedFromCallers() {
+    PredictionCache cache = new PredictionCache(1 << 20);
+    INDArray stored = output(1);
+    cache.put(key(1, 1), stored);
+    stored.addi(100);
+    INDArray first = cache.get(key(1, 1));
+    assertEquals(output(1), first);
+    first.addi(100);
+    assertEquals(output(1), cache.get(key(1, 1)));
+
+    // output() hands out a copy on a hit as well
+    INDArray input = Nd4j.ones(1, 3);
+    INDArray computed = cache.output(7, input, x -> output(5));
+    computed.addi(100);
+    assertEquals(output(5), cache.output(7, input, x -> fail("computed on a hit")));
+    assertEquals(3, cache.getHits());
+  }
+
+}
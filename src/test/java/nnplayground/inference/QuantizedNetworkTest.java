@@ -0,0 +1,114 @@
+package nnplayground.inference;
+
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ConvolutionMode;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The int8 network against the float network it was quantized from: a small convolutional net
+ * trained on synthetic 8x8 images whose class is the quadrant holding a bright patch.
+ */
+public class QuantizedNetworkTest {
+
+  private static final int SIZE = 8;
+  private static final int CLASSES = 3;
+
+  /**
+   * Noise with a bright 4x4 patch in the top left (class 0), top right (1) or bottom half (2).
+   */
+  private static DataSet images(int n, Random random) {
+    float[] features = new float[n * SIZE * SIZE];
+    float[] labels = new float[n * CLASSES];
+    for (int e = 0; e < n; e++) {
+      int label = random.nextInt(CLASSES);
+      labels[e * CLASSES + label] = 1;
+      int top = label < 2 ? 0 : SIZE / 2;
+      int left = label == 1 ? SIZE / 2 : label == 2 ? random.nextInt(SIZE / 2 + 1) : 0;
+      for (int y = 0; y < SIZE; y++) {
+        for (int x = 0; x < SIZE; x++) {
+          boolean patch = y >= top && y < top + 4 && x >= left && x < left + 4;
+          features[e * SIZE * SIZE + y * SIZE + x] =
+              patch ? 0.7f + 0.3f * random.nextFloat() : 0.3f * random.nextFloat();
+        }
+      }
+    }
+    return new DataSet(Nd4j.create(features, new int[] {n, 1, SIZE, SIZE}, 'c'),
+        Nd4j.create(labels, new int[] {n, CLASSES}, 'c'));
+  }
+
+  private static MultiLayerNetwork train(List<DataSet> batches) {
+    MultiLayerNetwork net = new MultiLayerNetwork(new NeuralNetConfiguration.Builder()
+        .seed(42)
+        .updater(Updater.ADAM)
+        .learningRate(1e-2)
+        .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+        .weightInit(WeightInit.XAVIER)
+        .list()
+        .layer(0, new ConvolutionLayer.Builder(3, 3).nIn(1).nOut(4)
+            .convolutionMode(ConvolutionMode.Same).activation(Activation.RELU).build())
+        .layer(1, new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX)
+            .kernelSize(2, 2).stride(2, 2).build())
+        .layer(2, new DenseLayer.Builder().nOut(16).activation(Activation.RELU).build())
+        .layer(3, new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
+            .nOut(CLASSES).activation(Activation.SOFTMAX).build())
+        .setInputType(InputType.convolutional(SIZE, SIZE, 1))
+        .backprop(true)
+        .pretrain(false)
+        .build());
+    net.init();
+    for (int epoch = 0; epoch < 20; epoch++)
+      for (DataSet batch : batches)
+        net.fit(batch);
+    return net;
+  }
+
+  @Test
+  public void agreesWithTheFloatNetwork() {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    Random random = new Random(42);
+    List<DataSet> batches = new ArrayList<>();
+    for (int b = 0; b < 10; b++)
+      batches.add(images(32, random));
+    MultiLayerNetwork net = train(batches);
+    QuantizedNetwork quantized = QuantizedNetwork.quantize(net,
+        new ExistingDataSetIterator(batches), 4, new int[] {1, SIZE, SIZE});
+
+    DataSet test = images(500, random);
+    INDArray expected = net.output(test.getFeatures(), false);
+    INDArray actual = quantized.output(test.getFeatures());
+    assertArrayEquals(expected.shape(), actual.shape());
+
+    int agree = 0;
+    for (int e = 0; e < test.numExamples(); e++) {
+      int top = Nd4j.argMax(expected.getRow(e), 1).getInt(0);
+      if (Nd4j.argMax(actual.getRow(e), 1).getInt(0) == top)
+        agree++;
+    }
+    assertTrue(agree >= 0.95 * test.numExamples(), "top-1 agreement " + agree);
+    double maxError = actual.sub(expected).amaxNumber().doubleValue();
+    assertTrue(maxError < 0.1, "max probability error " + maxError);
+  }
+
+}
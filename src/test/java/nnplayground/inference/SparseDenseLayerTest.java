@@ -0,0 +1,92 @@
+package nnplayground.inference;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The CSC layer against the DL4J dense layer it was built from, with 80% of the weights pruned.
+ */
+public class SparseDenseLayerTest {
+
+  private static final int N_IN = 50;
+  private static final int N_OUT = 20;
+
+  private MultiLayerNetwork net;
+  private Layer dense;
+
+  @BeforeEach
+  public void setUp() {
+    Nd4j.setDataType(DataBuffer.Type.FLOAT);
+    net = new MultiLayerNetwork(new NeuralNetConfiguration.Builder()
+        .seed(42)
+        .weightInit(WeightInit.XAVIER)
+        .list()
+        .layer(0, new DenseLayer.Builder().nIn(N_IN).nOut(N_OUT).activation(Activation.RELU)
+            .build())
+        .layer(1, new OutputLayer.Builder(LossFunctions.LossFunction.MCXENT).nOut(3)
+            .activation(Activation.SOFTMAX).build())
+        .backprop(true)
+        .pretrain(false)
+        .build());
+    net.init();
+    dense = net.getLayer(0);
+    // prune in place, the network computes with the same zeros
+    Nd4j.getRandom().setSeed(42);
+    dense.getParam("W").muli(Nd4j.rand(N_IN, N_OUT).gt(0.8));
+    dense.getParam("b").assign(Nd4j.randn(1, N_OUT).muli(0.1));
+  }
+
+  private SparseDenseLayer sparse() {
+    return SparseDenseLayer.fromDense(dense.getParam("W"), dense.getParam("b"),
+        ((BaseLayer) dense.conf().getLayer()).getActivationFn());
+  }
+
+  @Test
+  public void sameOutputAsTheDenseLayer() {
+    SparseDenseLayer sparse = sparse();
+    int zeros = 0;
+    for (float w : dense.getParam("W").data().asFloat())
+      if (w == 0)
+        zeros++;
+    assertEquals(zeros, sparse.prunedWeights());
+    assertTrue(sparse.prunedWeights() > N_IN * N_OUT / 2);
+
+    INDArray input = Nd4j.randn(16, N_IN);
+    INDArray expected = net.feedForward(input, false).get(1);
+    INDArray actual = sparse.activate(input);
+    assertArrayEquals(expected.shape(), actual.shape());
+    assertTrue(expected.equalsWithEps(actual, 1e-5), "max difference "
+        + expected.sub(actual).amaxNumber());
+  }
+
+  @Test
+  public void sameOutputAfterSerialization() throws IOException {
+    SparseDenseLayer sparse = sparse();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    sparse.write(new DataOutputStream(bytes));
+    assertEquals(sparse.sizeBytes(), bytes.size());
+    SparseDenseLayer read =
+        SparseDenseLayer.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    INDArray input = Nd4j.randn(4, N_IN);
+    assertEquals(sparse.nonZeros(), read.nonZeros());
+    assertTrue(sparse.activate(input).equalsWithEps(read.activate(input), 0));
+  }
+
+}
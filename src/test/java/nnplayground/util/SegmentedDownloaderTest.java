@@ -0,0 +1,166 @@
+package nnplayground.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Downloads from an embedded HTTP server on localhost: segmented range requests, resuming an
+ * interrupted download and checksum handling.
+ */
+public class SegmentedDownloaderTest {
+
+  private static final int SEGMENT = 1000;
+
+  private final byte[] content = new byte[10 * SEGMENT + 123];
+  private final AtomicLong served = new AtomicLong();
+  private volatile boolean ranges = true;
+  private volatile long failFrom = Long.MAX_VALUE;
+  private HttpServer server;
+  private String url;
+  private Path dir;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    new Random(42).nextBytes(content);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/data.bin", this::handle);
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/data.bin";
+    dir = Files.createTempDirectory("downloader");
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    server.stop(0);
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  /**
+   * Serves the content, byte ranges if enabled, and fails ranges starting at failFrom or later.
+   */
+  private void handle(HttpExchange exchange) throws IOException {
+    long from = 0;
+    long to = content.length - 1;
+    int status = 200;
+    String range = exchange.getRequestHeaders().getFirst("Range");
+    if (ranges) {
+      exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+      if (range != null) {
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        from = Long.parseLong(bounds[0]);
+        if (!bounds[1].isEmpty())
+          to = Math.min(to, Long.parseLong(bounds[1]));
+        status = 206;
+        exchange.getResponseHeaders().set("Content-Range",
+            "bytes " + from + "-" + to + "/" + content.length);
+      }
+    }
+    if ("HEAD".equals(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+      return;
+    }
+    if (from >= failFrom) {
+      exchange.sendResponseHeaders(500, -1);
+      exchange.close();
+      return;
+    }
+    int length = (int) (to - from + 1);
+    exchange.sendResponseHeaders(status, length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(content, (int) from, length);
+    }
+    served.addAndGet(length);
+  }
+
+  private SegmentedDownloader downloader() {
+    return new SegmentedDownloader(3, SEGMENT);
+  }
+
+  @Test
+  public void downloadsInSegments() throws IOException {
+    File target = dir.resolve("data.bin").toFile();
+    assertTrue(downloader().download(url, target, null));
+    assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    assertEquals(SegmentedDownloader.sha256(target),
+        new String(Files.readAllBytes(dir.resolve("data.bin.sha256"))));
+    assertFalse(new File(target.getPath() + ".part").exists());
+    assertFalse(new File(target.getPath() + ".part.state").exists());
+
+    // the recorded checksum matches, nothing is fetched again
+    served.set(0);
+    assertFalse(downloader().download(url, target, null));
+    assertEquals(0, served.get());
+  }
+
+  @Test
+  public void resumesInterruptedDownload() throws IOException {
+    File target = dir.resolve("data.bin").toFile();
+    failFrom = 5 * SEGMENT;
+    assertThrows(IOException.class, () -> downloader().download(url, target, null));
+    assertFalse(target.exists());
+    assertTrue(new File(target.getPath() + ".part.state").exists());
+
+    failFrom = Long.MAX_VALUE;
+    served.set(0);
+    assertTrue(downloader().download(url, target, null));
+    assertEquals(content.length - 5 * SEGMENT, served.get());
+    assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+  }
+
+  @Test
+  public void downloadsWithoutRangeSupport() throws IOException {
+    ranges = false;
+    File target = dir.resolve("data.bin").toFile();
+    assertTrue(downloader().download(url, target, null));
+    assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+  }
+
+  @Test
+  public void rejectsChecksumMismatch() throws IOException {
+    File target = dir.resolve("data.bin").toFile();
+    String wrong = new String(new char[64]).replace('\0', '0');
+    assertThrows(IOException.class, () -> downloader().download(url, target, wrong));
+    assertFalse(target.exists());
+    assertFalse(new File(target.getPath() + ".part").exists());
+  }
+
+  @Test
+  public void replacesUnverifiedFile() throws IOException {
+    // same size as the remote file but other content, without a recorded checksum
+    File target = dir.resolve("data.bin").toFile();
+    Files.write(target.toPath(), new byte[content.length]);
+    assertTrue(downloader().download(url, target, null));
+    assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+  }
+
+  @Test
+  public void verifiesExistingFileAgainstExpectedChecksum() throws IOException {
+    File target = dir.resolve("data.bin").toFile();
+    Files.write(target.toPath(), content);
+    String sha256 = SegmentedDownloader.sha256(target);
+    assertFalse(downloader().download(url, target, sha256));
+    assertEquals(0, served.get());
+  }
+
+}